@@ -1,14 +1,64 @@
 package net.llamaslayers.gamelib.buzzwordbingo.router;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
-class RoutablePacket implements Serializable {
-	private static final long serialVersionUID = 1L;
-	public final String label;
-	public final Serializable packet;
+/**
+ * A packet and the sender's id for its route, written as a varint so most
+ * take a single byte.
+ */
+class RoutablePacket implements Externalizable {
+	private static final long serialVersionUID = 2L;
+	private int route;
+	private Serializable packet;
 
-	public RoutablePacket(String label, Serializable packet) {
-		this.label = label;
+	/**
+	 * For deserialization.
+	 */
+	public RoutablePacket() {
+	}
+
+	public RoutablePacket(int route, Serializable packet) {
+		this.route = route;
 		this.packet = packet;
 	}
+
+	public int getRoute() {
+		return route;
+	}
+
+	public Serializable getPacket() {
+		return packet;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		int value = route;
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+		out.writeObject(packet);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			if (shift > 28) {
+				throw new IOException("Route id is too long");
+			}
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		route = value;
+		packet = (Serializable) in.readObject();
+	}
 }
@@ -0,0 +1,29 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+
+/**
+ * A Lua or Java route for a label and how it is run. Routes are equal if
+ * they call the same function, so they can be removed by it.
+ */
+abstract class Route {
+	final RoutePolicy policy;
+
+	Route(RoutePolicy policy) {
+		this.policy = policy;
+	}
+
+	abstract Object function();
+
+	abstract void call(Serializable packet);
+
+	@Override
+	public boolean equals(Object o) {
+		return o != null && o.getClass() == getClass() && ((Route) o).function().equals(function());
+	}
+
+	@Override
+	public int hashCode() {
+		return function().hashCode();
+	}
+}
@@ -0,0 +1,19 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+
+/**
+ * Tells the other side which label a route id stands for. Sent before the
+ * first packet with that id on each connection, and before the next one
+ * after a {@link RouteRequest} for it.
+ */
+class RouteDefinition implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public final int id;
+	public final String label;
+
+	public RouteDefinition(int id, String label) {
+		this.id = id;
+		this.label = label;
+	}
+}
@@ -0,0 +1,15 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+
+/**
+ * Says which packets for a route must be handled in the order they arrived,
+ * for {@link RoutePolicy#ordered(java.util.concurrent.Executor, RouteKey)}.
+ */
+public interface RouteKey {
+	/**
+	 * @return a key, such as the id of the entity the packet is about. Packets
+	 * with equal keys are handled one at a time in order, others in parallel.
+	 */
+	public Object key(Serializable packet);
+}
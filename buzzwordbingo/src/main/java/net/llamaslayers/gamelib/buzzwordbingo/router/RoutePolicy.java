@@ -0,0 +1,151 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where a route is run. By default routes run {@link #INLINE}, one after
+ * another on the thread routing packets, so a slow route holds up every
+ * other route for the connection. Routes that are slow or that should use
+ * other cores can run on an executor instead, still seeing their packets in
+ * the order they arrived, or only in order per key. If the executor rejects
+ * a packet, that packet and the ones queued behind it are handled on the
+ * thread routing packets instead.
+ */
+public final class RoutePolicy {
+	/**
+	 * Run on the thread routing packets.
+	 */
+	public static final RoutePolicy INLINE = new RoutePolicy(null, null);
+	private final Executor executor;
+	private final RouteKey key;
+	/**
+	 * The packets waiting behind the one being handled, for each route or
+	 * route and key being handled.
+	 */
+	private final Map<Key, ArrayDeque<Runnable>> queues = new HashMap<Key, ArrayDeque<Runnable>>();
+
+	private RoutePolicy(Executor executor, RouteKey key) {
+		this.executor = executor;
+		this.key = key;
+	}
+
+	/**
+	 * Run on the executor. Each route handles one packet at a time, in the
+	 * order they arrived, while other routes run in parallel.
+	 */
+	public static RoutePolicy ordered(Executor executor) {
+		return new RoutePolicy(executor, null);
+	}
+
+	/**
+	 * Run on the executor. Each route handles packets with equal keys one at
+	 * a time, in the order they arrived, and packets with other keys in
+	 * parallel.
+	 */
+	public static RoutePolicy ordered(Executor executor, RouteKey key) {
+		return new RoutePolicy(executor, key);
+	}
+
+	void route(Route route, Serializable packet) {
+		if (executor == null) {
+			route.call(packet);
+			return;
+		}
+		Key queue = new Key(route, key == null ? null : key.key(packet));
+		Call call = new Call(route, packet);
+		synchronized (queues) {
+			ArrayDeque<Runnable> waiting = queues.get(queue);
+			if (waiting != null) {
+				waiting.add(call);
+				return;
+			}
+			queues.put(queue, new ArrayDeque<Runnable>());
+		}
+		Drain drain = new Drain(queue, call);
+		try {
+			executor.execute(drain);
+		} catch (RejectedExecutionException ex) {
+			// Other threads may have queued calls behind this one meanwhile.
+			Logger.getLogger(RoutePolicy.class.getCanonicalName()).log(Level.WARNING, "Route executor rejected a packet, routing it here", ex);
+			drain.run();
+		}
+	}
+
+	/**
+	 * Handles a packet and then the ones that arrived for the same queue
+	 * meanwhile.
+	 */
+	private final class Drain implements Runnable {
+		private final Key queue;
+		private final Runnable first;
+
+		Drain(Key queue, Runnable first) {
+			this.queue = queue;
+			this.first = first;
+		}
+
+		@Override
+		public void run() {
+			Runnable next = first;
+			while (next != null) {
+				try {
+					next.run();
+				} catch (RuntimeException ex) {
+					Logger.getLogger(RoutePolicy.class.getCanonicalName()).log(Level.SEVERE, null, ex);
+				}
+				synchronized (queues) {
+					next = queues.get(queue).poll();
+					if (next == null) {
+						queues.remove(queue);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Call implements Runnable {
+		private final Route route;
+		private final Serializable packet;
+
+		Call(Route route, Serializable packet) {
+			this.route = route;
+			this.packet = packet;
+		}
+
+		@Override
+		public void run() {
+			route.call(packet);
+		}
+	}
+
+	private static final class Key {
+		private final Route route;
+		private final Object key;
+
+		Key(Route route, Object key) {
+			this.route = route;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return other.route == route && (key == null ? other.key == null : key.equals(other.key));
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(route) * 31 + (key == null ? 0 : key.hashCode());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives every route label a small number when it is first used, the same for
+ * every {@link Router} in the process. Routers tell the other side once per
+ * connection which label a number stands for, or again if that is lost, and
+ * send only the number after that, and keep their routes in arrays indexed
+ * by it.
+ */
+final class RouteRegistry {
+	static final RouteRegistry ROUTES = new RouteRegistry();
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] labels = new String[0];
+
+	/**
+	 * @return the label's id, given to it now if it did not have one
+	 */
+	int id(String label) {
+		Integer id = ids.get(label);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = ids.get(label);
+			if (id == null) {
+				id = labels.length;
+				String[] grown = Arrays.copyOf(labels, id + 1);
+				grown[id] = label;
+				labels = grown;
+				ids.put(label, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Unlike {@link #id(String)}, never gives out an id, so labels the other
+	 * side makes up do not fill the registry.
+	 *
+	 * @return the label's id, or -1 if it has none
+	 */
+	int find(String label) {
+		Integer id = ids.get(label);
+		return id == null ? -1 : id;
+	}
+
+	String label(int id) {
+		return labels[id];
+	}
+}
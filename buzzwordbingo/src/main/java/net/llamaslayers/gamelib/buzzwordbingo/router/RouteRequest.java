@@ -0,0 +1,17 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+
+/**
+ * Asks the other side to define a route id again, after a packet with that
+ * id arrived without its {@link RouteDefinition}. An inbound queue that
+ * drops packets when it is full may have dropped the definition.
+ */
+class RouteRequest implements Serializable {
+	private static final long serialVersionUID = 1L;
+	public final int id;
+
+	public RouteRequest(int id) {
+		this.id = id;
+	}
+}
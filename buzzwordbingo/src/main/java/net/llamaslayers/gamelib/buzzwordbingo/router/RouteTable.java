@@ -0,0 +1,55 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.util.Arrays;
+
+/**
+ * The routes for each label, indexed by the label's {@link RouteRegistry} id.
+ * The table is never changed once it has been published: adding or removing
+ * a route builds a new one, so routing reads it without locking while routes
+ * change. Routes are added far less often than packets are routed.
+ */
+final class RouteTable<L> {
+	private static final Object[] NONE = new Object[0];
+	private static final Object[][] EMPTY = new Object[0][];
+	private volatile Object[][] routes = EMPTY;
+
+	synchronized void add(int id, L route) {
+		Object[][] routes = Arrays.copyOf(this.routes, Math.max(this.routes.length, id + 1));
+		Object[] old = routes[id] == null ? NONE : routes[id];
+		Object[] added = Arrays.copyOf(old, old.length + 1);
+		added[old.length] = route;
+		routes[id] = added;
+		this.routes = routes;
+	}
+
+	synchronized void remove(int id, L route) {
+		if (id < 0 || id >= routes.length || routes[id] == null) {
+			return;
+		}
+		Object[] old = routes[id];
+		for (int i = 0; i < old.length; i++) {
+			if (old[i].equals(route)) {
+				Object[][] routes = this.routes.clone();
+				if (old.length == 1) {
+					routes[id] = null;
+				} else {
+					Object[] removed = new Object[old.length - 1];
+					System.arraycopy(old, 0, removed, 0, i);
+					System.arraycopy(old, i + 1, removed, i, removed.length - i);
+					routes[id] = removed;
+				}
+				this.routes = routes;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the routes for the id, each an {@code L}, or null if there are
+	 * none. The array must not be changed.
+	 */
+	Object[] get(int id) {
+		Object[][] routes = this.routes;
+		return id >= 0 && id < routes.length ? routes[id] : null;
+	}
+}
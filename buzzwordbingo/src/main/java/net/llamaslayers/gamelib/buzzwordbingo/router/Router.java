@@ -1,10 +1,10 @@
 package net.llamaslayers.gamelib.buzzwordbingo.router;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.llamaslayers.gamelib.networking.AbstractClient;
@@ -12,31 +12,95 @@ import net.llamaslayers.gamelib.networking.ServerClient;
 import net.llamaslayers.gamelib.scripting.Lua;
 import se.krka.kahlua.integration.annotations.*;
 import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaTableImpl;
 
 @LuaClass
 public class Router extends Thread {
-	private final Map<String, List<LuaClosure>> luaRoutes = new HashMap<String, List<LuaClosure>>();
-	private final Map<String, List<PacketRoute>> javaRoutes = new HashMap<String, List<PacketRoute>>();
+	/**
+	 * The most route ids the other side may define. Its ids come from its
+	 * {@link RouteRegistry}, one per label, so they stay small; larger ones
+	 * would only make this side allocate for them.
+	 */
+	static final int MAX_REMOTE_ROUTES = 1 << 14;
+	private final RouteTable<Route> routes = new RouteTable<Route>();
+	private volatile RoutePolicy luaPolicy = RoutePolicy.INLINE;
+	/**
+	 * The route ids the other side has been told about. An id is cleared
+	 * when the other side asks for it again.
+	 */
+	private final BitSet defined = new BitSet();
+	/**
+	 * The labels of the other side's route ids, and our ids for them, or -1
+	 * for labels we have no id for yet. Only used by the routing thread, or
+	 * by one of the dispatcher's at a time.
+	 */
+	private String[] remoteLabels = new String[0];
+	private int[] remoteRoutes = new int[0];
+	/**
+	 * The other side's route ids that it has been asked to define again, and
+	 * has not yet. Only used like {@link #remoteLabels}.
+	 */
+	private final BitSet requested = new BitSet();
 	private final Lua lua;
 	private final AbstractClient client;
 	private final ServerClient server;
+	private final RouterDispatcher dispatcher;
+	/**
+	 * The packets being routed and the batch routes they were given to. Only
+	 * used by the routing thread.
+	 */
+	private final List<Serializable> batch = new ArrayList<Serializable>();
+	private final List<LuaBatchRoute> batched = new ArrayList<LuaBatchRoute>();
+	private boolean batching;
+	private final Runnable ready = new Runnable() {
+		@Override
+		public void run() {
+			dispatcher.ready(Router.this);
+		}
+	};
 
+	/**
+	 * Routes the client's packets on this thread, which is started.
+	 */
 	public Router(Lua lua, AbstractClient client) {
-		this.lua = lua;
-		lua.exposer.exposeClass(Router.class);
-		lua.state.getEnvironment().rawset("router", this);
-		this.client = client;
-		this.server = null;
-		start();
+		this(lua, client, null, null);
 	}
 
+	/**
+	 * Routes the client's packets on this thread, which is started.
+	 */
 	public Router(Lua lua, ServerClient client) {
+		this(lua, null, client, null);
+	}
+
+	/**
+	 * Routes the client's packets with the dispatcher. This thread is never
+	 * started.
+	 */
+	public Router(Lua lua, AbstractClient client, RouterDispatcher dispatcher) {
+		this(lua, client, null, dispatcher);
+	}
+
+	/**
+	 * Routes the client's packets with the dispatcher. This thread is never
+	 * started.
+	 */
+	public Router(Lua lua, ServerClient client, RouterDispatcher dispatcher) {
+		this(lua, null, client, dispatcher);
+	}
+
+	private Router(Lua lua, AbstractClient client, ServerClient server, RouterDispatcher dispatcher) {
 		this.lua = lua;
 		lua.exposer.exposeClass(Router.class);
 		lua.state.getEnvironment().rawset("router", this);
-		this.client = null;
-		this.server = client;
-		start();
+		this.client = client;
+		this.server = server;
+		this.dispatcher = dispatcher;
+		if (dispatcher == null) {
+			start();
+		} else {
+			whenPacket();
+		}
 	}
 
 	@Override
@@ -44,85 +108,292 @@ public class Router extends Thread {
 		if (client == null) {
 			while (!server.finished()) {
 				try {
-					route(server.waitForPacket());
+					batch.add(server.waitForPacket());
 				} catch (InterruptedException ex) {
 					break;
 				}
+				server.drainTo(batch, RouterDispatcher.BATCH - 1);
+				routeBatch();
 			}
 		} else {
 			while (!client.finished()) {
 				try {
-					route(client.waitForPacket());
+					batch.add(client.waitForPacket());
 				} catch (InterruptedException ex) {
 					break;
 				}
+				client.drainTo(batch, RouterDispatcher.BATCH - 1);
+				routeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Routes up to {@code max} of the packets waiting, for the dispatcher,
+	 * then has it called again once there are more.
+	 *
+	 * @return the number of packets routed
+	 */
+	int routeWaiting(int max) {
+		try {
+			int count = client == null ? server.drainTo(batch, max) : client.drainTo(batch, max);
+			routeBatch();
+			return count;
+		} finally {
+			// Even when an Error got out, or the connection is not routed again.
+			if (!(client == null ? server.finished() : client.finished())) {
+				whenPacket();
+			}
+		}
+	}
+
+	/**
+	 * Routes the packets in {@link #batch}. Batch routes are called last.
+	 */
+	private void routeBatch() {
+		batching = true;
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				try {
+					route(batch.get(i));
+				} catch (RuntimeException ex) {
+					Logger.getLogger(Router.class.getCanonicalName()).log(Level.SEVERE, null, ex);
+				}
+			}
+			for (int i = 0; i < batched.size(); i++) {
+				try {
+					batched.get(i).callBatch();
+				} catch (RuntimeException ex) {
+					Logger.getLogger(Router.class.getCanonicalName()).log(Level.SEVERE, null, ex);
+				}
+			}
+		} finally {
+			batch.clear();
+			for (int i = 0; i < batched.size(); i++) {
+				// Left over if an Error got out before the batch was called.
+				batched.get(i).packets.clear();
 			}
+			batched.clear();
+			batching = false;
 		}
 	}
 
+	private void whenPacket() {
+		if (client == null)
+			server.whenPacket(ready);
+		else
+			client.whenPacket(ready);
+	}
+
 	private void route(Serializable packet) {
 		if (packet instanceof RoutablePacket) {
-			RoutablePacket rp = (RoutablePacket) packet;
-			boolean found = false;
-			if (luaRoutes.containsKey(rp.label)) {
-				for (LuaClosure route : luaRoutes.get(rp.label))
-					lua.state.pcall(route, new Object[] {rp.packet});
-				found = true;
+			route((RoutablePacket) packet);
+		} else if (packet instanceof RouteDefinition) {
+			RouteDefinition definition = (RouteDefinition) packet;
+			if (definition.id < 0 || definition.id >= MAX_REMOTE_ROUTES) {
+				Logger.getLogger(Router.class.getCanonicalName()).log(Level.WARNING, "Ignoring definition of route id {0}", definition.id);
+				return;
 			}
-			if (javaRoutes.containsKey(rp.label)) {
-				for (PacketRoute route : javaRoutes.get(rp.label))
-					route.route(rp.packet);
-				found = true;
+			requested.clear(definition.id);
+			if (definition.id >= remoteRoutes.length) {
+				int length = Math.min(Math.max(definition.id + 1, remoteRoutes.length * 2), MAX_REMOTE_ROUTES);
+				remoteLabels = Arrays.copyOf(remoteLabels, length);
+				remoteRoutes = Arrays.copyOf(remoteRoutes, length);
+			}
+			remoteLabels[definition.id] = definition.label;
+			remoteRoutes[definition.id] = RouteRegistry.ROUTES.find(definition.label);
+		} else if (packet instanceof RouteRequest) {
+			int id = ((RouteRequest) packet).id;
+			if (id >= 0) {
+				synchronized (defined) {
+					defined.clear(id);
+				}
 			}
-			Logger.getLogger(Router.class.getCanonicalName()).log(Level.WARNING, "Route not found: {0}", rp.label);
 		} else {
 			Logger.getLogger(Router.class.getCanonicalName()).log(Level.SEVERE, "Non-Router packet detected: {0}", packet.getClass().getCanonicalName());
 		}
 	}
 
+	private void route(RoutablePacket rp) {
+		int remote = rp.getRoute();
+		if (remote < 0 || remote >= remoteLabels.length || remoteLabels[remote] == null) {
+			// The definition may have been dropped; it comes with the next one.
+			Logger.getLogger(Router.class.getCanonicalName()).log(Level.WARNING, "Undefined route: {0}", remote);
+			if (remote >= 0 && remote < MAX_REMOTE_ROUTES && !requested.get(remote)) {
+				requested.set(remote);
+				write(new RouteRequest(remote));
+			}
+			return;
+		}
+		int id = remoteRoutes[remote];
+		if (id < 0) {
+			// Nothing was routed here when the label was defined.
+			id = remoteRoutes[remote] = RouteRegistry.ROUTES.find(remoteLabels[remote]);
+		}
+		if (!dispatch(id, rp.getPacket()))
+			Logger.getLogger(Router.class.getCanonicalName()).log(Level.WARNING, "Route not found: {0}", remoteLabels[remote]);
+	}
+
+	/**
+	 * Calls every route for a label.
+	 *
+	 * @param id the label's {@link RouteRegistry} id
+	 * @return false if there were none
+	 */
+	boolean dispatch(int id, Serializable packet) {
+		Object[] routes = this.routes.get(id);
+		if (routes == null)
+			return false;
+		for (int i = 0; i < routes.length; i++) {
+			Route route = (Route) routes[i];
+			route.policy.route(route, packet);
+		}
+		return true;
+	}
+
 	@LuaMethod
 	public void send(String label, Serializable packet) {
+		int id = RouteRegistry.ROUTES.id(label);
+		synchronized (defined) {
+			if (!defined.get(id)) {
+				write(new RouteDefinition(id, label));
+				defined.set(id);
+			}
+		}
+		write(new RoutablePacket(id, packet));
+	}
+
+	private void write(Serializable packet) {
 		if (client == null)
-			server.write(new RoutablePacket(label, packet));
+			server.write(packet);
 		else
-			client.write(new RoutablePacket(label, packet));
+			client.write(packet);
+	}
+
+	/**
+	 * Sets how Lua routes added after this are run. They all share the Lua
+	 * state, which runs one function at a time, so running them elsewhere
+	 * mostly keeps them from holding up Java routes.
+	 */
+	public void setLuaPolicy(RoutePolicy policy) {
+		luaPolicy = policy;
 	}
 
 	@LuaMethod
 	public void addRoute(String label, LuaClosure func) {
-		add(luaRoutes, label, func);
+		routes.add(RouteRegistry.ROUTES.id(label), new LuaRoute(lua, func, luaPolicy));
+	}
+
+	/**
+	 * Adds a route that is called with a table of all the packets for the
+	 * label that were routed together, in the order they arrived, instead of
+	 * once for each. Runs on the routing thread after the other routes for
+	 * those packets, whatever the Lua policy.
+	 */
+	@LuaMethod
+	public void addBatchRoute(String label, LuaClosure func) {
+		routes.add(RouteRegistry.ROUTES.id(label), new LuaBatchRoute(func));
 	}
 
 	public void addRoute(String label, PacketRoute func) {
-		add(javaRoutes, label, func);
+		addRoute(label, func, RoutePolicy.INLINE);
+	}
+
+	public void addRoute(String label, PacketRoute func, RoutePolicy policy) {
+		routes.add(RouteRegistry.ROUTES.id(label), new JavaRoute(func, policy));
 	}
 
 	@LuaMethod
 	public void removeRoute(String label, LuaClosure func) {
-		remove(luaRoutes, label, func);
+		routes.remove(RouteRegistry.ROUTES.find(label), new LuaRoute(lua, func, null));
+	}
+
+	@LuaMethod
+	public void removeBatchRoute(String label, LuaClosure func) {
+		routes.remove(RouteRegistry.ROUTES.find(label), new LuaBatchRoute(func));
 	}
 
 	public void removeRoute(String label, PacketRoute func) {
-		remove(javaRoutes, label, func);
+		routes.remove(RouteRegistry.ROUTES.find(label), new JavaRoute(func, null));
 	}
 
-	private static <L> void add(Map<String, List<L>> list, String name, L listener) {
-		synchronized (list) {
-			if (!list.containsKey(name)) {
-				list.put(name, new LinkedList<L>());
-			}
-			list.get(name).add(listener);
+	private static final class LuaRoute extends Route {
+		private final Lua lua;
+		private final LuaClosure func;
+
+		LuaRoute(Lua lua, LuaClosure func, RoutePolicy policy) {
+			super(policy);
+			this.lua = lua;
+			this.func = func;
+		}
+
+		@Override
+		Object function() {
+			return func;
+		}
+
+		@Override
+		void call(Serializable packet) {
+			lua.state.pcall(func, new Object[] {packet});
 		}
 	}
 
-	private static <L> void remove(Map<String, List<L>> list, String name, L listener) {
-		synchronized (list) {
-			if (list.containsKey(name)) {
-				list.get(name).remove(listener);
-				if (list.get(name).isEmpty()) {
-					list.remove(name);
-				}
+	private final class LuaBatchRoute extends Route {
+		private final LuaClosure func;
+		private final List<Serializable> packets = new ArrayList<Serializable>();
+
+		LuaBatchRoute(LuaClosure func) {
+			super(RoutePolicy.INLINE);
+			this.func = func;
+		}
+
+		@Override
+		Object function() {
+			return func;
+		}
+
+		@Override
+		void call(Serializable packet) {
+			if (!batching) {
+				lua.state.pcall(func, new Object[] {table(packet)});
+				return;
 			}
+			if (packets.isEmpty())
+				batched.add(this);
+			packets.add(packet);
+		}
+
+		void callBatch() {
+			LuaTableImpl table = new LuaTableImpl();
+			for (int i = 0; i < packets.size(); i++)
+				table.rawset(i + 1, packets.get(i));
+			packets.clear();
+			lua.state.pcall(func, new Object[] {table});
+		}
+
+		private LuaTableImpl table(Serializable packet) {
+			LuaTableImpl table = new LuaTableImpl();
+			table.rawset(1, packet);
+			return table;
+		}
+	}
+
+	private static final class JavaRoute extends Route {
+		private final PacketRoute func;
+
+		JavaRoute(PacketRoute func, RoutePolicy policy) {
+			super(policy);
+			this.func = func;
+		}
+
+		@Override
+		Object function() {
+			return func;
+		}
+
+		@Override
+		void call(Serializable packet) {
+			func.route(packet);
 		}
 	}
 }
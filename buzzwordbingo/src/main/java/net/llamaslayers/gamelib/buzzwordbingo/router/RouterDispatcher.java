@@ -0,0 +1,90 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes packets for many {@link Router}s, so the number of threads does not
+ * grow with the number of connections. Either a few threads of its own take
+ * turns routing for whichever connections have packets waiting, or nothing
+ * is routed until {@link #dispatch()} is called, such as once per game tick.
+ * Either way, a router's packets are routed by one thread at a time, in the
+ * order they arrived.
+ *
+ * Routes run on whichever thread is routing, unless their
+ * {@link RoutePolicy} says otherwise.
+ */
+public final class RouterDispatcher {
+	/**
+	 * The most packets a thread of its own routes for one router before
+	 * moving on to the next, and a router's own thread routes at once.
+	 */
+	static final int BATCH = 64;
+	private final LinkedBlockingQueue<Router> ready = new LinkedBlockingQueue<Router>();
+	private final Thread[] workers;
+
+	/**
+	 * Routes only when {@link #dispatch()} is called.
+	 */
+	public RouterDispatcher() {
+		workers = new Thread[0];
+	}
+
+	/**
+	 * Routes on {@code threads} threads of its own until {@link #stop()} is
+	 * called.
+	 */
+	public RouterDispatcher(int threads) {
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread("ROUTER#" + i) {
+				@Override
+				public void run() {
+					while (!isInterrupted()) {
+						try {
+							ready.take().routeWaiting(BATCH);
+						} catch (InterruptedException ex) {
+							break;
+						} catch (Throwable ex) { // Even an Error must not quietly end the thread.
+							Logger.getLogger(RouterDispatcher.class.getCanonicalName()).log(Level.SEVERE, null, ex);
+						}
+					}
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Routes every packet waiting for any router, on this thread.
+	 *
+	 * @return the number of packets routed
+	 */
+	public int dispatch() {
+		int routed = 0;
+		// Routers with more packets after this are ready again, for next time.
+		for (int i = ready.size(); i > 0; i--) {
+			Router router = ready.poll();
+			if (router == null) {
+				break;
+			}
+			routed += router.routeWaiting(Integer.MAX_VALUE);
+		}
+		return routed;
+	}
+
+	/**
+	 * Stops the dispatcher's threads. Packets already being routed still are.
+	 */
+	public void stop() {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	void ready(Router router) {
+		ready.add(router);
+	}
+}
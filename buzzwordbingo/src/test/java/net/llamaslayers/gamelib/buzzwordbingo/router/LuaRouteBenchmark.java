@@ -0,0 +1,178 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.llamaslayers.gamelib.networking.AbstractClient;
+import net.llamaslayers.gamelib.networking.AbstractServer;
+import net.llamaslayers.gamelib.networking.DisconnectPacket;
+import net.llamaslayers.gamelib.networking.ServerClient;
+import net.llamaslayers.gamelib.scripting.Lua;
+import se.krka.kahlua.vm.LuaClosure;
+
+/**
+ * Has 1, 4 and 16 clients each send 10,000 packets a second to a Lua route
+ * on a server routing with one dispatcher thread, and reports how many
+ * packets a second reached the route. Compares calling the Lua state once
+ * per packet from a Java route and from a Lua route with a batch route
+ * called once per batch.
+ *
+ * Usage: LuaRouteBenchmark [seconds per run]
+ */
+public final class LuaRouteBenchmark {
+	private static final int PORT = 4303;
+	private static final int RATE = 10000;
+
+	private LuaRouteBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		for (int pass = 0; pass < 2; pass++) { // The first pass warms up.
+			for (int clients : new int[] {1, 4, 16}) {
+				for (Mode mode : Mode.values()) {
+					run(mode, clients, pass == 0 ? 1 : seconds);
+				}
+			}
+		}
+	}
+
+	private enum Mode {
+		/**
+		 * A Java route calling the Lua state for each packet.
+		 */
+		PCALL,
+		/**
+		 * A Lua route.
+		 */
+		ROUTE,
+		/**
+		 * A Lua batch route.
+		 */
+		BATCH
+	}
+
+	private static void run(Mode mode, int clients, int seconds) throws Exception {
+		Server server = new Server(PORT, mode);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		List<AbstractClient> connections = new ArrayList<AbstractClient>();
+		List<Router> routers = new ArrayList<Router>();
+		List<Thread> senders = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (int i = 0; i < clients; i++) {
+			AbstractClient client = new AbstractClient(server) {
+			};
+			client.start();
+			connections.add(client);
+			final Router router = new Router(new Lua(), client);
+			routers.add(router);
+			Thread sender = new Thread("Sender #" + i) {
+				@Override
+				public void run() {
+					// Ten packets every millisecond.
+					long next = System.nanoTime();
+					int sent = 0;
+					while (next < end) {
+						for (int j = 0; j < RATE / 1000; j++) {
+							router.send("move", Integer.valueOf(sent++));
+						}
+						next += TimeUnit.MILLISECONDS.toNanos(1);
+						long sleep = next - System.nanoTime();
+						if (sleep > 0) {
+							try {
+								TimeUnit.NANOSECONDS.sleep(sleep);
+							} catch (InterruptedException ex) {
+								return;
+							}
+						}
+					}
+				}
+			};
+			sender.start();
+			senders.add(sender);
+		}
+
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		double routed = server.routed();
+		System.out.printf("%-5s %2d clients: offered %7d packets/s, routed %7.0f packets/s, %6.0f ns of routing CPU time per packet%n", mode, clients,
+				clients * RATE, routed * 1e9 / elapsed, server.routingCpuNanos() / routed);
+
+		for (AbstractClient client : connections) {
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+		}
+		for (Router router : routers) {
+			router.interrupt();
+		}
+		server.dispatcher.stop();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static final class Server extends AbstractServer {
+		final Lua lua = new Lua();
+		final RouterDispatcher dispatcher = new RouterDispatcher(1);
+		private final Mode mode;
+		private final LuaClosure route;
+
+		Server(int port, Mode mode) throws Exception {
+			super(port);
+			this.mode = mode;
+			lua.run("routed = 0");
+			if (mode == Mode.BATCH) {
+				route = (LuaClosure) lua.run("return function(packets) routed = routed + #packets end")[0];
+			} else {
+				route = (LuaClosure) lua.run("return function(packet) routed = routed + 1 end")[0];
+			}
+		}
+
+		/**
+		 * @return the CPU time used by the dispatcher's thread so far
+		 */
+		long routingCpuNanos() {
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				if (thread.getName().equals("ROUTER#0")) { // The last run's has stopped.
+					return ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+				}
+			}
+			return 0;
+		}
+
+		double routed() {
+			lua.state.lock();
+			try {
+				return (Double) lua.state.getEnvironment().rawget("routed");
+			} finally {
+				lua.state.unlock();
+			}
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			Router router = new Router(lua, client, dispatcher);
+			switch (mode) {
+			case PCALL:
+				router.addRoute("move", new PacketRoute() {
+					@Override
+					public void route(Serializable packet) {
+						lua.state.pcall(route, new Object[] {packet});
+					}
+				});
+				break;
+			case ROUTE:
+				router.addRoute("move", route);
+				break;
+			case BATCH:
+				router.addBatchRoute("move", route);
+				break;
+			}
+		}
+	}
+}
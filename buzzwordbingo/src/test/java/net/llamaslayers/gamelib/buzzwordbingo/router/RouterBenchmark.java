@@ -0,0 +1,107 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.IOException;
+import java.io.Serializable;
+import net.llamaslayers.gamelib.networking.AbstractClient;
+import net.llamaslayers.gamelib.networking.AbstractServer;
+import net.llamaslayers.gamelib.networking.ServerClient;
+import net.llamaslayers.gamelib.scripting.Lua;
+
+/**
+ * Measures routing a packet to a label with 1, 10 and 100 Java routes, while
+ * another thread keeps adding and removing a route on a different label.
+ * Reports nanoseconds per packet and per route called.
+ *
+ * Usage: RouterBenchmark [packets]
+ */
+public final class RouterBenchmark {
+	private static final int PORT = 4301;
+	private static volatile long sink;
+
+	private RouterBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		Server server = new Server(PORT);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		AbstractClient client = new AbstractClient(server) {
+		};
+		client.start();
+		Router router = new Router(new Lua(), client);
+
+		for (int i = 0; i < 2; i++) { // The first pass warms up.
+			for (int handlers : new int[] {1, 10, 100}) {
+				run(router, handlers, packets / handlers);
+			}
+		}
+
+		router.interrupt();
+		client.interrupt();
+		server.router.interrupt();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static void run(final Router router, int handlers, int packets) throws InterruptedException {
+		String label = "benchmark" + handlers;
+		Counter[] counters = new Counter[handlers];
+		for (int i = 0; i < handlers; i++) {
+			counters[i] = new Counter();
+			router.addRoute(label, counters[i]);
+		}
+		int id = RouteRegistry.ROUTES.id(label);
+
+		Thread churn = new Thread("Route churn") {
+			@Override
+			public void run() {
+				Counter counter = new Counter();
+				while (!isInterrupted()) {
+					router.addRoute("churn", counter);
+					router.removeRoute("churn", counter);
+				}
+			}
+		};
+		churn.start();
+		Integer packet = Integer.valueOf(1);
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			router.dispatch(id, packet);
+		}
+		long elapsed = System.nanoTime() - start;
+		churn.interrupt();
+		churn.join();
+
+		long total = 0;
+		for (Counter counter : counters) {
+			total += counter.count;
+			router.removeRoute(label, counter);
+		}
+		sink = total;
+		System.out.printf("%3d routes: %8.1f ns/packet, %6.2f ns/route%n", handlers,
+				(double) elapsed / packets, (double) elapsed / packets / handlers);
+	}
+
+	private static final class Counter implements PacketRoute {
+		long count;
+
+		@Override
+		public void route(Serializable packet) {
+			count++;
+		}
+	}
+
+	private static final class Server extends AbstractServer {
+		volatile Router router;
+
+		Server(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			router = new Router(new Lua(), client);
+		}
+	}
+}
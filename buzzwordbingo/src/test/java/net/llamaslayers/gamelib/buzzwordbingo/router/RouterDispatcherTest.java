@@ -0,0 +1,141 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.llamaslayers.gamelib.networking.AbstractClient;
+import net.llamaslayers.gamelib.networking.AbstractServer;
+import net.llamaslayers.gamelib.networking.ServerClient;
+import net.llamaslayers.gamelib.scripting.Lua;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RouterDispatcherTest {
+	private static final int SERVER_PORT = 4302;
+	private static final int CLIENTS = 8;
+	private Server server;
+	private Thread serverThread;
+	private final List<AbstractClient> clients = new ArrayList<AbstractClient>();
+	private final List<Router> clientRouters = new ArrayList<Router>();
+	private final BlockingQueue<String> routed = new LinkedBlockingQueue<String>();
+
+	private void start(RouterDispatcher dispatcher) throws IOException {
+		server = new Server(SERVER_PORT, dispatcher, routed);
+		serverThread = new Thread(server);
+		serverThread.start();
+		for (int i = 0; i < CLIENTS; i++) {
+			AbstractClient client = new AbstractClient(server) {
+			};
+			client.start();
+			clients.add(client);
+			clientRouters.add(new Router(new Lua(), client));
+		}
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		for (Router router : clientRouters) {
+			router.interrupt();
+		}
+		for (AbstractClient client : clients) {
+			client.interrupt();
+		}
+		server.dispatcher.stop();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static class Server extends AbstractServer {
+		final Lua lua = new Lua();
+		final RouterDispatcher dispatcher;
+		final PacketRoute route;
+
+		Server(int port, RouterDispatcher dispatcher, final BlockingQueue<String> routed) throws IOException {
+			super(port);
+			this.dispatcher = dispatcher;
+			this.route = new PacketRoute() {
+				@Override
+				public void route(Serializable packet) {
+					routed.add(Thread.currentThread().getName() + " " + packet);
+				}
+			};
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			Router router = new Router(lua, client, dispatcher);
+			router.addRoute("move", route);
+			router.addRoute("error", new PacketRoute() {
+				@Override
+				public void route(Serializable packet) {
+					throw new Error("from a route");
+				}
+			});
+		}
+	}
+
+	private void send(int packets) {
+		for (int i = 0; i < packets; i++) {
+			for (int client = 0; client < CLIENTS; client++) {
+				clientRouters.get(client).send("move", client + ":" + i);
+			}
+		}
+	}
+
+	/**
+	 * Checks every client's packets arrived in order.
+	 */
+	private void assertRouted(int packets, String thread) throws InterruptedException {
+		int[] next = new int[CLIENTS];
+		for (int i = 0; i < packets * CLIENTS; i++) {
+			String packet = routed.poll(5, TimeUnit.SECONDS);
+			assertNotNull(packet);
+			assertTrue(packet, packet.startsWith(thread));
+			String[] move = packet.substring(packet.indexOf(' ') + 1).split(":");
+			int client = Integer.parseInt(move[0]);
+			assertEquals(next[client]++, Integer.parseInt(move[1]));
+		}
+	}
+
+	@Test
+	public void testDispatchOnCallingThread() throws Exception {
+		start(new RouterDispatcher());
+		send(20);
+		Thread.sleep(200);
+		assertTrue("nothing is routed until dispatch is called", routed.isEmpty());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (routed.size() < 20 * CLIENTS && System.currentTimeMillis() < deadline) {
+			server.dispatcher.dispatch();
+			Thread.sleep(10);
+		}
+		assertRouted(20, Thread.currentThread().getName());
+	}
+
+	@Test
+	public void testDispatcherThreads() throws Exception {
+		start(new RouterDispatcher(2));
+		send(200);
+		assertRouted(200, "ROUTER#");
+		int routers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("ROUTER#")) {
+				routers++;
+			}
+		}
+		assertEquals(2, routers);
+	}
+
+	@Test
+	public void testErrorInRoute() throws Exception {
+		start(new RouterDispatcher(1));
+		clientRouters.get(0).send("error", 0);
+		Thread.sleep(200);
+		send(20);
+		assertRouted(20, "ROUTER#");
+	}
+}
@@ -0,0 +1,409 @@
+package net.llamaslayers.gamelib.buzzwordbingo.router;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.llamaslayers.gamelib.networking.AbstractClient;
+import net.llamaslayers.gamelib.networking.AbstractServer;
+import net.llamaslayers.gamelib.networking.NetworkOptions;
+import net.llamaslayers.gamelib.networking.OverflowPolicy;
+import net.llamaslayers.gamelib.networking.ServerClient;
+import net.llamaslayers.gamelib.scripting.Lua;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RouterTest {
+	private static final int SERVER_PORT = 4300;
+	private static final int DROPPING_SERVER_PORT = 4304;
+	private Server server;
+	private Thread serverThread;
+	private AbstractClient client;
+	private Router clientRouter;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new Server(SERVER_PORT);
+		serverThread = new Thread(server);
+		serverThread.start();
+		client = new AbstractClient(server) {
+		};
+		client.start();
+		clientRouter = new Router(new Lua(), client);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		clientRouter.interrupt();
+		client.interrupt();
+		server.router.interrupt();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static class Server extends AbstractServer {
+		final Lua lua = new Lua();
+		volatile Router router;
+
+		Server(int port) throws IOException {
+			super(port);
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			router = new Router(lua, client);
+		}
+	}
+
+	private static class Collector implements PacketRoute {
+		final BlockingQueue<Serializable> packets = new LinkedBlockingQueue<Serializable>();
+
+		@Override
+		public void route(Serializable packet) {
+			packets.add(packet);
+		}
+	}
+
+	@Test
+	public void testJavaRoute() throws InterruptedException {
+		Collector chat = new Collector();
+		Collector move = new Collector();
+		server.router.addRoute("chat", chat);
+		server.router.addRoute("move", move);
+		clientRouter.send("chat", "hello");
+		clientRouter.send("move", 3);
+		clientRouter.send("chat", "again");
+		assertEquals("hello", chat.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals("again", chat.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(3, move.packets.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRouteAddedLater() throws InterruptedException {
+		Collector first = new Collector();
+		server.router.addRoute("first", first);
+		clientRouter.send("late", "lost");
+		clientRouter.send("first", "marker");
+		assertEquals("marker", first.packets.poll(5, TimeUnit.SECONDS));
+
+		// The label was defined before anything was routed to it.
+		Collector late = new Collector();
+		server.router.addRoute("late", late);
+		clientRouter.send("late", "found");
+		assertEquals("found", late.packets.poll(5, TimeUnit.SECONDS));
+		assertTrue(late.packets.isEmpty());
+	}
+
+	@Test
+	public void testRemoveRoute() throws InterruptedException {
+		Collector removed = new Collector();
+		Collector kept = new Collector();
+		server.router.addRoute("removed", removed);
+		server.router.addRoute("kept", kept);
+		server.router.removeRoute("removed", removed);
+		clientRouter.send("removed", "dropped");
+		clientRouter.send("kept", "kept");
+		assertEquals("kept", kept.packets.poll(5, TimeUnit.SECONDS));
+		assertTrue(removed.packets.isEmpty());
+	}
+
+	@Test
+	public void testRouteRemovesItself() throws InterruptedException {
+		final Collector once = new Collector() {
+			@Override
+			public void route(Serializable packet) {
+				super.route(packet);
+				server.router.removeRoute("once", this);
+			}
+		};
+		Collector marker = new Collector();
+		server.router.addRoute("once", once);
+		server.router.addRoute("once", marker);
+		clientRouter.send("once", 1);
+		clientRouter.send("once", 2);
+		assertEquals(1, marker.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(2, marker.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(1, once.packets.poll());
+		assertTrue(once.packets.isEmpty());
+	}
+
+	@Test
+	public void testSlowRouteOnExecutor() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Collector slow = new Collector() {
+			@Override
+			public void route(Serializable packet) {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				super.route(packet);
+			}
+		};
+		Collector fast = new Collector();
+		server.router.addRoute("slow", slow, RoutePolicy.ordered(executor));
+		server.router.addRoute("fast", fast);
+		clientRouter.send("slow", 1);
+		clientRouter.send("slow", 2);
+		clientRouter.send("fast", 3);
+		assertEquals(3, fast.packets.poll(5, TimeUnit.SECONDS));
+		assertTrue(slow.packets.isEmpty());
+		release.countDown();
+		assertEquals(1, slow.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(2, slow.packets.poll(5, TimeUnit.SECONDS));
+		executor.shutdown();
+	}
+
+	@Test
+	public void testRejectedPacketsAreRoutedHere() throws InterruptedException {
+		final int id = RouteRegistry.ROUTES.id("rejected");
+		Executor rejecting = new Executor() {
+			private boolean first = true;
+
+			@Override
+			public void execute(Runnable command) {
+				if (first) {
+					// Another packet is queued behind the rejected one.
+					first = false;
+					server.router.dispatch(id, 2);
+				}
+				throw new RejectedExecutionException();
+			}
+		};
+		Collector rejected = new Collector();
+		server.router.addRoute("rejected", rejected, RoutePolicy.ordered(rejecting));
+		clientRouter.send("rejected", 1);
+		clientRouter.send("rejected", 3);
+		assertEquals(1, rejected.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(2, rejected.packets.poll(5, TimeUnit.SECONDS));
+		assertEquals(3, rejected.packets.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testOrderedPerKey() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+		for (int i = 0; i < 4; i++) {
+			seen.add(new ArrayList<Integer>());
+		}
+		final CountDownLatch done = new CountDownLatch(400);
+		server.router.addRoute("move", new PacketRoute() {
+			@Override
+			public void route(Serializable packet) {
+				int[] move = (int[]) packet;
+				// Only one thread at a time sees each entity.
+				seen.get(move[0]).add(move[1]);
+				done.countDown();
+			}
+		}, RoutePolicy.ordered(executor, new RouteKey() {
+			@Override
+			public Object key(Serializable packet) {
+				return ((int[]) packet)[0];
+			}
+		}));
+		for (int i = 0; i < 100; i++) {
+			for (int entity = 0; entity < 4; entity++) {
+				clientRouter.send("move", new int[] {entity, i});
+			}
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		for (List<Integer> moves : seen) {
+			assertEquals(100, moves.size());
+			for (int i = 0; i < 100; i++) {
+				assertEquals(i, (int) moves.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testLuaPolicy() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		server.router.setLuaPolicy(RoutePolicy.ordered(executor));
+		server.lua.run("router:addRoute('lua', function(packet) received = packet end)");
+		final CountDownLatch release = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+				}
+			}
+		});
+		Collector java = new Collector();
+		server.router.addRoute("java", java);
+		clientRouter.send("lua", "from the client");
+		clientRouter.send("java", "not held up");
+		assertEquals("not held up", java.packets.poll(5, TimeUnit.SECONDS));
+		assertNull(server.lua.state.getEnvironment().rawget("received"));
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals("from the client", server.lua.state.getEnvironment().rawget("received"));
+	}
+
+	@Test
+	public void testLuaRoute() throws Exception {
+		server.lua.run("router:addRoute('lua', function(packet) received = packet end)");
+		clientRouter.send("lua", "from the client");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.lua.state.getEnvironment().rawget("received") == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("from the client", server.lua.state.getEnvironment().rawget("received"));
+	}
+
+	@Test
+	public void testJavaRouteRunsWithoutLuaLock() throws Exception {
+		server.lua.run("router:addRoute('mixed', function(packet) end)");
+		final Collector unlocked = new Collector();
+		server.router.addRoute("mixed", new PacketRoute() {
+			@Override
+			public void route(Serializable packet) {
+				Thread other = new Thread() {
+					@Override
+					public void run() {
+						try {
+							server.lua.run("other = 1");
+						} catch (Exception ex) {
+						}
+					}
+				};
+				other.start();
+				try {
+					other.join(5000);
+				} catch (InterruptedException ex) {
+					return;
+				}
+				unlocked.route(!other.isAlive());
+			}
+		});
+		clientRouter.send("mixed", 1);
+		assertEquals("other threads should be able to run Lua", true, unlocked.packets.poll(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testBatchRoute() throws Exception {
+		server.lua.run("count = 0 batches = 0\n"
+				+ "router:addBatchRoute('batch', function(packets)\n"
+				+ "  for i = 1, #packets do\n"
+				+ "    assert(packets[i] == 'packet ' .. count, 'out of order')\n"
+				+ "    count = count + 1\n"
+				+ "  end\n"
+				+ "  batches = batches + 1\n"
+				+ "end)");
+		for (int i = 0; i < 200; i++) {
+			clientRouter.send("batch", "packet " + i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!Double.valueOf(200).equals(server.lua.state.getEnvironment().rawget("count")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(200.0, server.lua.state.getEnvironment().rawget("count"));
+		double batches = (Double) server.lua.state.getEnvironment().rawget("batches");
+		assertTrue(batches >= 200 / RouterDispatcher.BATCH && batches <= 200);
+	}
+
+	@Test
+	public void testBothDirections() throws InterruptedException {
+		Collector reply = new Collector();
+		clientRouter.addRoute("reply", reply);
+		server.router.send("reply", "from the server");
+		assertEquals("from the server", reply.packets.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testHugeRouteIdIsIgnored() throws InterruptedException {
+		Collector chat = new Collector();
+		server.router.addRoute("chat", chat);
+		client.write(new RouteDefinition(0x7FFFFFF0, "huge"));
+		client.write(new RouteDefinition(-1, "negative"));
+		clientRouter.send("chat", "still routed");
+		assertEquals("still routed", chat.packets.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testUndefinedRouteIsRequestedOnce() throws InterruptedException {
+		// Read the client's packets here instead.
+		clientRouter.interrupt();
+		clientRouter.join();
+		for (int i = 0; i < 10; i++) {
+			client.write(new RoutablePacket(5000, i));
+		}
+		Serializable request = client.waitForPacket(5000);
+		assertTrue(request instanceof RouteRequest);
+		assertEquals(5000, ((RouteRequest) request).id);
+		Thread.sleep(200);
+		assertNull("the route should only be requested once", client.queryPacket());
+
+		client.write(new RouteDefinition(5000, "requested"));
+		client.write(new RoutablePacket(6000, 0));
+		request = client.waitForPacket(5000);
+		assertEquals(6000, ((RouteRequest) request).id);
+		client.write(new RoutablePacket(5000, 0));
+		Thread.sleep(200);
+		assertNull("a defined route should not be requested", client.queryPacket());
+	}
+
+	@Test
+	public void testDroppedDefinitionIsSentAgain() throws Exception {
+		NetworkOptions options = new NetworkOptions().setInboundQueueCapacity(4).setInboundOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		final BlockingQueue<ServerClient> connections = new LinkedBlockingQueue<ServerClient>();
+		AbstractServer dropping = new AbstractServer(DROPPING_SERVER_PORT, options) {
+			@Override
+			public void handleNewConnection(ServerClient client) {
+				connections.add(client);
+			}
+		};
+		Thread droppingThread = new Thread(dropping);
+		droppingThread.start();
+		AbstractClient sender = new AbstractClient(InetAddress.getLocalHost(), DROPPING_SERVER_PORT) {
+		};
+		sender.start();
+		Router senderRouter = new Router(new Lua(), sender);
+		Router receiver = null;
+		try {
+			ServerClient connection = connections.poll(5, TimeUnit.SECONDS);
+			// Nothing reads the connection yet, so the definition is dropped.
+			for (int i = 0; i < 20; i++) {
+				senderRouter.send("dropped", i);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (connection.getMetrics().getInboundDropped() < 17 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("the definition and 16 packets", 17, connection.getMetrics().getInboundDropped());
+
+			Collector dropped = new Collector();
+			receiver = new Router(new Lua(), connection);
+			receiver.addRoute("dropped", dropped);
+			Serializable packet = null;
+			for (int i = 20; packet == null && i < 100; i++) {
+				senderRouter.send("dropped", i);
+				packet = dropped.packets.poll(100, TimeUnit.MILLISECONDS);
+			}
+			assertNotNull("the definition should be sent again", packet);
+		} finally {
+			if (receiver != null) {
+				receiver.interrupt();
+			}
+			senderRouter.interrupt();
+			sender.interrupt();
+			dropping.stop();
+			droppingThread.join();
+		}
+	}
+}
@@ -1,128 +1,434 @@
 package net.llamaslayers.gamelib.networking;
 
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 
 public abstract class AbstractClient extends Thread {
-	private final Socket socket;
-	private final AtomicReference<ObjectInputStream> in;
-	private final AtomicReference<ObjectOutputStream> out;
-	private final NoCloseInputStream _in;
-	private final NoCloseOutputStream _out;
-	private final Deque<Serializable> queue = new LinkedList<Serializable>();
+	/**
+	 * Tells apart the metrics of clients with the same metrics name.
+	 */
+	private static final AtomicInteger METRICS_IDS = new AtomicInteger();
+	/**
+	 * How long to wait between attempts to resume a session.
+	 */
+	private static final long RESUME_RETRY_MILLIS = 250;
+	private final ResumableTransport transport;
+	private final OutboundQueue outbound;
+	private final PacketReader reader;
+	private final InboundQueue queue;
+	private final PacketNotifier notifier = new PacketNotifier();
+	private final OverflowPolicy inboundPolicy;
+	private final ConnectionMetrics metrics;
+	private final UnreliableChannel channel;
+	private final UnreliableEndpoint unreliable;
+	private final InetSocketAddress server;
+	private final Heartbeat heartbeat;
+	private final long sessionTimeout;
+	/**
+	 * The token to resume the session with, or 0 if the server has not sent
+	 * one. Only used by the thread reading the connection.
+	 */
+	private long session;
+	/**
+	 * The number of frames read. Only used by the thread reading the
+	 * connection.
+	 */
+	private long framesRead;
 
 	public AbstractClient(InetAddress ip, int port) throws IOException {
-		socket = new Socket(ip, port);
-		socket.getOutputStream().write('C');
-		_out = new NoCloseOutputStream(socket.getOutputStream());
-		out = new AtomicReference<ObjectOutputStream>(new ObjectOutputStream(_out));
-		int serverInit = socket.getInputStream().read();
-		if (serverInit != 'S') {
-			throw new IOException("Server INIT " + (char) serverInit + " != S");
+		this(ip, port, new NetworkOptions());
+	}
+
+	public AbstractClient(InetAddress ip, int port, NetworkOptions options) throws IOException {
+		metrics = new ConnectionMetrics(null, options.isDetailedMetrics());
+		reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+		queue = new InboundQueue(options.getInboundQueueCapacity(), options.getInboundQueueBytes(), metrics);
+		inboundPolicy = options.getInboundOverflowPolicy();
+		server = new InetSocketAddress(ip, port);
+		sessionTimeout = options.getSessionTimeout();
+		SocketTransport socket;
+		if (options.isUnreliableChannel()) {
+			channel = new UnreliableChannel(new DatagramSocket(), options.getPacketRegistry());
+			unreliable = new UnreliableEndpoint(channel, false, options, metrics);
+			try {
+				socket = connect(ip, port, 'U', options);
+			} catch (IOException ex) {
+				channel.close();
+				throw ex;
+			}
+			channel.start();
+		} else {
+			channel = null;
+			unreliable = null;
+			socket = connect(ip, port, 'C', options);
+		}
+		transport = new ResumableTransport(socket, sessionTimeout > 0 ? options.getReplayBufferBytes() : 0);
+		outbound = new OutboundQueue(transport, options, metrics);
+		heartbeat = createHeartbeat(options);
+		registerMetrics(options);
+	}
+
+	public AbstractClient(AbstractServer server) throws IOException {
+		this(server, new NetworkOptions());
+	}
+
+	/**
+	 * Connects to a server in the same process through memory instead of a
+	 * socket. Packets are still encoded and decoded, so they are copied just
+	 * as they would be over the network, but nothing goes through the
+	 * operating system. Sessions and the unreliable channel are not used.
+	 */
+	public AbstractClient(AbstractServer server, NetworkOptions options) throws IOException {
+		metrics = new ConnectionMetrics(null, options.isDetailedMetrics());
+		reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+		queue = new InboundQueue(options.getInboundQueueCapacity(), options.getInboundQueueBytes(), metrics);
+		inboundPolicy = options.getInboundOverflowPolicy();
+		this.server = null;
+		sessionTimeout = 0;
+		channel = null;
+		unreliable = null;
+		transport = new ResumableTransport(server.connectLocal(), 0);
+		outbound = new OutboundQueue(transport, options, metrics);
+		heartbeat = createHeartbeat(options);
+		registerMetrics(options);
+	}
+
+	private Heartbeat createHeartbeat(NetworkOptions options) {
+		return new Heartbeat(options, metrics) {
+			@Override
+			void send(PingPacket ping) throws IOException {
+				outbound.write(ping);
+			}
+
+			@Override
+			void idle(long millis) {
+				if (sessionTimeout > 0) {
+					// The reading thread notices and tries to resume.
+					transport.detach();
+					return;
+				}
+				Logger.getLogger(AbstractClient.class.getName()).log(Level.WARNING, "Nothing received from the server for {0} ms, disconnecting", millis);
+				interrupt();
+				try {
+					transport.close();
+				} catch (IOException ex) {
+					Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+		};
+	}
+
+	private void registerMetrics(NetworkOptions options) {
+		if (options.getMetricsName() != null) {
+			metrics.register("type=Client,name=" + ObjectName.quote(options.getMetricsName()) + ",id=" + METRICS_IDS.incrementAndGet());
+		}
+	}
+
+	private static SocketTransport connect(InetAddress ip, int port, char init, NetworkOptions options) throws IOException {
+		Socket socket = new Socket(ip, port);
+		try {
+			socket.setSoTimeout((int) Math.min(options.getIdleTimeout(), Integer.MAX_VALUE));
+			SocketTransport transport = SocketTransport.handshake(socket, init, 'S');
+			socket.setSoTimeout(0); // The heartbeat notices idle connections from now on.
+			return transport;
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
 		}
-		_in = new NoCloseInputStream(socket.getInputStream());
-		in = new AtomicReference<ObjectInputStream>(new ObjectInputStream(_in));
 	}
 
 	@Override
 	public void run() {
+		heartbeat.start();
 		while (!interrupted()) {
 			try {
-				Serializable s = (Serializable) in.get().readObject();
-				if (s instanceof DisconnectPacket) {
+				BlockingTransport socket = transport.current();
+				if (socket == null) {
+					throw new EOFException();
+				}
+				ByteBuffer frame = socket.readFrame();
+				int size = frame.remaining();
+				framesRead++;
+				heartbeat.received();
+				if (metrics.isDetailed()) {
+					metrics.received(size);
+				}
+				Serializable s = reader.decode(frame);
+				if (s == null) {
+					continue;
+				} else if (s instanceof DisconnectPacket) {
 					if (!((DisconnectPacket) s).response) {
 						write(DisconnectPacket.DISCONNECT_ACK);
 					}
 					interrupt();
-				} else {
-					synchronized (queue) {
-						queue.add(s);
-						queue.notify();
+				} else if (s instanceof PingPacket) {
+					heartbeat.received((PingPacket) s);
+				} else if (s instanceof SessionToken) {
+					if (sessionTimeout > 0) {
+						session = ((SessionToken) s).token;
 					}
-					in.get().close();
-					in.set(new ObjectInputStream(_in));
+				} else if (s instanceof ChannelToken) {
+					if (unreliable != null) {
+						unreliable.open(((ChannelToken) s).token, server);
+					}
+				} else {
+					received(s, size);
 				}
 			} catch (EOFException ex) {
-				interrupt();
+				if (!resumeSession()) {
+					interrupt();
+				}
 			} catch (IOException ex) {
-				Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
-				interrupt();
+				if (session == 0 && !transport.isClosed())
+					Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
+				if (!resumeSession()) {
+					interrupt();
+				}
 			} catch (ClassNotFoundException ex) {
 				Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
 				interrupt();
 			}
 		}
+		heartbeat.stop();
+		flush();
 		try {
-			in.get().close();
-			out.get().close();
-			socket.close();
+			transport.close();
 		} catch (IOException ex) {
 			Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+			notifier.closed();
+			metrics.unregister();
+		}
+	}
+
+	/**
+	 * Reconnects after the connection was lost, if the server gave this
+	 * client a session, and carries on where the old connection left off.
+	 *
+	 * @return false if the session could not be resumed in time
+	 */
+	private boolean resumeSession() {
+		if (session == 0 || isInterrupted()) {
+			return false;
+		}
+		transport.detach();
+		heartbeat.stop();
+		long deadline = System.currentTimeMillis() + sessionTimeout;
+		while (!isInterrupted()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			Socket socket = new Socket();
+			try {
+				socket.connect(server, (int) Math.min(remaining, Integer.MAX_VALUE));
+				socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+				SocketTransport.handshake(socket, 'R', "S");
+				ByteBuffer request = ByteBuffer.allocate(16);
+				request.putLong(session).putLong(framesRead);
+				socket.getOutputStream().write(request.array());
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				int reply = in.read();
+				if (reply < 0) {
+					throw new EOFException();
+				} else if (reply != 'R') {
+					socket.close();
+					break; // The server no longer has the session.
+				}
+				long received = in.readLong();
+				socket.setSoTimeout(0);
+				if (!transport.resume(SocketTransport.open(socket), received, null)) {
+					socket.close();
+					break;
+				}
+				heartbeat.start();
+				return true;
+			} catch (IOException ex) {
+				try {
+					socket.close();
+					Thread.sleep(Math.min(RESUME_RETRY_MILLIS, Math.max(deadline - System.currentTimeMillis(), 0)));
+				} catch (IOException e) {
+					Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, e);
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		}
+		Logger.getLogger(AbstractClient.class.getName()).log(Level.WARNING, "Could not resume the session, disconnecting");
+		return false;
+	}
+
+	private void received(Serializable packet, int size) {
+		if (queue.offer(packet, size)) {
+			return;
+		}
+		switch (inboundPolicy) {
+		case BLOCK:
+			if (!queue.put(packet, size)) { // Interrupted while waiting.
+				interrupt();
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(packet, size)) {
+				queue.dropOldest();
+				metrics.inboundDropped(1);
+			}
+			break;
+		case DROP_NEWEST:
+			metrics.inboundDropped(1);
+			break;
+		default:
+			Logger.getLogger(AbstractClient.class.getName()).log(Level.WARNING, "Inbound queue is full, disconnecting");
+			metrics.overflowDisconnect();
+			interrupt();
 		}
 	}
 
 	public void write(Serializable packet) {
+		write(packet, 0);
+	}
+
+	/**
+	 * Sends a packet on one of the connection's
+	 * {@link NetworkOptions#setLanes(int) lanes}. Packets on the same lane
+	 * arrive in the order they were written, but may overtake or be overtaken
+	 * by packets on other lanes.
+	 *
+	 * @throws IllegalArgumentException if there is no such lane
+	 */
+	public void write(Serializable packet, int lane) {
 		if (!isAlive()) {
 			throw new IllegalStateException("Client thread has not been started before write.");
 		}
 		if (packet == null) { // Don't send null packets.
 			return;
 		}
-		synchronized (out) {
-			try {
-				out.get().writeObject(packet);
-				out.get().flush();
-				out.get().close();
-				out.set(new ObjectOutputStream(_out));
-			} catch (IOException ex) {
-				Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
-				interrupt();
+		try {
+			outbound.write(packet, lane);
+		} catch (IOException ex) {
+			Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
+			interrupt();
+		}
+	}
+
+	/**
+	 * Sends a packet over the unreliable channel, if
+	 * {@link NetworkOptions#setUnreliableChannel(boolean)} is on. The packet
+	 * may be lost, and is dropped by the server if a newer packet of the same
+	 * class arrives first. Packets are sent with {@link #write(Serializable)}
+	 * instead until the server has set up the channel, and if they do not fit
+	 * in a datagram.
+	 */
+	public void writeUnreliable(Serializable packet) {
+		if (!isAlive()) {
+			throw new IllegalStateException("Client thread has not been started before write.");
+		}
+		if (packet == null) { // Don't send null packets.
+			return;
+		}
+		try {
+			if (unreliable != null && unreliable.write(packet)) {
+				return;
 			}
+		} catch (IOException ex) {
+			Logger.getLogger(AbstractClient.class.getName()).log(Level.WARNING, null, ex);
 		}
+		write(packet);
 	}
 
-	public Serializable queryPacket() {
-		synchronized (queue) {
-			return queue.poll();
+	/**
+	 * Sends every packet that is being held back by the connection's
+	 * {@link FlushPolicy}.
+	 */
+	public void flush() {
+		if (transport.isClosed()) {
+			return;
+		}
+		try {
+			outbound.flush();
+		} catch (IOException ex) {
+			Logger.getLogger(AbstractClient.class.getName()).log(Level.SEVERE, null, ex);
+			interrupt();
 		}
 	}
 
-	public Serializable waitForPacket() throws InterruptedException {
-		synchronized (queue) {
-			if (!queue.isEmpty()) {
-				return queue.remove();
-			}
-			queue.wait();
-			return queue.remove();
+	/**
+	 * Runs {@code listener} once, as soon as a packet is waiting to be taken
+	 * or the connection is closed, on the thread that received it or straight
+	 * away. For taking packets from many connections on a few threads instead
+	 * of one waiting per connection. Replaces the listener set before, if it
+	 * has not run yet. The listener should be quick.
+	 */
+	public void whenPacket(Runnable listener) {
+		notifier.whenPacket(listener, queue, unreliable == null ? null : unreliable.queue());
+		if (transport.isClosed()) {
+			notifier.closed();
 		}
 	}
 
+	public Serializable queryPacket() {
+		Serializable packet = unreliable == null ? null : unreliable.queue().poll();
+		return packet != null ? packet : queue.poll();
+	}
+
+	/**
+	 * Moves up to {@code max} received packets into {@code target} without
+	 * waiting.
+	 *
+	 * @return the number of packets moved
+	 */
+	public int drainTo(Collection<? super Serializable> target, int max) {
+		int count = unreliable == null ? 0 : unreliable.queue().drainTo(target, max);
+		return count + queue.drainTo(target, max - count);
+	}
+
+	public Serializable waitForPacket() throws InterruptedException {
+		return queue.take(-1, unreliable == null ? null : unreliable.queue());
+	}
+
 	public Serializable waitForPacket(long maxWait) throws InterruptedException, NoSuchElementException {
-		synchronized (queue) {
-			if (!queue.isEmpty()) {
-				return queue.remove();
-			}
-			queue.wait(maxWait);
-			return queue.remove();
-		}
+		return queue.take(maxWait == 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxWait), unreliable == null ? null : unreliable.queue());
 	}
 
 	public boolean finished() {
-		synchronized (queue) {
-			return socket.isClosed() && queue.isEmpty();
-		}
+		return transport.isClosed() && queue.isEmpty() && (unreliable == null || unreliable.queue().isEmpty());
+	}
+
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the smoothed round trip time to the server in nanoseconds, or -1
+	 * if no ping has been answered yet
+	 * @see NetworkOptions#setPingInterval(long)
+	 */
+	public long getRoundTripNanos() {
+		return heartbeat.getRoundTrip();
+	}
+
+	/**
+	 * @return how much the round trip time varies, in nanoseconds, or -1 if no
+	 * ping has been answered yet
+	 */
+	public long getJitterNanos() {
+		return heartbeat.getJitter();
 	}
 }
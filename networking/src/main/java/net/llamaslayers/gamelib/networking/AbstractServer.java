@@ -1,31 +1,116 @@
 package net.llamaslayers.gamelib.networking;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.ObjectName;
 
 public abstract class AbstractServer implements Runnable {
+	private static final SecureRandom RANDOM = new SecureRandom();
 	private final ThreadGroup clientGroup = new ThreadGroup("Client connections");
 	private final ConcurrentHashMap<Integer, ServerClient> clients = new ConcurrentHashMap<Integer, ServerClient>();
+	private final NetworkOptions options;
 	private final ServerSocket socket;
-	private int nextClientID = 1;
+	private final ServerSocketChannel channel;
+	private final SelectorEngine engine;
+	private final PacketWriter sharedWriter;
+	private final ConnectionMetrics metrics;
+	private final UnreliableChannel unreliable;
+	private final ConcurrentHashMap<Long, ServerClient> sessions = new ConcurrentHashMap<Long, ServerClient>();
+	private final AtomicInteger nextClientID = new AtomicInteger(1);
 
 	public AbstractServer(int port) throws IOException {
-		socket = new ServerSocket(port);
+		this(port, new NetworkOptions());
 	}
 
+	public AbstractServer(int port, NetworkOptions options) throws IOException {
+		this.options = options = new NetworkOptions(options);
+		metrics = new ConnectionMetrics(null, options.isDetailedMetrics());
+		sharedWriter = new PacketWriter(options.getPacketRegistry(), 1, new PacketCompressor(options, metrics));
+		if (options.getSelectorThreads() > 0) {
+			channel = ServerSocketChannel.open();
+			socket = channel.socket();
+			socket.bind(new InetSocketAddress(port));
+			engine = new SelectorEngine(options.getSelectorThreads(), options.getAcceptorThreads());
+		} else {
+			channel = null;
+			socket = new ServerSocket(port);
+			engine = null;
+		}
+		if (options.isUnreliableChannel()) {
+			unreliable = new UnreliableChannel(new DatagramSocket(socket.getLocalPort()), options.getPacketRegistry());
+			unreliable.start();
+		} else {
+			unreliable = null;
+		}
+		if (options.getMetricsName() != null) {
+			metrics.register("type=Server,name=" + ObjectName.quote(options.getMetricsName()));
+		}
+	}
+
+	/**
+	 * Registers the metrics of a new connection if this server's metrics are
+	 * registered.
+	 */
+	private void registerMetrics(ServerClient client) {
+		if (options.getMetricsName() != null) {
+			client.getMetrics().register("type=Connection,server=" + ObjectName.quote(options.getMetricsName()) + ",id=" + client.getClientId());
+		}
+	}
+
+	/**
+	 * Accepts connections until the server is stopped. With more than one
+	 * {@link NetworkOptions#setAcceptorThreads(int) acceptor thread}, the
+	 * others are started here and this thread is the first of them.
+	 */
 	@Override
 	public final void run() {
+		Thread[] acceptors = new Thread[options.getAcceptorThreads() - 1];
+		for (int i = 0; i < acceptors.length; i++) {
+			final int shard = i + 1;
+			acceptors[i] = new Thread("ACCEPTOR#" + shard) {
+				@Override
+				public void run() {
+					acceptLoop(shard);
+				}
+			};
+			acceptors[i].start();
+		}
+		acceptLoop(0);
+		for (Thread acceptor : acceptors) {
+			try {
+				acceptor.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void acceptLoop(int shard) {
 		while (!socket.isClosed()) {
 			try {
-				ServerClient client = new ServerClient(socket.accept(), nextClientID, clientGroup, this);
-				clients.put(nextClientID, client);
-				client.start();
-				handleNewConnection(client);
-				nextClientID++;
+				ServerClient client = accept(shard);
+				if (client != null) {
+					handleNewConnection(client);
+				}
 			} catch (IOException ex) {
 				if (!socket.isClosed())
 					Logger.getLogger(AbstractServer.class.getName()).log(Level.SEVERE, null, ex);
@@ -33,28 +118,194 @@ public abstract class AbstractServer implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the new client, or null if a client resumed its session instead
+	 */
+	private ServerClient accept(int shard) throws IOException {
+		if (engine == null) {
+			Socket accepted = socket.accept();
+			char init;
+			try {
+				accepted.setSoTimeout((int) Math.min(options.getIdleTimeout(), Integer.MAX_VALUE));
+				init = SocketTransport.handshake(accepted, 'S', options.getSessionTimeout() > 0 ? "CUR" : "CU");
+				if (init == 'R') {
+					resume(accepted);
+					return null;
+				}
+				accepted.setSoTimeout(0); // The heartbeat notices idle connections from now on.
+			} catch (IOException ex) {
+				accepted.close();
+				throw ex;
+			}
+			int id = nextClientID.getAndIncrement();
+			return started(new ServerClient(accepted, init, id, clientGroup, this, options));
+		}
+		SocketChannel accepted = channel.accept();
+		SelectorTransport transport = engine.open(accepted, shard);
+		int id = nextClientID.getAndIncrement();
+		ServerClient client = new ServerClient(accepted.socket(), transport, id, clientGroup, this, options);
+		clients.put(id, client);
+		registerMetrics(client);
+		transport.start(client);
+		return client;
+	}
+
+	private ServerClient started(ServerClient client) {
+		clients.put(client.getClientId(), client);
+		registerMetrics(client);
+		if (options.getConnectionThreadFactory() == null) {
+			client.start();
+		} else {
+			options.getConnectionThreadFactory().newThread(client).start();
+		}
+		return client;
+	}
+
+	/**
+	 * Connects a client in the same process through memory instead of a
+	 * socket. {@link #handleNewConnection(ServerClient)} is called on the
+	 * calling thread before this returns.
+	 *
+	 * @return the client's end of the connection
+	 */
+	LoopbackTransport connectLocal() throws IOException {
+		if (socket.isClosed()) {
+			throw new SocketException("Server is stopped");
+		}
+		LoopbackTransport[] ends = LoopbackTransport.pair();
+		ServerClient client = started(new ServerClient(ends[0], nextClientID.getAndIncrement(), clientGroup, this, options));
+		handleNewConnection(client);
+		return ends[1];
+	}
+
+	/**
+	 * Reads which session a reconnecting client wants to resume and how many
+	 * frames it has received, and hands the socket to the session's client.
+	 */
+	private void resume(Socket accepted) throws IOException {
+		DataInputStream in = new DataInputStream(accepted.getInputStream());
+		long token = in.readLong();
+		long received = in.readLong();
+		accepted.setSoTimeout(0);
+		ServerClient client = sessions.get(token);
+		if (client == null || !client.resumeSession(accepted, received)) {
+			accepted.getOutputStream().write('N');
+			accepted.close();
+		}
+	}
+
+	/**
+	 * @return a new session token for the client
+	 */
+	long openSession(ServerClient client) {
+		while (true) {
+			long token = RANDOM.nextLong();
+			if (token != 0 && sessions.putIfAbsent(token, client) == null) {
+				return token;
+			}
+		}
+	}
+
+	void closeSession(long token) {
+		sessions.remove(token);
+	}
+
 	public final void stop() {
 		try {
 			for (ServerClient client : clients.values()) {
 				client.interrupt();
+				client.getMetrics().unregister();
 			}
 			clients.clear();
+			sessions.clear();
 			socket.close();
 		} catch (IOException ex) {
 			Logger.getLogger(AbstractServer.class.getName()).log(Level.SEVERE, null, ex);
+		} finally {
+			if (engine != null) {
+				engine.shutdown();
+			}
+			if (unreliable != null) {
+				unreliable.close();
+			}
+			metrics.unregister();
 		}
 	}
 
+	UnreliableChannel getUnreliableChannel() {
+		return unreliable;
+	}
+
+	/**
+	 * @return totals of the metrics of every connection this server has had
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
 	public ServerClient getClient(int id) throws NoSuchElementException {
 		if (clients.containsKey(id))
 			return clients.get(id);
 		throw new NoSuchElementException("No client with ID " + id);
 	}
 
+	/**
+	 * Sends a packet to every connected client. The packet is encoded once
+	 * and the same bytes are sent to every client.
+	 */
+	public void broadcast(Serializable packet) {
+		fanOut(clients.values(), packet);
+	}
+
+	/**
+	 * Sends a packet to the clients with the given IDs, encoding it once.
+	 * IDs of clients that are no longer connected are ignored.
+	 */
+	public void sendTo(Collection<Integer> ids, Serializable packet) {
+		List<ServerClient> targets = new ArrayList<ServerClient>(ids.size());
+		for (Integer id : ids) {
+			ServerClient client = clients.get(id);
+			if (client != null) {
+				targets.add(client);
+			}
+		}
+		fanOut(targets, packet);
+	}
+
+	private void fanOut(Iterable<ServerClient> targets, Serializable packet) {
+		if (packet == null) { // Don't send null packets.
+			return;
+		}
+		ByteBuffer frame;
+		try {
+			synchronized (sharedWriter) {
+				long start = metrics.isDetailed() ? System.nanoTime() : 0;
+				frame = sharedWriter.encodeShared(packet);
+				if (metrics.isDetailed()) {
+					metrics.serialized(packet.getClass(), System.nanoTime() - start);
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(AbstractServer.class.getName()).log(Level.SEVERE, null, ex);
+			return;
+		}
+		boolean flushNow = packet instanceof DisconnectPacket;
+		for (ServerClient client : targets) {
+			client.writeShared(frame, flushNow);
+		}
+	}
+
+	/**
+	 * Called for every new connection, on the thread that accepted it, or
+	 * that connected it for clients in the same process. With
+	 * more than one {@link NetworkOptions#setAcceptorThreads(int) acceptor
+	 * thread}, this may be called for several connections at once.
+	 */
 	public abstract void handleNewConnection(ServerClient client);
 
 	void clientIsFinished(ServerClient client) {
 		clients.remove(client.getClientId());
+		client.getMetrics().unregister();
 	}
 
 	@Override
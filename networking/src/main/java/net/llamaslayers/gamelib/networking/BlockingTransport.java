@@ -0,0 +1,17 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport whose frames are read by the thread that owns the connection.
+ */
+interface BlockingTransport extends Transport {
+	/**
+	 * Waits for the next frame and returns it without its length prefix. The
+	 * returned buffer may be reused by the next call.
+	 *
+	 * @throws java.io.EOFException if the other side closed the connection
+	 */
+	ByteBuffer readFrame() throws IOException;
+}
@@ -0,0 +1,69 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Direct buffers for reading from channels, in power of two sizes. Reading a
+ * channel into a direct buffer saves the copy the JDK makes through its own
+ * temporary direct buffer, and pooling them saves allocating and freeing
+ * native memory for every connection.
+ */
+final class BufferPool {
+	static final BufferPool DEFAULT = new BufferPool(4 * 1024 * 1024);
+	static final int MIN_SIZE = 4096;
+	private final int bytesPerSize;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] counts;
+
+	/**
+	 * @param bytesPerSize how many bytes of idle buffers to keep for each
+	 * buffer size. Buffers larger than this are never kept.
+	 */
+	BufferPool(int bytesPerSize) {
+		this.bytesPerSize = bytesPerSize;
+		int sizes = Integer.numberOfTrailingZeros(Integer.highestOneBit(Packets.MAX_FRAME_LENGTH + VarInts.MAX_LENGTH) * 2 / MIN_SIZE) + 1;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ConcurrentLinkedQueue<ByteBuffer>[] free = new ConcurrentLinkedQueue[sizes];
+		this.free = free;
+		counts = new AtomicInteger[sizes];
+		for (int i = 0; i < sizes; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			counts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns a cleared buffer with room for at least {@code capacity} bytes.
+	 */
+	ByteBuffer acquire(int capacity) {
+		int index = index(capacity);
+		ByteBuffer buffer = free[index].poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(MIN_SIZE << index);
+		}
+		counts[index].decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	void release(ByteBuffer buffer) {
+		int index = index(buffer.capacity());
+		if ((MIN_SIZE << index) != buffer.capacity()) {
+			return;
+		}
+		if (counts[index].incrementAndGet() * (long) buffer.capacity() > bytesPerSize) {
+			counts[index].decrementAndGet();
+			return;
+		}
+		free[index].add(buffer);
+	}
+
+	private static int index(int capacity) {
+		if (capacity <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_SIZE);
+	}
+}
@@ -0,0 +1,18 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the server over the reliable stream when a client asked for an
+ * unreliable channel. Datagrams carry the token so the server can tell which
+ * connection they belong to.
+ */
+final class ChannelToken implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final long token;
+
+	ChannelToken(long token) {
+		this.token = token;
+	}
+}
@@ -0,0 +1,156 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds preset dictionaries for {@link NetworkOptions#setCompressionDictionary}
+ * from sample traffic. A dictionary is a string of bytes that packets are
+ * likely to contain, which lets even short packets refer back to it.
+ */
+public final class CompressionDictionary {
+	/**
+	 * The length of the byte strings that are counted.
+	 */
+	private static final int GRAM = 8;
+	/**
+	 * The length of the pieces of samples the dictionary is made of.
+	 */
+	private static final int SEGMENT = 32;
+
+	private CompressionDictionary() {
+	}
+
+	/**
+	 * Encodes {@code samples} in order, as one connection would send them,
+	 * and picks the pieces of them that occur in the most packets.
+	 *
+	 * @param size the longest dictionary to return; zlib only looks back 32
+	 * KiB, so larger dictionaries are useless
+	 */
+	public static byte[] train(PacketRegistry registry, Iterable<? extends Serializable> samples, int size) throws IOException {
+		if (size < 1) {
+			throw new IllegalArgumentException("size < 1");
+		}
+		PacketWriter writer = new PacketWriter(registry, 1);
+		List<byte[]> packets = new ArrayList<byte[]>();
+		for (Serializable sample : samples) {
+			ByteBuffer frame = writer.encode(sample);
+			VarInts.get(frame);
+			byte[] packet = new byte[frame.remaining()];
+			frame.get(packet);
+			packets.add(packet);
+		}
+		return train(packets, size);
+	}
+
+	/**
+	 * Counts in how many packets each string of {@link #GRAM} bytes occurs,
+	 * then repeatedly takes the piece of a packet whose strings are the most
+	 * common among those not taken yet. The most useful pieces go last, where
+	 * references to them are shortest.
+	 */
+	static byte[] train(List<byte[]> packets, int size) {
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		for (byte[] packet : packets) {
+			Set<Long> seen = new HashSet<Long>();
+			for (int i = 0; i + GRAM <= packet.length; i++) {
+				Long gram = gram(packet, i);
+				if (seen.add(gram)) {
+					Integer count = counts.get(gram);
+					counts.put(gram, count == null ? 1 : count + 1);
+				}
+			}
+		}
+
+		PriorityQueue<Segment> candidates = new PriorityQueue<Segment>();
+		for (byte[] packet : packets) {
+			for (int start = 0; start < packet.length; start += SEGMENT / 2) {
+				Segment segment = new Segment(packet, start, Math.min(start + SEGMENT, packet.length));
+				segment.score(counts);
+				if (segment.score > 0) {
+					candidates.add(segment);
+				}
+			}
+		}
+
+		List<Segment> chosen = new ArrayList<Segment>();
+		int length = 0;
+		while (length < size && !candidates.isEmpty()) {
+			Segment best = candidates.poll();
+			best.score(counts); // Segments taken since may share its strings.
+			if (best.score == 0) {
+				continue;
+			}
+			if (!candidates.isEmpty() && best.score < candidates.peek().score) {
+				candidates.add(best);
+				continue;
+			}
+			for (int i = best.start; i + GRAM <= best.end; i++) {
+				counts.remove(gram(best.packet, i));
+			}
+			chosen.add(best);
+			length += best.end - best.start;
+		}
+
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(length);
+		for (int i = chosen.size() - 1; i >= 0; i--) {
+			Segment segment = chosen.get(i);
+			dictionary.write(segment.packet, segment.start, segment.end - segment.start);
+		}
+		byte[] bytes = dictionary.toByteArray();
+		if (bytes.length <= size) {
+			return bytes;
+		}
+		byte[] trimmed = new byte[size];
+		System.arraycopy(bytes, bytes.length - size, trimmed, 0, size);
+		return trimmed;
+	}
+
+	private static Long gram(byte[] packet, int offset) {
+		long gram = 0;
+		for (int i = 0; i < GRAM; i++) {
+			gram = gram << 8 | packet[offset + i] & 0xFF;
+		}
+		return gram;
+	}
+
+	private static final class Segment implements Comparable<Segment> {
+		final byte[] packet;
+		final int start, end;
+		long score;
+
+		Segment(byte[] packet, int start, int end) {
+			this.packet = packet;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Counts the strings that are common to at least two packets.
+		 */
+		void score(Map<Long, Integer> counts) {
+			score = 0;
+			for (int i = start; i + GRAM <= end; i++) {
+				Integer count = counts.get(gram(packet, i));
+				if (count != null && count > 1) {
+					score += count;
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return score > other.score ? -1 : score < other.score ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,473 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for one connection, or for all connections of a server. Every
+ * count made for a connection is also made for its server.
+ *
+ * Drops, disconnects, round trip times and compression are always counted. Packet and byte
+ * counts, queue depths and timings are only measured with
+ * {@link NetworkOptions#setDetailedMetrics(boolean) detailed metrics}, since
+ * they cost a few atomic operations and clock reads per packet; otherwise they
+ * stay at zero. With {@link NetworkOptions#setMetricsName(String)} the
+ * metrics can also be read over JMX.
+ */
+public final class ConnectionMetrics implements ConnectionMetricsMBean {
+	static final String DOMAIN = "net.llamaslayers.gamelib.networking";
+	private final ConnectionMetrics parent;
+	private final boolean detailed;
+	private final AtomicLong packetsIn = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong packetsOut = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final Histogram inboundQueueDepth = new Histogram();
+	private final Histogram outboundQueueDepth = new Histogram();
+	private final Histogram receiveLatency = new Histogram();
+	private final Histogram writeLockWait = new Histogram();
+	private final ConcurrentMap<Class<?>, Histogram> serialization = new ConcurrentHashMap<Class<?>, Histogram>();
+	private final ConcurrentMap<Integer, Histogram> laneWait = new ConcurrentHashMap<Integer, Histogram>();
+	private final AtomicLong inboundDropped = new AtomicLong();
+	private final AtomicLong outboundDropped = new AtomicLong();
+	private final AtomicLong overflowDisconnects = new AtomicLong();
+	private final AtomicLong idleDisconnects = new AtomicLong();
+	private final Histogram roundTrip = new Histogram();
+	private final AtomicLong staleDropped = new AtomicLong();
+	private final AtomicLong compressionInput = new AtomicLong();
+	private final AtomicLong compressionOutput = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	private final AtomicLong decompressionNanos = new AtomicLong();
+	private ObjectName name;
+
+	ConnectionMetrics(ConnectionMetrics parent) {
+		this(parent, false);
+	}
+
+	ConnectionMetrics(ConnectionMetrics parent, boolean detailed) {
+		this.parent = parent;
+		this.detailed = detailed;
+	}
+
+	/**
+	 * @return true if packets, bytes, queue depths and timings are measured
+	 */
+	public boolean isDetailed() {
+		return detailed;
+	}
+
+	@Override
+	public long getPacketsIn() {
+		return packetsIn.get();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	@Override
+	public long getPacketsOut() {
+		return packetsOut.get();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return the number of packets in the inbound queue, sampled whenever a
+	 * packet is added
+	 */
+	public Histogram getInboundQueueDepth() {
+		return inboundQueueDepth;
+	}
+
+	/**
+	 * @return the number of frames waiting to be written to the socket,
+	 * sampled whenever a frame is added. Always 0 for blocking connections,
+	 * which write straight to the socket.
+	 */
+	public Histogram getOutboundQueueDepth() {
+		return outboundQueueDepth;
+	}
+
+	/**
+	 * @return the time in nanoseconds from a packet being read and decoded to
+	 * the game taking it from the inbound queue
+	 */
+	public Histogram getReceiveLatency() {
+		return receiveLatency;
+	}
+
+	/**
+	 * @return the time in nanoseconds threads spent waiting for other threads
+	 * writing to the same connection
+	 */
+	public Histogram getWriteLockWait() {
+		return writeLockWait;
+	}
+
+	/**
+	 * @return the time in nanoseconds spent encoding packets of each class
+	 */
+	public Map<Class<?>, Histogram> getSerialization() {
+		return Collections.unmodifiableMap(serialization);
+	}
+
+	/**
+	 * @return the time in nanoseconds from a packet being encoded to the last
+	 * of it being handed to the transport, by {@link NetworkOptions#setLanes(int)
+	 * lane}. Only measured with more than one lane.
+	 */
+	public Map<Integer, Histogram> getLaneWait() {
+		return Collections.unmodifiableMap(laneWait);
+	}
+
+	@Override
+	public double getInboundQueueDepthMean() {
+		return inboundQueueDepth.getMean();
+	}
+
+	@Override
+	public long getInboundQueueDepthMax() {
+		return inboundQueueDepth.getMax();
+	}
+
+	@Override
+	public double getOutboundQueueDepthMean() {
+		return outboundQueueDepth.getMean();
+	}
+
+	@Override
+	public long getOutboundQueueDepthMax() {
+		return outboundQueueDepth.getMax();
+	}
+
+	@Override
+	public double getReceiveLatencyMeanNanos() {
+		return receiveLatency.getMean();
+	}
+
+	@Override
+	public long getReceiveLatencyP99Nanos() {
+		return receiveLatency.getPercentile(0.99);
+	}
+
+	@Override
+	public double getWriteLockWaitMeanNanos() {
+		return writeLockWait.getMean();
+	}
+
+	@Override
+	public long getWriteLockWaitP99Nanos() {
+		return writeLockWait.getPercentile(0.99);
+	}
+
+	@Override
+	public Map<String, Double> getSerializationMeanNanos() {
+		Map<String, Double> means = new HashMap<String, Double>();
+		for (Map.Entry<Class<?>, Histogram> entry : serialization.entrySet()) {
+			means.put(entry.getKey().getName(), entry.getValue().getMean());
+		}
+		return means;
+	}
+
+	@Override
+	public Map<String, Double> getLaneWaitMeanNanos() {
+		Map<String, Double> means = new HashMap<String, Double>();
+		for (Map.Entry<Integer, Histogram> entry : laneWait.entrySet()) {
+			means.put(entry.getKey().toString(), entry.getValue().getMean());
+		}
+		return means;
+	}
+
+	@Override
+	public Map<String, Long> getLaneWaitP99Nanos() {
+		Map<String, Long> percentiles = new HashMap<String, Long>();
+		for (Map.Entry<Integer, Histogram> entry : laneWait.entrySet()) {
+			percentiles.put(entry.getKey().toString(), entry.getValue().getPercentile(0.99));
+		}
+		return percentiles;
+	}
+
+	/**
+	 * @return the number of received packets dropped because the inbound
+	 * queue was full
+	 */
+	@Override
+	public long getInboundDropped() {
+		return inboundDropped.get();
+	}
+
+	/**
+	 * @return the number of packets that were written but dropped because
+	 * the outbound queue was full
+	 */
+	@Override
+	public long getOutboundDropped() {
+		return outboundDropped.get();
+	}
+
+	/**
+	 * @return the number of connections closed because a queue was full
+	 */
+	@Override
+	public long getOverflowDisconnects() {
+		return overflowDisconnects.get();
+	}
+
+	/**
+	 * @return the number of connections closed because nothing was received
+	 * for longer than the idle timeout
+	 */
+	@Override
+	public long getIdleDisconnects() {
+		return idleDisconnects.get();
+	}
+
+	/**
+	 * @return round trip times in nanoseconds, measured by pings whether or
+	 * not metrics are detailed
+	 */
+	public Histogram getRoundTrip() {
+		return roundTrip;
+	}
+
+	@Override
+	public double getRoundTripMeanNanos() {
+		return roundTrip.getMean();
+	}
+
+	@Override
+	public long getRoundTripP99Nanos() {
+		return roundTrip.getPercentile(0.99);
+	}
+
+	/**
+	 * @return the number of packets received over the unreliable channel
+	 * after a newer packet of the same class, and dropped
+	 */
+	@Override
+	public long getStaleDropped() {
+		return staleDropped.get();
+	}
+
+	/**
+	 * @return the number of bytes of packets that were long enough to be
+	 * compressed
+	 */
+	@Override
+	public long getCompressionInputBytes() {
+		return compressionInput.get();
+	}
+
+	/**
+	 * @return the number of bytes those packets were sent as, compressed or
+	 * not
+	 */
+	@Override
+	public long getCompressionOutputBytes() {
+		return compressionOutput.get();
+	}
+
+	/**
+	 * @return output bytes divided by input bytes, or 1 if nothing has been
+	 * compressed
+	 */
+	@Override
+	public double getCompressionRatio() {
+		long input = compressionInput.get();
+		return input == 0 ? 1 : (double) compressionOutput.get() / input;
+	}
+
+	/**
+	 * @return the time spent compressing packets, in nanoseconds
+	 */
+	@Override
+	public long getCompressionNanos() {
+		return compressionNanos.get();
+	}
+
+	/**
+	 * @return the time spent decompressing packets, in nanoseconds
+	 */
+	@Override
+	public long getDecompressionNanos() {
+		return decompressionNanos.get();
+	}
+
+	void received(int bytes) {
+		packetsIn.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+		if (parent != null) {
+			parent.received(bytes);
+		}
+	}
+
+	void sent(int bytes) {
+		packetsOut.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+		if (parent != null) {
+			parent.sent(bytes);
+		}
+	}
+
+	void inboundQueueDepth(int depth) {
+		inboundQueueDepth.record(depth);
+		if (parent != null) {
+			parent.inboundQueueDepth(depth);
+		}
+	}
+
+	void outboundQueueDepth(int depth) {
+		outboundQueueDepth.record(depth);
+		if (parent != null) {
+			parent.outboundQueueDepth(depth);
+		}
+	}
+
+	void receiveLatency(long nanos) {
+		receiveLatency.record(nanos);
+		if (parent != null) {
+			parent.receiveLatency(nanos);
+		}
+	}
+
+	void writeLockWait(long nanos) {
+		writeLockWait.record(nanos);
+		if (parent != null) {
+			parent.writeLockWait(nanos);
+		}
+	}
+
+	void serialized(Class<?> type, long nanos) {
+		Histogram histogram = serialization.get(type);
+		if (histogram == null) {
+			serialization.putIfAbsent(type, new Histogram());
+			histogram = serialization.get(type);
+		}
+		histogram.record(nanos);
+		if (parent != null) {
+			parent.serialized(type, nanos);
+		}
+	}
+
+	void laneWait(int lane, long nanos) {
+		Histogram histogram = laneWait.get(lane);
+		if (histogram == null) {
+			laneWait.putIfAbsent(lane, new Histogram());
+			histogram = laneWait.get(lane);
+		}
+		histogram.record(nanos);
+		if (parent != null) {
+			parent.laneWait(lane, nanos);
+		}
+	}
+
+	void inboundDropped(int packets) {
+		inboundDropped.addAndGet(packets);
+		if (parent != null) {
+			parent.inboundDropped(packets);
+		}
+	}
+
+	void outboundDropped(int packets) {
+		outboundDropped.addAndGet(packets);
+		if (parent != null) {
+			parent.outboundDropped(packets);
+		}
+	}
+
+	void overflowDisconnect() {
+		overflowDisconnects.incrementAndGet();
+		if (parent != null) {
+			parent.overflowDisconnect();
+		}
+	}
+
+	void idleDisconnect() {
+		idleDisconnects.incrementAndGet();
+		if (parent != null) {
+			parent.idleDisconnect();
+		}
+	}
+
+	void roundTrip(long nanos) {
+		roundTrip.record(nanos);
+		if (parent != null) {
+			parent.roundTrip(nanos);
+		}
+	}
+
+	void staleDropped(int packets) {
+		staleDropped.addAndGet(packets);
+		if (parent != null) {
+			parent.staleDropped(packets);
+		}
+	}
+
+	void compressed(int input, int output, long nanos) {
+		compressionInput.addAndGet(input);
+		compressionOutput.addAndGet(output);
+		compressionNanos.addAndGet(nanos);
+		if (parent != null) {
+			parent.compressed(input, output, nanos);
+		}
+	}
+
+	void decompressed(long nanos) {
+		decompressionNanos.addAndGet(nanos);
+		if (parent != null) {
+			parent.decompressed(nanos);
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server. Failures are
+	 * logged rather than thrown, since metrics are not worth failing over.
+	 *
+	 * @param properties the key properties of the name, such as
+	 * {@code type=Server,name=world}
+	 */
+	synchronized void register(String properties) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			name = objectName;
+		} catch (JMException ex) {
+			Logger.getLogger(ConnectionMetrics.class.getName()).log(Level.WARNING, "Could not register metrics", ex);
+		}
+	}
+
+	synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException ex) {
+			Logger.getLogger(ConnectionMetrics.class.getName()).log(Level.WARNING, "Could not unregister metrics", ex);
+		}
+		name = null;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionMetrics[packetsIn=" + packetsIn + ", bytesIn=" + bytesIn + ", packetsOut=" + packetsOut
+				+ ", bytesOut=" + bytesOut + ", inboundDropped=" + inboundDropped + ", outboundDropped=" + outboundDropped
+				+ ", overflowDisconnects=" + overflowDisconnects + ", idleDisconnects=" + idleDisconnects
+				+ ", staleDropped=" + staleDropped
+				+ ", compressionRatio=" + getCompressionRatio() + "]";
+	}
+}
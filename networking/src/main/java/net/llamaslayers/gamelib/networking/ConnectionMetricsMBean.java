@@ -0,0 +1,69 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.Map;
+
+/**
+ * What {@link ConnectionMetrics} shows over JMX. Times are in nanoseconds.
+ */
+public interface ConnectionMetricsMBean {
+	long getPacketsIn();
+
+	long getBytesIn();
+
+	long getPacketsOut();
+
+	long getBytesOut();
+
+	long getInboundDropped();
+
+	long getOutboundDropped();
+
+	long getOverflowDisconnects();
+
+	long getIdleDisconnects();
+
+	double getRoundTripMeanNanos();
+
+	long getRoundTripP99Nanos();
+
+	long getStaleDropped();
+
+	long getCompressionInputBytes();
+
+	long getCompressionOutputBytes();
+
+	double getCompressionRatio();
+
+	long getCompressionNanos();
+
+	long getDecompressionNanos();
+
+	double getInboundQueueDepthMean();
+
+	long getInboundQueueDepthMax();
+
+	double getOutboundQueueDepthMean();
+
+	long getOutboundQueueDepthMax();
+
+	double getReceiveLatencyMeanNanos();
+
+	long getReceiveLatencyP99Nanos();
+
+	double getWriteLockWaitMeanNanos();
+
+	long getWriteLockWaitP99Nanos();
+
+	/**
+	 * @return the mean time to encode a packet, by class name
+	 */
+	Map<String, Double> getSerializationMeanNanos();
+
+	/**
+	 * @return the mean time from encoding a packet to sending the last of it,
+	 * by lane
+	 */
+	Map<String, Double> getLaneWaitMeanNanos();
+
+	Map<String, Long> getLaneWaitP99Nanos();
+}
@@ -0,0 +1,57 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for {@link NetworkOptions#setConnectionThreadFactory}.
+ * Virtual threads are looked up by reflection, so this library still runs on
+ * Java versions without them.
+ */
+public final class ConnectionThreads {
+	private static final ThreadFactory VIRTUAL = createVirtual();
+
+	private ConnectionThreads() {
+	}
+
+	/**
+	 * @return true if this Java version has virtual threads
+	 */
+	public static boolean isVirtualAvailable() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Returns a factory that starts every connection on a virtual thread. A
+	 * blocked read only parks its virtual thread, so thousands of mostly idle
+	 * connections share a handful of platform threads.
+	 *
+	 * @throws UnsupportedOperationException if this Java version does not have
+	 * virtual threads
+	 */
+	public static ThreadFactory virtual() {
+		if (VIRTUAL == null) {
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+		}
+		return VIRTUAL;
+	}
+
+	private static ThreadFactory createVirtual() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "CONNECTION#", 1L);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (NoSuchMethodException ex) {
+			return null;
+		} catch (ClassNotFoundException ex) {
+			return null;
+		} catch (IllegalAccessException ex) {
+			return null;
+		} catch (InvocationTargetException ex) {
+			return null; // Preview feature that is not enabled.
+		}
+	}
+}
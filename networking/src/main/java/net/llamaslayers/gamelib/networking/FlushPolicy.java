@@ -0,0 +1,87 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when packets written to a connection are handed to the socket.
+ * Packets are buffered per connection until the policy says otherwise or
+ * {@link ServerClient#flush()} or {@link AbstractClient#flush()} is called,
+ * so a game loop can send one tick's worth of packets in a single write by
+ * using {@link #MANUAL} and flushing at the end of every tick.
+ * {@link DisconnectPacket}s and pings are always flushed straight away.
+ */
+public final class FlushPolicy {
+	/**
+	 * Flushes after every packet. This is the default.
+	 */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(1, 0);
+	/**
+	 * Only flushes when asked to.
+	 */
+	public static final FlushPolicy MANUAL = new FlushPolicy(0, 0);
+	private final int maxBytes;
+	private final long maxDelayNanos;
+
+	private FlushPolicy(int maxBytes, long maxDelayNanos) {
+		this.maxBytes = maxBytes;
+		this.maxDelayNanos = maxDelayNanos;
+	}
+
+	/**
+	 * Flushes once at least {@code maxBytes} bytes are waiting.
+	 */
+	public static FlushPolicy maxBytes(int maxBytes) {
+		return maxBytesOrDelay(maxBytes, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Flushes at most {@code maxDelay} after the first packet that has not
+	 * been flushed yet was written.
+	 */
+	public static FlushPolicy maxDelay(long maxDelay, TimeUnit unit) {
+		return maxBytesOrDelay(0, maxDelay, unit);
+	}
+
+	/**
+	 * Flushes once at least {@code maxBytes} bytes are waiting or
+	 * {@code maxDelay} after the first packet that has not been flushed yet
+	 * was written, whichever comes first. A limit of 0 is never reached.
+	 */
+	public static FlushPolicy maxBytesOrDelay(int maxBytes, long maxDelay, TimeUnit unit) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes < 0");
+		}
+		if (maxDelay < 0) {
+			throw new IllegalArgumentException("maxDelay < 0");
+		}
+		return new FlushPolicy(maxBytes, unit.toNanos(maxDelay));
+	}
+
+	/**
+	 * @return the number of waiting bytes that causes a flush, or 0 if the
+	 * number of bytes does not matter
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the longest a packet waits before being flushed, or 0 if
+	 * packets can wait forever
+	 */
+	public long getMaxDelay(TimeUnit unit) {
+		return unit.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	boolean isFull(int unflushed) {
+		return maxBytes > 0 && unflushed >= maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		if (this == IMMEDIATE) {
+			return "FlushPolicy[immediate]";
+		}
+		return "FlushPolicy[maxBytes=" + maxBytes + ", maxDelay=" + TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + "ms]";
+	}
+}
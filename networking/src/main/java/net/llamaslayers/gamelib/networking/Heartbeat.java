@@ -0,0 +1,212 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pings the other side of a connection every so often, keeps a smoothed
+ * round trip time and its variation the way TCP does (RFC 6298), and notices
+ * when nothing has been received for too long. Every connection's heartbeat
+ * is checked on one shared timer thread, which never writes to a connection:
+ * pings are sent from a small pool instead, since a write blocks while the
+ * other side is not reading. A ping is skipped while the last one is still
+ * being sent, and a connection stuck like that still times out. Replies are
+ * sent from the pool too, so the thread reading the connection, which may be
+ * a selector thread shared with other connections, never writes; only the
+ * newest reply waits while one is being sent.
+ */
+abstract class Heartbeat implements Runnable {
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Heartbeat timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private static final ExecutorService SENDERS = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Heartbeat sender");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final long pingInterval;
+	private final long idleTimeout;
+	private final ConnectionMetrics metrics;
+	/**
+	 * The number of frames received. Only written by the thread reading the
+	 * connection.
+	 */
+	private volatile long frames;
+	/**
+	 * Only used by the timer thread.
+	 */
+	private long framesSeen;
+	private long lastActivity;
+	private volatile long roundTrip = -1;
+	private volatile long jitter = -1;
+	private ScheduledFuture<?> task;
+	/**
+	 * Set once stopped, so pings and replies still waiting for a sender are
+	 * not written to a connection that is closing.
+	 */
+	private volatile boolean stopped;
+	private final AtomicBoolean sending = new AtomicBoolean();
+	private final Runnable ping = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				sendIfRunning(new PingPacket(System.nanoTime(), false));
+			} finally {
+				sending.set(false);
+			}
+		}
+	};
+	/**
+	 * The newest reply not sent yet, and whether a sender is sending replies.
+	 */
+	private final AtomicReference<PingPacket> reply = new AtomicReference<PingPacket>();
+	private final AtomicBoolean replying = new AtomicBoolean();
+	private final Runnable replies = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				PingPacket next;
+				while ((next = reply.getAndSet(null)) != null) {
+					sendIfRunning(next);
+				}
+				replying.set(false);
+			} while (reply.get() != null && replying.compareAndSet(false, true));
+		}
+	};
+
+	Heartbeat(NetworkOptions options, ConnectionMetrics metrics) {
+		this.pingInterval = TimeUnit.MILLISECONDS.toNanos(options.getPingInterval());
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(options.getIdleTimeout());
+		this.metrics = metrics;
+	}
+
+	synchronized void start() {
+		stopped = false;
+		long period = pingInterval > 0 ? pingInterval : idleTimeout / 2;
+		if (period <= 0 || task != null) {
+			return;
+		}
+		lastActivity = System.nanoTime();
+		task = TIMER.scheduleAtFixedRate(this, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Stops pinging and watching for idleness until the next
+	 * {@link #start()}.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Called by the thread reading the connection for every frame.
+	 */
+	void received() {
+		frames++;
+	}
+
+	/**
+	 * Called by the thread reading the connection for every ping or reply.
+	 */
+	void received(PingPacket ping) {
+		if (!ping.response) {
+			reply.set(new PingPacket(ping.sentNanos, true));
+			if (replying.compareAndSet(false, true)) {
+				SENDERS.execute(replies);
+			}
+			return;
+		}
+		long sample = System.nanoTime() - ping.sentNanos;
+		if (sample < 0) {
+			return;
+		}
+		metrics.roundTrip(sample);
+		if (roundTrip < 0) {
+			roundTrip = sample;
+			jitter = sample / 2;
+		} else {
+			jitter = (3 * jitter + Math.abs(roundTrip - sample)) / 4;
+			roundTrip = (7 * roundTrip + sample) / 8;
+		}
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, or -1 if no reply
+	 * to a ping has arrived yet
+	 */
+	long getRoundTrip() {
+		return roundTrip;
+	}
+
+	/**
+	 * @return the mean deviation of the round trip time in nanoseconds, or -1
+	 * if no reply to a ping has arrived yet
+	 */
+	long getJitter() {
+		return jitter;
+	}
+
+	@Override
+	public void run() {
+		long now = System.nanoTime();
+		long received = frames;
+		if (received != framesSeen) {
+			framesSeen = received;
+			lastActivity = now;
+		} else if (idleTimeout > 0 && now - lastActivity >= idleTimeout) {
+			stop();
+			metrics.idleDisconnect();
+			idle(TimeUnit.NANOSECONDS.toMillis(now - lastActivity));
+			return;
+		}
+		if (pingInterval > 0 && sending.compareAndSet(false, true)) {
+			SENDERS.execute(ping);
+		}
+	}
+
+	private void sendIfRunning(PingPacket ping) {
+		if (stopped) {
+			return;
+		}
+		try {
+			send(ping);
+		} catch (IOException ex) {
+			if (!stopped) { // Otherwise the connection is closing anyway.
+				Logger.getLogger(Heartbeat.class.getName()).log(Level.WARNING, null, ex);
+			}
+		}
+	}
+
+	/**
+	 * Sends a ping or a reply to one, on one of the pool's threads.
+	 */
+	abstract void send(PingPacket ping) throws IOException;
+
+	/**
+	 * Called on the timer thread when nothing has been received for longer
+	 * than the idle timeout. The connection must be closed, without waiting
+	 * for a write that may be blocked on it.
+	 */
+	abstract void idle(long millis);
+}
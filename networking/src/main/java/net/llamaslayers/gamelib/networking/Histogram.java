@@ -0,0 +1,79 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of non-negative values, such as times in nanoseconds or
+ * queue depths. Values are counted in buckets by powers of two, so recording
+ * takes a few atomic additions and percentiles are accurate to within a
+ * factor of two.
+ */
+public final class Histogram {
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the mean value, or 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+	 * @return a value at least as large as that fraction of the values
+	 * recorded, and less than twice as large as it needs to be
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < 64; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram[count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(0.5)
+				+ ", p99=" + getPercentile(0.99) + ", max=" + getMax() + "]";
+	}
+}
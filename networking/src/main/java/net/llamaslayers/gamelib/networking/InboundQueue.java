@@ -0,0 +1,369 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Received packets waiting to be picked up by the game. A bounded ring
+ * buffer with a single producer, the thread that reads the connection. The
+ * producer never takes a lock and nothing is allocated per packet. Consumers
+ * take turns through a lock of their own, which is uncontended as long as
+ * one thread consumes the connection, and any number of them may wait for
+ * packets. A side only parks when the queue is empty or full, and the other
+ * side only wakes it if it is parked; a new packet wakes every waiting
+ * consumer, and those that lose the race for it wait again. Both sides yield for a while
+ * before parking, since packets tend to arrive in bursts and waking a parked
+ * thread costs far more than yielding.
+ *
+ * The queue is full when it holds its capacity in packets, or when the frames
+ * of the packets it holds add up to more than its byte limit. An empty queue
+ * takes any packet, so packets larger than the byte limit still get through
+ * one at a time.
+ *
+ * With {@link ConnectionMetrics#isDetailed() detailed metrics} the queue
+ * records its depth whenever a packet is added, and how long each packet
+ * waited between being added and being taken by the game.
+ */
+final class InboundQueue {
+	private static final int SPINS = 64;
+	private final Serializable[] buffer;
+	private final int[] sizes;
+	private final int mask;
+	private final long maxBytes;
+	private final ConnectionMetrics metrics;
+	/**
+	 * When each packet was added, if metrics are detailed.
+	 */
+	private final long[] stamps;
+	/**
+	 * The index of the next packet to take. Only written by consumers.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	/**
+	 * The index of the next free slot. Only written by the producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * The number of bytes ever added. Only written by the producer.
+	 */
+	private volatile long bytesIn;
+	/**
+	 * The number of bytes ever taken. Only written under the consumer lock.
+	 */
+	private volatile long bytesOut;
+	private final Queue<Thread> waitingConsumers = new ConcurrentLinkedQueue<Thread>();
+	private volatile Thread waitingProducer;
+	private final AtomicReference<Runnable> roomListener = new AtomicReference<Runnable>();
+	private final AtomicReference<Runnable> packetListener = new AtomicReference<Runnable>();
+	private final Object consumerLock = new Object();
+	private long cachedHead;
+	private long cachedTail;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 * @param maxBytes the byte limit, or 0 for none
+	 */
+	InboundQueue(int capacity, long maxBytes) {
+		this(capacity, maxBytes, null);
+	}
+
+	/**
+	 * @param metrics where to record depths and waiting times, if they are
+	 * detailed
+	 */
+	InboundQueue(int capacity, long maxBytes, ConnectionMetrics metrics) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		buffer = new Serializable[size];
+		sizes = new int[size];
+		mask = size - 1;
+		this.maxBytes = maxBytes;
+		if (metrics != null && metrics.isDetailed()) {
+			this.metrics = metrics;
+			stamps = new long[size];
+		} else {
+			this.metrics = null;
+			stamps = null;
+		}
+	}
+
+	int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Adds a packet, unless the queue is full. Only called by the producer.
+	 *
+	 * @param size the length of the packet's frame
+	 */
+	boolean offer(Serializable packet, int size) {
+		long t = tail.get();
+		if (!hasRoom(t, size)) {
+			return false;
+		}
+		int index = (int) t & mask;
+		buffer[index] = packet;
+		sizes[index] = size;
+		bytesIn += size;
+		if (stamps != null) {
+			stamps[index] = System.nanoTime();
+		}
+		tail.set(t + 1);
+		if (metrics != null) {
+			metrics.inboundQueueDepth((int) (t + 1 - head.get()));
+		}
+		if (!waitingConsumers.isEmpty()) {
+			for (Thread consumer : waitingConsumers) {
+				LockSupport.unpark(consumer);
+			}
+		}
+		if (packetListener.get() != null) {
+			firePacketListener();
+		}
+		return true;
+	}
+
+	private boolean hasRoom(long t, int size) {
+		if (t - cachedHead >= buffer.length) {
+			cachedHead = head.get();
+			if (t - cachedHead >= buffer.length) {
+				return false;
+			}
+		}
+		return maxBytes <= 0 || bytesIn - bytesOut + size <= maxBytes || t == head.get();
+	}
+
+	/**
+	 * Adds a packet, waiting for room if the queue is full. Only called by
+	 * the producer.
+	 *
+	 * @return false if the producer was interrupted while waiting, in which
+	 * case the packet was not added and the thread is still interrupted
+	 */
+	boolean put(Serializable packet, int size) {
+		int spins = 0;
+		while (!offer(packet, size)) {
+			if (spins < SPINS) {
+				spins++;
+				Thread.yield();
+				continue;
+			}
+			waitingProducer = Thread.currentThread();
+			if (!hasRoom(tail.get(), size)) {
+				LockSupport.park(this);
+			}
+			waitingProducer = null;
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Runs {@code listener} once there is room for a packet of {@code size}
+	 * bytes, either straight away or later on a consumer's thread. Only called
+	 * by the producer, after {@link #offer(Serializable, int)} failed.
+	 */
+	void whenRoom(int size, Runnable listener) {
+		roomListener.set(listener);
+		if (hasRoom(tail.get(), size)) {
+			fireRoomListener();
+		}
+	}
+
+	/**
+	 * Runs {@code listener} once there is a packet to take, either straight
+	 * away or later on the producer's thread, instead of a consumer waiting
+	 * for it. Replaces the listener set before, if it has not run yet.
+	 */
+	void whenPacket(Runnable listener) {
+		packetListener.set(listener);
+		if (!isEmpty()) {
+			firePacketListener();
+		}
+	}
+
+	private void firePacketListener() {
+		Runnable listener = packetListener.getAndSet(null);
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Throws away the oldest packet to make room. Only called by the
+	 * producer.
+	 *
+	 * @return false if the queue was empty
+	 */
+	boolean dropOldest() {
+		synchronized (consumerLock) {
+			long h = head.get();
+			if (h >= tail.get()) {
+				return false;
+			}
+			removeHead(h);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes the next packet, or returns null if there is none.
+	 */
+	Serializable poll() {
+		synchronized (consumerLock) {
+			long h = head.get();
+			if (h >= cachedTail) {
+				cachedTail = tail.get();
+				if (h >= cachedTail) {
+					return null;
+				}
+			}
+			if (stamps != null) {
+				metrics.receiveLatency(System.nanoTime() - stamps[(int) h & mask]);
+			}
+			Serializable packet = removeHead(h);
+			wakeProducer(h + 1);
+			return packet;
+		}
+	}
+
+	/**
+	 * Takes up to {@code max} packets at once.
+	 *
+	 * @return the number of packets added to {@code target}
+	 */
+	int drainTo(Collection<? super Serializable> target, int max) {
+		synchronized (consumerLock) {
+			long h = head.get();
+			int count = (int) Math.min(tail.get() - h, max);
+			long bytes = 0;
+			long now = stamps == null ? 0 : System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				int index = (int) (h + i) & mask;
+				target.add(buffer[index]);
+				buffer[index] = null;
+				bytes += sizes[index];
+				if (stamps != null) {
+					metrics.receiveLatency(now - stamps[index]);
+				}
+			}
+			if (count > 0) {
+				bytesOut += bytes;
+				head.set(h + count);
+				wakeProducer(h + count);
+			}
+			return Math.max(count, 0);
+		}
+	}
+
+	private Serializable removeHead(long h) {
+		int index = (int) h & mask;
+		Serializable packet = buffer[index];
+		buffer[index] = null;
+		bytesOut += sizes[index];
+		head.set(h + 1);
+		return packet;
+	}
+
+	/**
+	 * Waits for the next packet.
+	 *
+	 * @param timeout the longest to wait in nanoseconds, or a negative number
+	 * to wait forever
+	 * @throws NoSuchElementException if no packet arrived in time
+	 */
+	Serializable take(long timeout) throws InterruptedException {
+		return take(timeout, null);
+	}
+
+	/**
+	 * Waits for the next packet of either this queue or {@code other}, which
+	 * is tried first. Both queues must have the same consumers.
+	 */
+	Serializable take(long timeout, InboundQueue other) throws InterruptedException {
+		long deadline = System.nanoTime() + timeout;
+		int spins = 0;
+		while (true) {
+			Serializable packet = other == null ? null : other.poll();
+			if (packet == null) {
+				packet = poll();
+			}
+			if (packet != null) {
+				return packet;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			long remaining = deadline - System.nanoTime();
+			if (timeout >= 0 && remaining <= 0) {
+				throw new NoSuchElementException();
+			}
+			if (spins < SPINS) {
+				spins++;
+				Thread.yield();
+				continue;
+			}
+			Thread consumer = Thread.currentThread();
+			waitingConsumers.add(consumer);
+			if (other != null) {
+				other.waitingConsumers.add(consumer);
+			}
+			if (isEmpty() && (other == null || other.isEmpty())) {
+				if (timeout < 0) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+			waitingConsumers.remove(consumer);
+			if (other != null) {
+				other.waitingConsumers.remove(consumer);
+			}
+		}
+	}
+
+	boolean isEmpty() {
+		return head.get() >= tail.get();
+	}
+
+	int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	long bytes() {
+		return bytesIn - bytesOut;
+	}
+
+	/**
+	 * Wakes a producer waiting for room once the queue is half empty, so it
+	 * is not woken for every packet taken from a full queue.
+	 */
+	private void wakeProducer(long h) {
+		Thread producer = waitingProducer;
+		if (producer == null && roomListener.get() == null) {
+			return;
+		}
+		long t = tail.get();
+		if (t - h > buffer.length / 2 || maxBytes > 0 && t != h && bytesIn - bytesOut > maxBytes / 2) {
+			return;
+		}
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+		fireRoomListener();
+	}
+
+	private void fireRoomListener() {
+		Runnable listener = roomListener.getAndSet(null);
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
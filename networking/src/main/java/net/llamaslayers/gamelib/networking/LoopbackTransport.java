@@ -0,0 +1,200 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * One end of an in-memory connection between a client and a server in the
+ * same process. Frames are encoded exactly as they would be for a socket, so
+ * packets are still copied and behave the same, but flushed frames are handed
+ * straight to the other end's reading thread without going through the
+ * kernel. Like a socket, each direction holds a limited number of bytes, and
+ * flushing waits while the other end is that far behind.
+ */
+final class LoopbackTransport implements BlockingTransport {
+	/**
+	 * About what a socket buffers in each direction.
+	 */
+	static final int BUFFER_BYTES = 256 * 1024;
+	private final Pipe in;
+	private final Pipe out;
+	private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private long pendingBytes;
+	private volatile boolean closed;
+
+	/**
+	 * Frames going one way, guarded by their own lock.
+	 */
+	private static final class Pipe {
+		final ArrayDeque<ByteBuffer> frames = new ArrayDeque<ByteBuffer>();
+		long bytes;
+		boolean closed;
+	}
+
+	private LoopbackTransport(Pipe in, Pipe out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * @return the two ends of a new connection
+	 */
+	static LoopbackTransport[] pair() {
+		Pipe a = new Pipe();
+		Pipe b = new Pipe();
+		return new LoopbackTransport[] {new LoopbackTransport(a, b), new LoopbackTransport(b, a)};
+	}
+
+	@Override
+	public ByteBuffer readFrame() throws IOException {
+		ByteBuffer frame;
+		boolean interrupted = false;
+		synchronized (in) {
+			// Like a socket read, this is not interrupted by interrupt().
+			while (in.frames.isEmpty()) {
+				if (in.closed) {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+					throw new EOFException();
+				}
+				try {
+					in.wait();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+			frame = in.frames.remove();
+			in.bytes -= frame.remaining();
+			in.notifyAll();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		int length = Packets.readLength(frame);
+		frame.limit(frame.position() + length);
+		return frame.slice();
+	}
+
+	@Override
+	public void write(ByteBuffer frame) throws IOException {
+		synchronized (pending) {
+			if (closed) {
+				throw new SocketException("Socket is closed");
+			}
+			pending.add(frame.duplicate());
+			pendingBytes += frame.remaining();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		List<ByteBuffer> frames;
+		synchronized (pending) {
+			if (closed) {
+				throw new SocketException("Socket is closed");
+			}
+			frames = new ArrayList<ByteBuffer>(pending);
+			pending.clear();
+			pendingBytes = 0;
+			pending.notifyAll();
+		}
+		synchronized (out) {
+			for (ByteBuffer frame : frames) {
+				while (!out.closed && out.bytes >= BUFFER_BYTES) {
+					try {
+						out.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+				}
+				if (out.closed) {
+					throw new SocketException("Connection closed by the other side");
+				}
+				out.frames.add(frame);
+				out.bytes += frame.remaining();
+				out.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public int queuedFrames() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	@Override
+	public long queuedBytes() {
+		synchronized (pending) {
+			return pendingBytes;
+		}
+	}
+
+	@Override
+	public boolean dropOldest() {
+		synchronized (pending) {
+			for (Iterator<ByteBuffer> it = pending.iterator(); it.hasNext();) {
+				ByteBuffer frame = it.next();
+				if (!Packets.isStreamFrame(frame)) {
+					it.remove();
+					pendingBytes -= frame.remaining();
+					pending.notifyAll();
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public void awaitRoom(int frames, long bytes) throws IOException {
+		synchronized (pending) {
+			while (!closed && (frames > 0 && pending.size() >= frames || bytes > 0 && pendingBytes >= bytes)) {
+				try {
+					pending.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes both directions. The other end can still read what was flushed
+	 * before this.
+	 */
+	@Override
+	public void close() {
+		synchronized (pending) {
+			closed = true;
+			pending.clear();
+			pendingBytes = 0;
+			pending.notifyAll();
+		}
+		synchronized (in) {
+			in.closed = true;
+			in.frames.clear();
+			in.notifyAll();
+		}
+		synchronized (out) {
+			out.closed = true;
+			out.notifyAll();
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+}
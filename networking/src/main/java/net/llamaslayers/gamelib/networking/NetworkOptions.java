@@ -0,0 +1,523 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Tunables for {@link AbstractServer} and {@link AbstractClient}. Options are
+ * copied when a server or client is created, so changing an instance
+ * afterwards only affects servers and clients created later.
+ */
+public class NetworkOptions {
+	private int selectorThreads;
+	private int acceptorThreads = 1;
+	private int streamResetInterval = 1;
+	private PacketRegistry packetRegistry = new PacketRegistry();
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+	private int inboundQueueCapacity = 4096;
+	private long inboundQueueBytes = 16 * 1024 * 1024;
+	private OverflowPolicy inboundOverflowPolicy = OverflowPolicy.BLOCK;
+	private int outboundQueueCapacity;
+	private long outboundQueueBytes;
+	private OverflowPolicy outboundOverflowPolicy = OverflowPolicy.BLOCK;
+	private int lanes = 1;
+	private int fragmentSize = 16 * 1024;
+	private ThreadFactory connectionThreadFactory;
+	private boolean unreliableChannel;
+	private int compressionThreshold;
+	private byte[] compressionDictionary;
+	private long pingInterval = 5000;
+	private long idleTimeout = 30000;
+	private long sessionTimeout;
+	private long replayBufferBytes = 1024 * 1024;
+	private boolean detailedMetrics;
+	private String metricsName;
+	private PacketRecorder packetRecorder;
+
+	public NetworkOptions() {
+	}
+
+	public NetworkOptions(NetworkOptions other) {
+		this.selectorThreads = other.selectorThreads;
+		this.acceptorThreads = other.acceptorThreads;
+		this.streamResetInterval = other.streamResetInterval;
+		this.packetRegistry = other.packetRegistry;
+		this.flushPolicy = other.flushPolicy;
+		this.inboundQueueCapacity = other.inboundQueueCapacity;
+		this.inboundQueueBytes = other.inboundQueueBytes;
+		this.inboundOverflowPolicy = other.inboundOverflowPolicy;
+		this.outboundQueueCapacity = other.outboundQueueCapacity;
+		this.outboundQueueBytes = other.outboundQueueBytes;
+		this.outboundOverflowPolicy = other.outboundOverflowPolicy;
+		this.lanes = other.lanes;
+		this.fragmentSize = other.fragmentSize;
+		this.connectionThreadFactory = other.connectionThreadFactory;
+		this.unreliableChannel = other.unreliableChannel;
+		this.compressionThreshold = other.compressionThreshold;
+		this.compressionDictionary = other.compressionDictionary;
+		this.pingInterval = other.pingInterval;
+		this.idleTimeout = other.idleTimeout;
+		this.sessionTimeout = other.sessionTimeout;
+		this.replayBufferBytes = other.replayBufferBytes;
+		this.detailedMetrics = other.detailedMetrics;
+		this.metricsName = other.metricsName;
+		this.packetRecorder = other.packetRecorder;
+	}
+
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * Serve connections from a fixed pool of selector threads instead of
+	 * starting one thread per connection. Only used by {@link AbstractServer}.
+	 *
+	 * @param selectorThreads the number of I/O threads, or 0 to use one
+	 * blocking thread per connection
+	 */
+	public NetworkOptions setSelectorThreads(int selectorThreads) {
+		if (selectorThreads < 0) {
+			throw new IllegalArgumentException("selectorThreads < 0");
+		}
+		this.selectorThreads = selectorThreads;
+		return this;
+	}
+
+	public int getAcceptorThreads() {
+		return acceptorThreads;
+	}
+
+	/**
+	 * Accepts connections on this many threads. Accepting a connection is
+	 * cheap, but setting it up is not: the handshake of a blocking connection
+	 * waits for the client, and every connection needs its queues and
+	 * serialization stream. More threads keep a storm of connections, such as
+	 * every player reconnecting after a restart, from queueing up behind one
+	 * thread. With selector threads, each acceptor hands its connections to
+	 * its own share of them. Only used by {@link AbstractServer}, whose
+	 * {@link AbstractServer#handleNewConnection(ServerClient)} is then called
+	 * from several threads at once.
+	 */
+	public NetworkOptions setAcceptorThreads(int acceptorThreads) {
+		if (acceptorThreads < 1) {
+			throw new IllegalArgumentException("acceptorThreads < 1");
+		}
+		this.acceptorThreads = acceptorThreads;
+		return this;
+	}
+
+	public int getStreamResetInterval() {
+		return streamResetInterval;
+	}
+
+	/**
+	 * Each connection serializes packets through a single stream, so class
+	 * descriptors are only sent once. Between resets the stream also shares
+	 * object handles: an object that is sent again arrives as a reference to
+	 * the copy the other side already has, even if it has been modified since.
+	 * The default of 1 resets before every packet, which is only worth raising
+	 * for packets that are never modified after being sent. Resets also bound
+	 * the memory both sides spend on remembering objects.
+	 *
+	 * @param streamResetInterval the number of packets between resets
+	 */
+	public NetworkOptions setStreamResetInterval(int streamResetInterval) {
+		if (streamResetInterval < 1) {
+			throw new IllegalArgumentException("streamResetInterval < 1");
+		}
+		this.streamResetInterval = streamResetInterval;
+		return this;
+	}
+
+	public PacketRegistry getPacketRegistry() {
+		return packetRegistry;
+	}
+
+	/**
+	 * Sets the codecs used to encode packets. The registry is shared rather
+	 * than copied, and must match the registry used on the other side.
+	 */
+	public NetworkOptions setPacketRegistry(PacketRegistry packetRegistry) {
+		if (packetRegistry == null) {
+			throw new NullPointerException("packetRegistry");
+		}
+		this.packetRegistry = packetRegistry;
+		return this;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Sets when written packets are sent. The default sends every packet as
+	 * soon as it is written.
+	 */
+	public NetworkOptions setFlushPolicy(FlushPolicy flushPolicy) {
+		if (flushPolicy == null) {
+			throw new NullPointerException("flushPolicy");
+		}
+		this.flushPolicy = flushPolicy;
+		return this;
+	}
+
+	public int getInboundQueueCapacity() {
+		return inboundQueueCapacity;
+	}
+
+	/**
+	 * Sets how many received packets each connection holds until they are
+	 * picked up. What happens when the queue is full is decided by
+	 * {@link #setInboundOverflowPolicy(OverflowPolicy)}.
+	 *
+	 * @param inboundQueueCapacity the number of packets, rounded up to a
+	 * power of two
+	 */
+	public NetworkOptions setInboundQueueCapacity(int inboundQueueCapacity) {
+		if (inboundQueueCapacity < 1) {
+			throw new IllegalArgumentException("inboundQueueCapacity < 1");
+		}
+		this.inboundQueueCapacity = inboundQueueCapacity;
+		return this;
+	}
+
+	public long getInboundQueueBytes() {
+		return inboundQueueBytes;
+	}
+
+	/**
+	 * Sets how many bytes of received packets, counted by the size of their
+	 * frames, each connection holds until they are picked up. A packet that is
+	 * larger than the limit is still queued once the queue is empty. The
+	 * default is 16 MiB.
+	 *
+	 * @param inboundQueueBytes the number of bytes, or 0 for no limit
+	 */
+	public NetworkOptions setInboundQueueBytes(long inboundQueueBytes) {
+		if (inboundQueueBytes < 0) {
+			throw new IllegalArgumentException("inboundQueueBytes < 0");
+		}
+		this.inboundQueueBytes = inboundQueueBytes;
+		return this;
+	}
+
+	public OverflowPolicy getInboundOverflowPolicy() {
+		return inboundOverflowPolicy;
+	}
+
+	/**
+	 * Sets what happens to a received packet when the inbound queue is full.
+	 * The default is {@link OverflowPolicy#BLOCK}.
+	 */
+	public NetworkOptions setInboundOverflowPolicy(OverflowPolicy inboundOverflowPolicy) {
+		if (inboundOverflowPolicy == null) {
+			throw new NullPointerException("inboundOverflowPolicy");
+		}
+		this.inboundOverflowPolicy = inboundOverflowPolicy;
+		return this;
+	}
+
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	/**
+	 * Sets how many written packets each connection holds while the other
+	 * side is not reading them fast enough. Only connections served by
+	 * selector threads queue packets; blocking connections make
+	 * {@code write} wait for the socket instead.
+	 *
+	 * @param outboundQueueCapacity the number of packets, or 0 for no limit
+	 */
+	public NetworkOptions setOutboundQueueCapacity(int outboundQueueCapacity) {
+		if (outboundQueueCapacity < 0) {
+			throw new IllegalArgumentException("outboundQueueCapacity < 0");
+		}
+		this.outboundQueueCapacity = outboundQueueCapacity;
+		return this;
+	}
+
+	public long getOutboundQueueBytes() {
+		return outboundQueueBytes;
+	}
+
+	/**
+	 * Sets how many bytes of written packets each connection holds while the
+	 * other side is not reading them fast enough.
+	 *
+	 * @param outboundQueueBytes the number of bytes, or 0 for no limit
+	 * @see #setOutboundQueueCapacity(int)
+	 */
+	public NetworkOptions setOutboundQueueBytes(long outboundQueueBytes) {
+		if (outboundQueueBytes < 0) {
+			throw new IllegalArgumentException("outboundQueueBytes < 0");
+		}
+		this.outboundQueueBytes = outboundQueueBytes;
+		return this;
+	}
+
+	public OverflowPolicy getOutboundOverflowPolicy() {
+		return outboundOverflowPolicy;
+	}
+
+	/**
+	 * Sets what happens to a written packet when the outbound queue is full.
+	 * The default is {@link OverflowPolicy#BLOCK}.
+	 */
+	public NetworkOptions setOutboundOverflowPolicy(OverflowPolicy outboundOverflowPolicy) {
+		if (outboundOverflowPolicy == null) {
+			throw new NullPointerException("outboundOverflowPolicy");
+		}
+		this.outboundOverflowPolicy = outboundOverflowPolicy;
+		return this;
+	}
+
+	public int getLanes() {
+		return lanes;
+	}
+
+	/**
+	 * Splits the packets a connection sends into lanes, chosen with
+	 * {@code write(packet, lane)}. Lane 0 goes first: a packet waits for the
+	 * packets written before it on its own lane and on lanes with lower
+	 * numbers, but overtakes unsent packets on higher lanes. Packets larger
+	 * than the {@link #setFragmentSize(int) fragment size} are sent in
+	 * fragments, so a bulk transfer on a high lane holds up a packet on a
+	 * lower lane by at most a fragment or so. Each lane has a serialization
+	 * stream of its own. With the default of 1, nothing about the wire format
+	 * changes.
+	 *
+	 * @param lanes the number of lanes, from 1 to 16
+	 */
+	public NetworkOptions setLanes(int lanes) {
+		if (lanes < 1 || lanes > Packets.MAX_LANES) {
+			throw new IllegalArgumentException("lanes not between 1 and " + Packets.MAX_LANES);
+		}
+		this.lanes = lanes;
+		return this;
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	/**
+	 * Sets the largest fragment larger packets are split into when there is
+	 * more than one {@link #setLanes(int) lane}. Smaller fragments let other
+	 * lanes in sooner but cost a few bytes each.
+	 *
+	 * @param fragmentSize the size in bytes, or 0 to never split packets
+	 */
+	public NetworkOptions setFragmentSize(int fragmentSize) {
+		if (fragmentSize < 0) {
+			throw new IllegalArgumentException("fragmentSize < 0");
+		}
+		this.fragmentSize = fragmentSize;
+		return this;
+	}
+
+	public ThreadFactory getConnectionThreadFactory() {
+		return connectionThreadFactory;
+	}
+
+	/**
+	 * Sets where {@link AbstractServer} runs the read loop of each blocking
+	 * connection. By default every connection is started as a platform thread
+	 * of its own. {@link ConnectionThreads#virtual()} runs them on virtual
+	 * threads instead, which makes idle connections much cheaper. Not used
+	 * with {@link #setSelectorThreads(int) selector threads}.
+	 *
+	 * @param connectionThreadFactory the factory, or null for the default
+	 */
+	public NetworkOptions setConnectionThreadFactory(ThreadFactory connectionThreadFactory) {
+		this.connectionThreadFactory = connectionThreadFactory;
+		return this;
+	}
+
+	public boolean isUnreliableChannel() {
+		return unreliableChannel;
+	}
+
+	/**
+	 * Opens a UDP channel next to each connection's TCP stream, for packets
+	 * sent with {@code writeUnreliable}. A server listens for datagrams on the
+	 * same port number as for connections, and gives a channel to every
+	 * client that asks for one. A client with this option can only connect to
+	 * a server with it, but a server with it also takes clients without.
+	 */
+	public NetworkOptions setUnreliableChannel(boolean unreliableChannel) {
+		this.unreliableChannel = unreliableChannel;
+		return this;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Compresses packets of at least this many bytes before sending them.
+	 * Packets are compressed one at a time, so small packets only shrink if
+	 * they repeat themselves or a {@link #setCompressionDictionary dictionary}
+	 * is set. Compressed packets are understood whatever this option is set
+	 * to on the receiving side.
+	 *
+	 * @param compressionThreshold the length in bytes, or 0 to not compress
+	 */
+	public NetworkOptions setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) {
+			throw new IllegalArgumentException("compressionThreshold < 0");
+		}
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	public byte[] getCompressionDictionary() {
+		return compressionDictionary;
+	}
+
+	/**
+	 * Sets bytes that compressed packets may refer back to, such as one made
+	 * by {@link CompressionDictionary#train}. Both sides must use the same
+	 * dictionary. The dictionary is loaded again for every compressed packet,
+	 * so a few KiB usually compresses nearly as well as 32 KiB at a fraction
+	 * of the cost. The array is shared rather than copied.
+	 *
+	 * @param compressionDictionary the dictionary, or null for none
+	 */
+	public NetworkOptions setCompressionDictionary(byte[] compressionDictionary) {
+		this.compressionDictionary = compressionDictionary;
+		return this;
+	}
+
+	public long getPingInterval() {
+		return pingInterval;
+	}
+
+	/**
+	 * Pings the other side this often. Pings measure the round trip time, and
+	 * keep quiet connections from being closed for being idle. Pings and
+	 * their replies are handled by the connection and never reach the game.
+	 *
+	 * @param pingInterval the interval in milliseconds, or 0 to not ping
+	 */
+	public NetworkOptions setPingInterval(long pingInterval) {
+		if (pingInterval < 0) {
+			throw new IllegalArgumentException("pingInterval < 0");
+		}
+		this.pingInterval = pingInterval;
+		return this;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Closes a connection once nothing at all has been received over it for
+	 * this long. This should be several times the other side's
+	 * {@link #setPingInterval(long) ping interval}. The handshake must also
+	 * finish within this time.
+	 *
+	 * @param idleTimeout the timeout in milliseconds, or 0 to never close idle
+	 * connections
+	 */
+	public NetworkOptions setIdleTimeout(long idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("idleTimeout < 0");
+		}
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	public long getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * Lets a client whose connection drops reconnect and carry on where it
+	 * left off, keeping its {@link ServerClient}, its client id and every
+	 * packet that was in flight either way. Packets written while the
+	 * connection is down are sent once it is back. The game only notices a
+	 * delay, unless the client does not come back in time, in which case the
+	 * connection closes as it would have without this option. Both sides
+	 * need this option, and only servers without
+	 * {@link #setSelectorThreads(int) selector threads} keep sessions.
+	 *
+	 * @param sessionTimeout how long to wait for the client to come back, in
+	 * milliseconds, or 0 to close connections as soon as they drop
+	 */
+	public NetworkOptions setSessionTimeout(long sessionTimeout) {
+		if (sessionTimeout < 0) {
+			throw new IllegalArgumentException("sessionTimeout < 0");
+		}
+		this.sessionTimeout = sessionTimeout;
+		return this;
+	}
+
+	public long getReplayBufferBytes() {
+		return replayBufferBytes;
+	}
+
+	/**
+	 * Keeps up to this many bytes of the latest frames sent over each
+	 * connection with a {@link #setSessionTimeout(long) session}, to send
+	 * again after a reconnect. A session cannot be resumed if the other side
+	 * missed more than this, so it should cover what is sent during the
+	 * session timeout.
+	 */
+	public NetworkOptions setReplayBufferBytes(long replayBufferBytes) {
+		if (replayBufferBytes <= 0) {
+			throw new IllegalArgumentException("replayBufferBytes <= 0");
+		}
+		this.replayBufferBytes = replayBufferBytes;
+		return this;
+	}
+
+	public boolean isDetailedMetrics() {
+		return detailedMetrics;
+	}
+
+	/**
+	 * Counts packets and bytes, samples queue depths and times encoding,
+	 * waiting for the write lock and waiting in the inbound queue. This costs
+	 * a few clock reads and atomic operations per packet, so it is off by
+	 * default. Drops and compression are counted either way.
+	 *
+	 * @see ConnectionMetrics
+	 */
+	public NetworkOptions setDetailedMetrics(boolean detailedMetrics) {
+		this.detailedMetrics = detailedMetrics;
+		return this;
+	}
+
+	public String getMetricsName() {
+		return metricsName;
+	}
+
+	/**
+	 * Registers the metrics of the server or client, and of each of a
+	 * server's connections, with the platform MBean server under this name.
+	 *
+	 * @param metricsName the name, or null to not register
+	 */
+	public NetworkOptions setMetricsName(String metricsName) {
+		this.metricsName = metricsName;
+		return this;
+	}
+
+	public PacketRecorder getPacketRecorder() {
+		return packetRecorder;
+	}
+
+	/**
+	 * Records every frame received by a server's connections, to be sent to a
+	 * server again with a {@link PacketReplayer}. Only used by
+	 * {@link AbstractServer}. The recorder is shared by the servers created
+	 * with these options, and is not closed when they stop.
+	 *
+	 * @param packetRecorder the recorder, or null to not record
+	 */
+	public NetworkOptions setPacketRecorder(PacketRecorder packetRecorder) {
+		this.packetRecorder = packetRecorder;
+		return this;
+	}
+}
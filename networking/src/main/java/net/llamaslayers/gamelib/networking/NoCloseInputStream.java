@@ -15,6 +15,21 @@ class NoCloseInputStream extends InputStream {
 		return in.read();
 	}
 
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		return in.read(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		return in.skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in.available();
+	}
+
 	@Override
 	public void close() throws IOException {
 		// NOPE
@@ -0,0 +1,364 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outgoing side of a connection. Packets are encoded in the order they
+ * are written and handed to the transport, which holds on to them until this
+ * queue flushes it according to the connection's {@link FlushPolicy}.
+ *
+ * With more than one {@link NetworkOptions#setLanes(int) lane}, encoded
+ * frames wait in their lane instead, split into fragments if they are large.
+ * Writers hand frames to the transport one at a time, always from the lowest
+ * lane that has any, and let go of the lock in between, so a packet written
+ * to a low lane gets in between the fragments of a large packet on a higher
+ * one. A writer keeps going until its own lane and every lower one are empty.
+ */
+final class OutboundQueue {
+	/**
+	 * Says when delayed flushes are due for every connection, and never runs
+	 * them itself.
+	 */
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Flush timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	/**
+	 * Runs delayed flushes. A flush can block on a socket whose other side
+	 * stopped reading, which then only holds up one of these threads instead
+	 * of every connection's flushes. A connection has at most one delayed
+	 * flush at a time, since the next is not scheduled until it has run.
+	 */
+	private static final ExecutorService FLUSHERS = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Delayed flush");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final Transport transport;
+	private final PacketWriter writer;
+	/**
+	 * The lanes, or null if there is only one.
+	 */
+	private final Lane[] lanes;
+	private final int fragmentSize;
+	private final FlushPolicy policy;
+	private final OverflowPolicy overflowPolicy;
+	private final int maxPackets;
+	private final long maxBytes;
+	private final ConnectionMetrics metrics;
+	private final boolean detailed;
+	private int unflushed;
+	private ScheduledFuture<?> timeout;
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException ex) {
+				Logger.getLogger(OutboundQueue.class.getName()).log(Level.SEVERE, null, ex);
+				try {
+					transport.close();
+				} catch (IOException e) {
+					Logger.getLogger(OutboundQueue.class.getName()).log(Level.SEVERE, null, e);
+				}
+			}
+		}
+	};
+	private final Runnable flushDue = new Runnable() {
+		@Override
+		public void run() {
+			FLUSHERS.execute(flushTask);
+		}
+	};
+
+	OutboundQueue(Transport transport, NetworkOptions options, ConnectionMetrics metrics) throws IOException {
+		this.transport = transport;
+		this.writer = new PacketWriter(options.getPacketRegistry(), options.getStreamResetInterval(), new PacketCompressor(options, metrics));
+		if (options.getLanes() > 1) {
+			lanes = new Lane[options.getLanes()];
+			lanes[0] = new Lane(writer);
+			for (int i = 1; i < lanes.length; i++) {
+				lanes[i] = new Lane(new PacketWriter(options.getPacketRegistry(), options.getStreamResetInterval(), new PacketCompressor(options, metrics)));
+			}
+		} else {
+			lanes = null;
+		}
+		this.fragmentSize = options.getFragmentSize();
+		this.policy = options.getFlushPolicy();
+		this.overflowPolicy = options.getOutboundOverflowPolicy();
+		this.maxPackets = options.getOutboundQueueCapacity();
+		this.maxBytes = options.getOutboundQueueBytes();
+		this.metrics = metrics;
+		this.detailed = metrics.isDetailed();
+	}
+
+	/**
+	 * A frame waiting in a lane.
+	 */
+	private static final class Pending {
+		final ByteBuffer frame;
+		final boolean flushNow;
+		/**
+		 * When the packet was written, if this is its last frame and metrics
+		 * are detailed, or 0.
+		 */
+		final long queued;
+		/**
+		 * The thread that wrote the packet, if more of its fragments follow.
+		 */
+		final Thread writer;
+
+		Pending(ByteBuffer frame, boolean flushNow, long queued, Thread writer) {
+			this.frame = frame;
+			this.flushNow = flushNow;
+			this.queued = queued;
+			this.writer = writer;
+		}
+	}
+
+	private static final class Lane {
+		final PacketWriter writer;
+		final ArrayDeque<Pending> frames = new ArrayDeque<Pending>();
+
+		Lane(PacketWriter writer) {
+			this.writer = writer;
+		}
+	}
+
+	void write(Serializable packet) throws IOException {
+		write(packet, 0);
+	}
+
+	void write(Serializable packet, int lane) throws IOException {
+		if (lane < 0 || lane >= (lanes == null ? 1 : lanes.length)) {
+			throw new IllegalArgumentException("No lane " + lane);
+		}
+		// Control packets are small and must not wait behind the game's.
+		boolean control = packet instanceof DisconnectPacket || packet instanceof PingPacket;
+		long start;
+		while (true) {
+			if (!control && !awaitRoom()) {
+				return;
+			}
+			start = detailed ? System.nanoTime() : 0;
+			synchronized (this) {
+				if (detailed) {
+					metrics.writeLockWait(System.nanoTime() - start);
+				}
+				if (!control && blocksWhenFull() && isFull()) {
+					continue; // Filled up again by another writer meanwhile.
+				}
+				if (!control && !makeRoom()) {
+					return;
+				}
+				long encodeStart = detailed ? System.nanoTime() : 0;
+				ByteBuffer frame = (lanes == null ? writer : lanes[lane].writer).encode(packet);
+				if (detailed) {
+					metrics.serialized(packet.getClass(), System.nanoTime() - encodeStart);
+				}
+				if (lanes == null) {
+					append(frame, control);
+					return;
+				}
+				queue(lane, frame, control, start);
+				break;
+			}
+		}
+		pump(lane);
+	}
+
+	/**
+	 * Sends a frame that was encoded elsewhere, in order with the packets
+	 * written to lane 0 of this queue.
+	 */
+	void write(ByteBuffer frame, boolean flushNow) throws IOException {
+		while (true) {
+			if (!flushNow && !awaitRoom()) {
+				return;
+			}
+			long start = detailed ? System.nanoTime() : 0;
+			synchronized (this) {
+				if (detailed) {
+					metrics.writeLockWait(System.nanoTime() - start);
+				}
+				if (!flushNow && blocksWhenFull() && isFull()) {
+					continue;
+				}
+				if (!flushNow && !makeRoom()) {
+					return;
+				}
+				if (lanes == null) {
+					append(frame, flushNow);
+					return;
+				}
+				queue(0, frame, flushNow, start);
+				break;
+			}
+		}
+		pump(0);
+	}
+
+	/**
+	 * @param queued when the packet was written, if metrics are detailed
+	 */
+	private void queue(int lane, ByteBuffer frame, boolean flushNow, long queued) throws IOException {
+		Lane target = lanes[lane];
+		if (fragmentSize > 0 && frame.remaining() > fragmentSize + 2 * VarInts.MAX_LENGTH) {
+			List<ByteBuffer> fragments = Packets.fragment(lane, frame, fragmentSize);
+			for (int i = 0; i < fragments.size(); i++) {
+				boolean last = i == fragments.size() - 1;
+				target.frames.add(new Pending(fragments.get(i), flushNow && last, last ? queued : 0, last ? null : Thread.currentThread()));
+			}
+		} else {
+			target.frames.add(new Pending(lane == 0 ? frame : Packets.laneFrame(lane, frame), flushNow, queued, null));
+		}
+	}
+
+	/**
+	 * Hands frames to the transport until lane {@code maxLane} and every lower
+	 * lane are empty. Between fragments of its own packets, the calling
+	 * thread waits for the transport to send most of what it holds, so that
+	 * packets written to lower lanes meanwhile do not queue up behind them.
+	 */
+	private void pump(int maxLane) throws IOException {
+		while (true) {
+			Pending next = null;
+			boolean wait;
+			synchronized (this) {
+				for (int lane = 0; lane <= maxLane && next == null; lane++) {
+					next = lanes[lane].frames.poll();
+					if (next != null && next.queued != 0) {
+						metrics.laneWait(lane, System.nanoTime() - next.queued);
+					}
+				}
+				if (next == null) {
+					return;
+				}
+				append(next.frame, next.flushNow);
+				wait = next.writer == Thread.currentThread() && unflushed == 0;
+			}
+			if (wait) {
+				transport.awaitRoom(0, fragmentSize);
+			}
+		}
+	}
+
+	private boolean isFull() {
+		return maxPackets > 0 && transport.queuedFrames() >= maxPackets
+				|| maxBytes > 0 && transport.queuedBytes() >= maxBytes;
+	}
+
+	private boolean blocksWhenFull() {
+		return overflowPolicy == OverflowPolicy.BLOCK;
+	}
+
+	/**
+	 * With the {@link OverflowPolicy#BLOCK} policy, waits until the
+	 * transport's queue has room. This queue's lock is not held meanwhile,
+	 * since a selector worker takes it to answer a ping, and is what makes
+	 * the room.
+	 *
+	 * @return false if the transport was closed while waiting
+	 */
+	private boolean awaitRoom() throws IOException {
+		if (!blocksWhenFull()) {
+			return true;
+		}
+		while (isFull()) {
+			flushTransport();
+			transport.awaitRoom(maxPackets, maxBytes);
+			if (transport.isClosed()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the overflow policy if the transport's queue is full. Called
+	 * with this queue's lock held, after {@link #awaitRoom()}.
+	 *
+	 * @return false if the packet must not be sent
+	 */
+	private boolean makeRoom() throws IOException {
+		if (!isFull()) {
+			return true;
+		}
+		switch (overflowPolicy) {
+		case BLOCK:
+			return true; // Only when the caller already checked, under the lock.
+		case DROP_OLDEST:
+			while (isFull()) {
+				metrics.outboundDropped(1);
+				if (!transport.dropOldest()) {
+					return false;
+				}
+			}
+			return true;
+		case DROP_NEWEST:
+			metrics.outboundDropped(1);
+			return false;
+		default:
+			Logger.getLogger(OutboundQueue.class.getName()).log(Level.WARNING, "Outbound queue is full, disconnecting");
+			metrics.overflowDisconnect();
+			transport.close();
+			return false;
+		}
+	}
+
+	private void append(ByteBuffer frame, boolean flushNow) throws IOException {
+		int length = frame.remaining();
+		transport.write(frame);
+		unflushed += length;
+		if (detailed) {
+			metrics.sent(length);
+			metrics.outboundQueueDepth(transport.queuedFrames());
+		}
+		if (flushNow || policy.isFull(unflushed)) {
+			flushTransport();
+		} else if (timeout == null && policy.getMaxDelay(TimeUnit.NANOSECONDS) > 0) {
+			timeout = TIMER.schedule(flushDue, policy.getMaxDelay(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Sends everything that has been written.
+	 */
+	void flush() throws IOException {
+		if (lanes != null) {
+			pump(lanes.length - 1);
+		}
+		flushTransport();
+	}
+
+	private synchronized void flushTransport() throws IOException {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		if (unflushed == 0) {
+			return;
+		}
+		unflushed = 0;
+		transport.flush();
+	}
+}
@@ -0,0 +1,29 @@
+package net.llamaslayers.gamelib.networking;
+
+/**
+ * What a connection does when one of its queues is full. Drops and
+ * disconnects are counted in the connection's {@link ConnectionMetrics}.
+ */
+public enum OverflowPolicy {
+	/**
+	 * Waits for room. A full inbound queue stops the connection from being
+	 * read, so the other side is slowed down by TCP. A full outbound queue
+	 * makes {@code write} wait until the other side has caught up.
+	 */
+	BLOCK,
+	/**
+	 * Drops the oldest queued packets to make room. Outgoing packets that went
+	 * through the connection's serialization stream cannot be dropped once
+	 * they are queued, since the packets after them may depend on them. If
+	 * only such packets are queued, the new packet is dropped instead.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Drops the packet that did not fit.
+	 */
+	DROP_NEWEST,
+	/**
+	 * Closes the connection.
+	 */
+	DISCONNECT
+}
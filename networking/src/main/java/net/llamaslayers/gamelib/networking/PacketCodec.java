@@ -0,0 +1,29 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Hand-written binary encoding for one packet class. Codecs are registered
+ * with a {@link PacketRegistry}; packets of any other class are sent using
+ * Java serialization.
+ *
+ * @param <T> the packet class
+ */
+public interface PacketCodec<T extends Serializable> {
+	/**
+	 * Writes {@code packet} starting at the buffer's position. If the buffer
+	 * runs out of room, the resulting {@link java.nio.BufferOverflowException}
+	 * is caught and the packet is encoded again into a larger buffer.
+	 */
+	public void encode(T packet, ByteBuffer out) throws IOException;
+
+	/**
+	 * Reads a packet written by {@link #encode}. The buffer's limit is the end
+	 * of the packet. The buffer may share its memory with the connection's read
+	 * buffer, which is reused as soon as this method returns, so the packet
+	 * must not keep a reference to it.
+	 */
+	public T decode(ByteBuffer in) throws IOException;
+}
@@ -0,0 +1,147 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses frames whose packet is at least as long as the connection's
+ * compression threshold, and decompresses frames from the other side. Every
+ * frame is compressed on its own, so frames can still be dropped or shared
+ * between connections, but each connection resets and reuses one
+ * {@link Deflater} for the frames it sends and one {@link Inflater} for the
+ * frames it receives. Both are created on first use, so connections that
+ * never compress pay nothing for them.
+ *
+ * A compressed frame has the id {@link Packets#COMPRESSED}, followed by the
+ * id of the packet inside, the length of the packet and the packet in zlib
+ * format. Frames are only sent compressed if that makes them smaller.
+ */
+final class PacketCompressor {
+	private final int threshold;
+	private final byte[] dictionary;
+	private final ConnectionMetrics metrics;
+	private Deflater deflater;
+	private byte[] deflated;
+	private Inflater inflater;
+	private byte[] inflated;
+	private byte[] input;
+
+	PacketCompressor(NetworkOptions options, ConnectionMetrics metrics) {
+		this.threshold = options.getCompressionThreshold();
+		this.dictionary = options.getCompressionDictionary();
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compresses the frame body (packet id and packet) in
+	 * {@code array[start..end)}. Callers must not compress from more than one
+	 * thread at a time.
+	 *
+	 * @return the compressed frame, with its length prefix, or null if the
+	 * packet is too short or does not get any shorter
+	 */
+	ByteBuffer compress(byte[] array, int start, int end) {
+		if (threshold <= 0) {
+			return null;
+		}
+		ByteBuffer body = ByteBuffer.wrap(array, start, end - start);
+		int id = VarInts.get(body);
+		int offset = body.position();
+		int length = end - offset;
+		if (length < threshold) {
+			return null;
+		}
+		long begin = System.nanoTime();
+		if (deflater == null) {
+			deflater = new Deflater();
+			deflated = new byte[Math.max(length, 256)];
+		}
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(array, offset, length);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished() && size < length) {
+			if (size == deflated.length) {
+				byte[] larger = new byte[deflated.length * 2];
+				System.arraycopy(deflated, 0, larger, 0, size);
+				deflated = larger;
+			}
+			size += deflater.deflate(deflated, size, deflated.length - size);
+		}
+		int bodyLength = VarInts.size(Packets.COMPRESSED) + VarInts.size(id) + VarInts.size(length) + size;
+		boolean smaller = deflater.finished() && bodyLength < end - start;
+		metrics.compressed(length, smaller ? size : length, System.nanoTime() - begin);
+		if (!smaller) {
+			return null;
+		}
+		ByteBuffer frame = ByteBuffer.allocate(VarInts.size(bodyLength) + bodyLength);
+		VarInts.put(frame, bodyLength);
+		VarInts.put(frame, Packets.COMPRESSED);
+		VarInts.put(frame, id);
+		VarInts.put(frame, length);
+		frame.put(deflated, 0, size);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Decompresses the packet of a compressed frame, read after its packet id.
+	 * Only called by the thread reading the connection. The returned buffer is
+	 * reused by the next call.
+	 */
+	ByteBuffer decompress(ByteBuffer frame) throws IOException {
+		int length = VarInts.get(frame);
+		if (length < 0 || length > Packets.MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid compressed packet length " + length);
+		}
+		long begin = System.nanoTime();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		if (inflated == null || inflated.length < length) {
+			inflated = new byte[Math.max(length, 256)];
+		}
+		inflater.reset();
+		if (frame.hasArray()) {
+			inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		} else {
+			if (input == null || input.length < frame.remaining()) {
+				input = new byte[Math.max(frame.remaining(), 256)];
+			}
+			int remaining = frame.remaining();
+			frame.duplicate().get(input, 0, remaining);
+			inflater.setInput(input, 0, remaining);
+		}
+		try {
+			int size = 0;
+			while (!inflater.finished()) {
+				int read = inflater.inflate(inflated, size, length - size);
+				size += read;
+				if (inflater.needsDictionary()) {
+					if (dictionary == null) {
+						throw new IOException("Compressed packet needs a dictionary");
+					}
+					inflater.setDictionary(dictionary);
+				} else if (read == 0 && (size == length || inflater.needsInput())) {
+					break;
+				}
+			}
+			if (!inflater.finished() || size != length) {
+				throw new IOException("Compressed packet is corrupt");
+			}
+		} catch (DataFormatException ex) {
+			throw new IOException("Compressed packet is corrupt", ex);
+		} catch (IllegalArgumentException ex) { // Wrong dictionary.
+			throw new IOException("Compressed packet is corrupt", ex);
+		}
+		frame.position(frame.limit());
+		metrics.decompressed(System.nanoTime() - begin);
+		return ByteBuffer.wrap(inflated, 0, length);
+	}
+}
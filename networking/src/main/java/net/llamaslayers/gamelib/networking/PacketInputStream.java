@@ -0,0 +1,34 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads what {@link PacketOutputStream} writes.
+ */
+final class PacketInputStream extends ObjectInputStream {
+	private final List<ObjectStreamClass> classes = new ArrayList<ObjectStreamClass>();
+
+	PacketInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		int id = readInt();
+		if (id == -1) {
+			ObjectStreamClass desc = super.readClassDescriptor();
+			classes.add(desc);
+			return desc;
+		}
+		if (id < 0 || id >= classes.size()) {
+			throw new StreamCorruptedException("Unknown class descriptor " + id);
+		}
+		return classes.get(id);
+	}
+}
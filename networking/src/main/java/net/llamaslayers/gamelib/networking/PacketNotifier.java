@@ -0,0 +1,44 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tells a listener once that a connection has a packet waiting in either of
+ * its inbound queues, or has been closed, so a few threads can take packets
+ * from many connections without waiting on any of them.
+ */
+final class PacketNotifier {
+	private final AtomicReference<Runnable> current = new AtomicReference<Runnable>();
+
+	/**
+	 * Replaces the listener set before, if it has not run yet.
+	 *
+	 * @param unreliable the connection's other queue, or null
+	 */
+	void whenPacket(final Runnable listener, InboundQueue queue, InboundQueue unreliable) {
+		Runnable once = new Runnable() {
+			@Override
+			public void run() {
+				if (current.compareAndSet(this, null)) {
+					listener.run();
+				}
+			}
+		};
+		current.set(once);
+		queue.whenPacket(once);
+		if (unreliable != null) {
+			unreliable.whenPacket(once);
+		}
+	}
+
+	/**
+	 * Runs the listener, if it has not run yet, because no more packets will
+	 * arrive.
+	 */
+	void closed() {
+		Runnable listener = current.get();
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
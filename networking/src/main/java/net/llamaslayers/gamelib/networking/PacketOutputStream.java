@@ -0,0 +1,55 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link ObjectOutputStream} that remembers which class descriptors it has
+ * sent. {@link #reset()} only forgets objects, so a class descriptor is sent
+ * once per connection and afterwards referred to by a small number.
+ */
+final class PacketOutputStream extends ObjectOutputStream {
+	private final Map<Class<?>, Integer> classIds = new HashMap<Class<?>, Integer>();
+	private final List<Class<?>> classes = new ArrayList<Class<?>>();
+	private int committed;
+
+	PacketOutputStream(OutputStream out) throws IOException {
+		super(out);
+	}
+
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		Integer id = classIds.get(desc.forClass());
+		if (id != null) {
+			writeInt(id);
+			return;
+		}
+		writeInt(-1);
+		super.writeClassDescriptor(desc);
+		classIds.put(desc.forClass(), classes.size());
+		classes.add(desc.forClass());
+	}
+
+	/**
+	 * Marks every descriptor sent so far as received by the other side.
+	 */
+	void commit() {
+		committed = classes.size();
+	}
+
+	/**
+	 * Forgets descriptors written since the last {@link #commit()}, for when
+	 * the bytes they were written to are thrown away.
+	 */
+	void rollback() {
+		while (classes.size() > committed) {
+			classIds.remove(classes.remove(classes.size() - 1));
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes frames written by a {@link PacketWriter}. Each connection has its
+ * own reader, which is only used by the thread that reads the connection.
+ */
+final class PacketReader {
+	private final PacketRegistry registry;
+	private final FrameInputStream frames = new FrameInputStream();
+	private final PacketCompressor compressor;
+	private PacketInputStream in;
+	/**
+	 * Readers for lanes other than lane 0, each with a serialization stream
+	 * of its own, created as they are first used.
+	 */
+	private PacketReader[] lanes;
+	/**
+	 * Fragments received so far of the packet being sent on each lane.
+	 */
+	private ByteBuffer[] fragments;
+
+	PacketReader(PacketRegistry registry) {
+		this(registry, null);
+	}
+
+	/**
+	 * @param compressor decompresses compressed frames, or null if the other
+	 * side never compresses
+	 */
+	PacketReader(PacketRegistry registry, PacketCompressor compressor) {
+		this.registry = registry;
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Decodes the rest of a frame after its length prefix. The frame is read
+	 * where it is, so it may be part of a larger (and reused) read buffer.
+	 *
+	 * @return the packet, or null if it has an id that is not registered
+	 * @throws IOException if the frame is malformed, including when it ends
+	 * early or a codec fails to decode it
+	 */
+	Serializable decode(ByteBuffer frame) throws IOException, ClassNotFoundException {
+		try {
+			return decodeFrame(frame);
+		} catch (RuntimeException ex) { // Garbage from the network.
+			throw new IOException("Malformed frame", ex);
+		}
+	}
+
+	private Serializable decodeFrame(ByteBuffer frame) throws IOException, ClassNotFoundException {
+		int id = VarInts.get(frame);
+		if (id == Packets.LANE) {
+			PacketReader reader = lane(VarInts.get(frame));
+			return reader.decode(VarInts.get(frame), frame);
+		}
+		if (id == Packets.FRAGMENT) {
+			return fragment(frame);
+		}
+		return decode(id, frame);
+	}
+
+	/**
+	 * Decodes a packet that is not wrapped in a lane or fragment header. A
+	 * frame with such headers nested in it is corrupt, and decoding it
+	 * recursively could run out of stack.
+	 */
+	private Serializable decode(int id, ByteBuffer frame) throws IOException, ClassNotFoundException {
+		if (id == Packets.LANE || id == Packets.FRAGMENT) {
+			throw new IOException("Nested lane or fragment header");
+		}
+		if (id == Packets.COMPRESSED) {
+			if (compressor == null) {
+				throw new IOException("Compressed packets are not expected here");
+			}
+			id = VarInts.get(frame);
+			frame = compressor.decompress(frame);
+		}
+		if (id == Packets.STANDALONE) {
+			frames.frame = frame;
+			try {
+				return (Serializable) new ObjectInputStream(frames).readObject();
+			} finally {
+				frames.frame = null;
+			}
+		}
+		if (id != Packets.SERIALIZED) {
+			PacketRegistry.Entry entry = registry.forId(id);
+			if (entry == null) {
+				Logger.getLogger(PacketReader.class.getName()).log(Level.WARNING, "Skipping packet with unknown id {0}", id);
+				return null;
+			}
+			return entry.codec.decode(frame.slice());
+		}
+		frames.frame = frame;
+		try {
+			if (in == null) {
+				in = new PacketInputStream(frames);
+			}
+			Serializable packet = (Serializable) in.readObject();
+			if (frame.hasRemaining()) {
+				throw new StreamCorruptedException(frame.remaining() + " unread bytes in frame");
+			}
+			return packet;
+		} finally {
+			frames.frame = null;
+		}
+	}
+
+	private PacketReader lane(int lane) throws IOException {
+		if (lane < 0 || lane >= Packets.MAX_LANES) {
+			throw new IOException("Invalid lane " + lane);
+		}
+		if (lane == 0) {
+			return this;
+		}
+		if (lanes == null) {
+			lanes = new PacketReader[Packets.MAX_LANES];
+		}
+		if (lanes[lane] == null) {
+			lanes[lane] = new PacketReader(registry, compressor);
+		}
+		return lanes[lane];
+	}
+
+	/**
+	 * Adds a fragment to the packet being sent on its lane.
+	 *
+	 * @return the packet if this was its last fragment, or null
+	 */
+	private Serializable fragment(ByteBuffer frame) throws IOException, ClassNotFoundException {
+		int lane = VarInts.get(frame);
+		PacketReader reader = lane(lane);
+		boolean last = frame.get() != 0;
+		if (fragments == null) {
+			fragments = new ByteBuffer[Packets.MAX_LANES];
+		}
+		ByteBuffer packet = fragments[lane];
+		if (packet == null || packet.remaining() < frame.remaining()) {
+			int needed = (packet == null ? 0 : packet.position()) + frame.remaining();
+			if (needed > Packets.MAX_FRAME_LENGTH) {
+				throw new IOException("Fragmented packet too large");
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(Packets.MAX_FRAME_LENGTH, Math.max(needed, packet == null ? needed : packet.capacity() * 2)));
+			if (packet != null) {
+				packet.flip();
+				larger.put(packet);
+			}
+			packet = fragments[lane] = larger;
+		}
+		packet.put(frame);
+		if (!last) {
+			return null;
+		}
+		fragments[lane] = null;
+		packet.flip();
+		return reader.decode(VarInts.get(packet), packet);
+	}
+
+	private static final class FrameInputStream extends InputStream {
+		ByteBuffer frame;
+
+		@Override
+		public int read() {
+			if (!frame.hasRemaining()) {
+				return -1;
+			}
+			return frame.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!frame.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, frame.remaining());
+			frame.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return frame.remaining();
+		}
+	}
+}
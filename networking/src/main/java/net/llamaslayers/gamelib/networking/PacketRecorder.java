@@ -0,0 +1,145 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every frame a server receives, with when and on which connection,
+ * so the traffic can be sent to a server again later by a
+ * {@link PacketReplayer}. Set with
+ * {@link NetworkOptions#setPacketRecorder(PacketRecorder)}.
+ *
+ * Frames are recorded as they arrived, before they are decoded, and the log
+ * is written through a memory-mapped file, so recording costs a lock and a
+ * copy per frame. A log that was not closed, because the server crashed, can
+ * still be replayed up to the last frame written.
+ *
+ * Log format: the magic number, the version and the time recording started
+ * in milliseconds since the epoch, then one record per event. Each record is
+ * its type, the {@link VarInts varint} microseconds since the previous
+ * record, the varint connection id and, for frames, the varint length and the
+ * frame without its length prefix.
+ */
+public final class PacketRecorder implements Closeable {
+	static final int MAGIC = 0x474C5052; // "GLPR"
+	static final int VERSION = 1;
+	static final int HEADER_LENGTH = 16;
+	static final byte OPENED = 1;
+	static final byte FRAME = 2;
+	static final byte CLOSED = 3;
+	/**
+	 * How much of the file is mapped at a time.
+	 */
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_RECORD_HEADER = 1 + VarInts.MAX_LONG_LENGTH + 2 * VarInts.MAX_LENGTH;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long start = System.nanoTime();
+	private MappedByteBuffer buffer;
+	/**
+	 * Where in the file {@link #buffer} starts.
+	 */
+	private long mapped;
+	private long lastMicros;
+	private boolean closed;
+
+	public PacketRecorder(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		try {
+			this.file.setLength(0);
+			map(0, CHUNK_SIZE);
+			buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+		} catch (IOException ex) {
+			this.file.close();
+			throw ex;
+		}
+	}
+
+	private void map(long position, int size) throws IOException {
+		mapped = position;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+	}
+
+	/**
+	 * Called when a connection is accepted.
+	 */
+	synchronized void opened(int connection) {
+		record(OPENED, connection, null);
+	}
+
+	/**
+	 * @param frame the frame without its length prefix, which is left
+	 * untouched
+	 */
+	synchronized void received(int connection, ByteBuffer frame) {
+		record(FRAME, connection, frame);
+	}
+
+	/**
+	 * Called when a connection is closed, by either side.
+	 */
+	synchronized void closed(int connection) {
+		record(CLOSED, connection, null);
+	}
+
+	private void record(byte type, int connection, ByteBuffer frame) {
+		if (closed) {
+			return;
+		}
+		long micros = (System.nanoTime() - start) / 1000;
+		int length = frame == null ? 0 : frame.remaining();
+		try {
+			if (buffer.remaining() < MAX_RECORD_HEADER + length) {
+				map(mapped + buffer.position(), Math.max(CHUNK_SIZE, MAX_RECORD_HEADER + length));
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(PacketRecorder.class.getName()).log(Level.SEVERE, "Stopped recording packets", ex);
+			close();
+			return;
+		}
+		buffer.put(type);
+		VarInts.putLong(buffer, micros - lastMicros);
+		VarInts.put(buffer, connection);
+		if (frame != null) {
+			VarInts.put(buffer, length);
+			buffer.put(frame.duplicate());
+		}
+		lastMicros = micros;
+	}
+
+	/**
+	 * Stops recording and cuts the file down to what was recorded. The
+	 * recorder can be closed while the server is still running.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			buffer.force();
+			long length = mapped + buffer.position();
+			buffer = null;
+			file.setLength(length);
+		} catch (IOException ex) {
+			// The mapping may keep the file from being cut on some systems.
+			// The rest of the last chunk is zeros, which end the log anyway.
+			Logger.getLogger(PacketRecorder.class.getName()).log(Level.WARNING, null, ex);
+		} finally {
+			try {
+				file.close();
+			} catch (IOException ex) {
+				Logger.getLogger(PacketRecorder.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+	}
+}
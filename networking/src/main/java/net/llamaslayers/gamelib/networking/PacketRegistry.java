@@ -0,0 +1,66 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps packet classes to ids and {@link PacketCodec}s. Both sides of a
+ * connection must register the same classes with the same ids, normally at
+ * startup before any connection is made. Only exact classes are matched:
+ * a subclass of a registered class is sent using Java serialization.
+ */
+public final class PacketRegistry {
+	/**
+	 * The largest id available to applications. Larger ids are reserved for
+	 * the networking library itself. Ids below 128 take one byte on the wire,
+	 * the rest take two.
+	 */
+	public static final int MAX_ID = 0x3FFF;
+	private final ConcurrentHashMap<Class<?>, Entry> byClass = new ConcurrentHashMap<Class<?>, Entry>();
+	private volatile Entry[] byId = new Entry[0];
+
+	/**
+	 * @param id a number from 1 to {@link #MAX_ID} that identifies the packet
+	 * class on the wire
+	 */
+	public synchronized <T extends Serializable> PacketRegistry register(int id, Class<T> type, PacketCodec<T> codec) {
+		if (id < 1 || id > MAX_ID) {
+			throw new IllegalArgumentException("Packet id " + id + " is not between 1 and " + MAX_ID);
+		}
+		if (id < byId.length && byId[id] != null) {
+			throw new IllegalArgumentException("Packet id " + id + " is already used by " + byId[id].type.getName());
+		}
+		if (byClass.containsKey(type)) {
+			throw new IllegalArgumentException(type.getName() + " is already registered");
+		}
+		Entry entry = new Entry(id, type, codec);
+		Entry[] ids = byId.length > id ? byId.clone() : Arrays.copyOf(byId, id + 1);
+		ids[id] = entry;
+		byId = ids;
+		byClass.put(type, entry);
+		return this;
+	}
+
+	Entry forClass(Class<?> type) {
+		return byClass.get(type);
+	}
+
+	Entry forId(int id) {
+		Entry[] ids = byId;
+		return id < ids.length ? ids[id] : null;
+	}
+
+	static final class Entry {
+		final int id;
+		final Class<?> type;
+		final PacketCodec<Serializable> codec;
+
+		@SuppressWarnings("unchecked")
+		Entry(int id, Class<?> type, PacketCodec<?> codec) {
+			this.id = id;
+			this.type = type;
+			this.codec = (PacketCodec<Serializable>) codec;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the traffic recorded by a {@link PacketRecorder} to a server again,
+ * to benchmark a server against realistic load. Every recorded connection is
+ * opened, sent the frames it received in the same order and closed, either
+ * as fast as possible or with the recorded timing sped up or slowed down.
+ * What the server sends back is read and thrown away.
+ *
+ * The server must use the same {@link PacketRegistry} and compression
+ * options as the one that was recorded. Recorded connections that used
+ * sessions or the unreliable channel are replayed as plain connections.
+ */
+public final class PacketReplayer {
+	private final File file;
+
+	public PacketReplayer(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replays through memory to a server in the same process, so the network
+	 * does not get in the way.
+	 *
+	 * @param speed 1 to replay with the recorded timing, 2 for twice as fast
+	 * and so on, or 0 to replay as fast as possible
+	 * @return the number of frames sent
+	 */
+	public long replay(final AbstractServer server, double speed) throws IOException, InterruptedException {
+		return replay(new Connector() {
+			@Override
+			BlockingTransport connect() throws IOException {
+				return server.connectLocal();
+			}
+		}, speed);
+	}
+
+	/**
+	 * Replays over TCP.
+	 *
+	 * @see #replay(AbstractServer, double)
+	 */
+	public long replay(final InetAddress ip, final int port, double speed) throws IOException, InterruptedException {
+		return replay(new Connector() {
+			@Override
+			BlockingTransport connect() throws IOException {
+				Socket socket = new Socket(ip, port);
+				try {
+					return SocketTransport.handshake(socket, 'C', 'S');
+				} catch (IOException ex) {
+					socket.close();
+					throw ex;
+				}
+			}
+		}, speed);
+	}
+
+	private abstract static class Connector {
+		abstract BlockingTransport connect() throws IOException;
+	}
+
+	private long replay(Connector connector, double speed) throws IOException, InterruptedException {
+		if (speed < 0) {
+			throw new IllegalArgumentException("speed < 0");
+		}
+		Map<Integer, BlockingTransport> connections = new HashMap<Integer, BlockingTransport>();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			Log log = new Log(in.getChannel());
+			long start = System.nanoTime();
+			long micros = 0;
+			long frames = 0;
+			while (log.next()) {
+				micros += log.delta;
+				if (speed > 0) {
+					long delay;
+					while ((delay = start + (long) (micros * 1000 / speed) - System.nanoTime()) > 0) {
+						TimeUnit.NANOSECONDS.sleep(delay);
+					}
+				}
+				switch (log.type) {
+				case PacketRecorder.OPENED:
+					BlockingTransport transport = connector.connect();
+					connections.put(log.connection, transport);
+					discardReplies(transport, log.connection);
+					break;
+				case PacketRecorder.FRAME:
+					transport = connections.get(log.connection);
+					if (transport != null && !transport.isClosed()) {
+						ByteBuffer frame = ByteBuffer.allocate(VarInts.size(log.frame.remaining()) + log.frame.remaining());
+						VarInts.put(frame, log.frame.remaining()).put(log.frame).flip();
+						try {
+							transport.write(frame);
+							transport.flush();
+							frames++;
+						} catch (IOException ex) {
+							// The server closed the connection. Skip the rest of it.
+							transport.close();
+						}
+					}
+					break;
+				case PacketRecorder.CLOSED:
+					transport = connections.remove(log.connection);
+					if (transport != null) {
+						transport.close();
+					}
+					break;
+				default:
+					throw new IOException("Unknown record type " + log.type);
+				}
+			}
+			return frames;
+		} finally {
+			in.close();
+			for (BlockingTransport transport : connections.values()) {
+				transport.close();
+			}
+		}
+	}
+
+	/**
+	 * Keeps reading what the server sends, so it is never held up by a
+	 * connection nobody reads.
+	 */
+	private static void discardReplies(final BlockingTransport transport, int connection) {
+		Thread reader = new Thread("REPLAY#" + connection) {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						transport.readFrame();
+					}
+				} catch (IOException ex) {
+					// Closed.
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reads records from a log through windows of the file mapped one after
+	 * another.
+	 */
+	private static final class Log {
+		private final FileChannel channel;
+		private final long size;
+		private ByteBuffer buffer;
+		private long mapped;
+		byte type;
+		long delta;
+		int connection;
+		ByteBuffer frame;
+
+		Log(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			if (size < PacketRecorder.HEADER_LENGTH) {
+				throw new IOException("Not a packet log");
+			}
+			map(0, PacketRecorder.CHUNK_SIZE);
+			if (buffer.getInt() != PacketRecorder.MAGIC) {
+				throw new IOException("Not a packet log");
+			}
+			int version = buffer.getInt();
+			if (version != PacketRecorder.VERSION) {
+				throw new IOException("Unsupported packet log version " + version);
+			}
+			buffer.getLong(); // When recording started.
+		}
+
+		private void map(long position, int length) throws IOException {
+			mapped = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(length, size - position));
+		}
+
+		/**
+		 * @return false at the end of the log, including a log that ends in
+		 * the middle of a record because recording was cut short
+		 */
+		boolean next() throws IOException {
+			while (true) {
+				int start = buffer.position();
+				try {
+					type = buffer.get();
+					if (type == 0) { // Never written.
+						return false;
+					}
+					delta = VarInts.getLong(buffer);
+					connection = VarInts.get(buffer);
+					if (type == PacketRecorder.FRAME) {
+						int length = VarInts.get(buffer);
+						if (buffer.remaining() < length) {
+							throw new BufferUnderflowException();
+						}
+						frame = buffer.slice();
+						frame.limit(length);
+						buffer.position(buffer.position() + length);
+					}
+					return true;
+				} catch (BufferUnderflowException ex) {
+					if (mapped + buffer.limit() >= size) {
+						return false;
+					}
+					// The record continues past this window.
+					map(mapped + start, Math.max(PacketRecorder.CHUNK_SIZE, buffer.capacity() * 2));
+				}
+			}
+		}
+	}
+}
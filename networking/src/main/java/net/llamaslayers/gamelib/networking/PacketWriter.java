@@ -0,0 +1,181 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns packets into frames. Packets with a codec in the connection's
+ * {@link PacketRegistry} are encoded by it; everything else goes through one
+ * serialization stream for the lifetime of a connection, so the stream header
+ * and class descriptors are only sent once. Frames must be sent in the order
+ * they were encoded, so callers hold the writer's lock from encoding until the
+ * frame has been handed to the transport.
+ */
+final class PacketWriter {
+	private final PacketRegistry registry;
+	private final PacketOutputStream out;
+	private final int resetInterval;
+	private final PacketCompressor compressor;
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+	private byte[] streamHeader;
+	private int sinceReset;
+	private boolean needsReset;
+	private boolean broken;
+
+	/**
+	 * @param resetInterval how many packets may share object handles before
+	 * the stream is reset
+	 */
+	PacketWriter(PacketRegistry registry, int resetInterval) throws IOException {
+		this(registry, resetInterval, null);
+	}
+
+	/**
+	 * @param compressor compresses large frames, or null
+	 */
+	PacketWriter(PacketRegistry registry, int resetInterval, PacketCompressor compressor) throws IOException {
+		this.registry = registry;
+		this.resetInterval = resetInterval;
+		this.compressor = compressor;
+		out = new PacketOutputStream(new Sink());
+		out.flush();
+		buffer.flip();
+		streamHeader = new byte[buffer.remaining()];
+		buffer.get(streamHeader);
+	}
+
+	ByteBuffer encode(Serializable packet) throws IOException {
+		PacketRegistry.Entry entry = registry.forClass(packet.getClass());
+		if (entry == null) {
+			return serialize(packet);
+		}
+		while (true) {
+			begin(entry.id);
+			try {
+				entry.codec.encode(packet, buffer);
+				return end();
+			} catch (BufferOverflowException ex) {
+				grow(buffer.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a packet into a frame that does not depend on the state of any
+	 * connection's serialization stream, so it can be sent to many
+	 * connections. Packets without a codec carry their own stream header and
+	 * class descriptors, which makes them larger than frames from
+	 * {@link #encode(Serializable)}.
+	 */
+	ByteBuffer encodeShared(Serializable packet) throws IOException {
+		if (registry.forClass(packet.getClass()) != null) {
+			return encode(packet);
+		}
+		begin(Packets.STANDALONE);
+		ObjectOutputStream standalone = new ObjectOutputStream(new Sink());
+		standalone.writeObject(packet);
+		standalone.flush();
+		return end();
+	}
+
+	private ByteBuffer serialize(Serializable packet) throws IOException {
+		if (broken) {
+			throw new IOException("Serialization stream is broken");
+		}
+		try {
+			begin(Packets.SERIALIZED);
+			if (streamHeader != null) {
+				ensureRemaining(streamHeader.length);
+				buffer.put(streamHeader);
+			}
+			if (needsReset || sinceReset >= resetInterval) {
+				out.reset();
+				sinceReset = 0;
+				needsReset = false;
+			}
+			out.writeObject(packet);
+			out.flush();
+			ByteBuffer frame = end();
+			sinceReset++;
+			out.commit();
+			streamHeader = null;
+			return frame;
+		} catch (IOException ex) {
+			// The frame is dropped, so the other side never sees whatever
+			// was written for it. Forget it here too.
+			try {
+				out.flush();
+			} catch (IOException e) {
+				// Bytes of the dropped frame are stuck in the stream.
+				broken = true;
+			}
+			out.rollback();
+			needsReset = true;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Leaves room for the longest possible length prefix, which is filled in
+	 * by {@link #end()} once the length is known.
+	 */
+	private void begin(int id) {
+		buffer.clear();
+		buffer.position(VarInts.MAX_LENGTH);
+		VarInts.put(buffer, id);
+	}
+
+	private ByteBuffer end() throws IOException {
+		int end = buffer.position();
+		if (compressor != null) {
+			ByteBuffer compressed = compressor.compress(buffer.array(), VarInts.MAX_LENGTH, end);
+			if (compressed != null) {
+				return compressed;
+			}
+		}
+		int length = Packets.checkLength(end - VarInts.MAX_LENGTH);
+		int start = VarInts.MAX_LENGTH - VarInts.size(length);
+		buffer.position(start);
+		VarInts.put(buffer, length);
+		buffer.position(start);
+		buffer.limit(end);
+		ByteBuffer frame = ByteBuffer.allocate(end - start);
+		frame.put(buffer);
+		frame.flip();
+		return frame;
+	}
+
+	private void ensureRemaining(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			grow(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+		}
+	}
+
+	private void grow(int capacity) throws IOException {
+		if (capacity > Packets.MAX_FRAME_LENGTH + 2 * VarInts.MAX_LENGTH) {
+			throw new IOException("Packet too large");
+		}
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	private final class Sink extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			ensureRemaining(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureRemaining(len);
+			buffer.put(b, off, len);
+		}
+	}
+}
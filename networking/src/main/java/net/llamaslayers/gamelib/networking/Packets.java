@@ -0,0 +1,159 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wire format. Every packet is sent as a frame: the {@link VarInts varint}
+ * length of the rest of the frame, the varint packet id and the encoded
+ * packet (see {@link PacketWriter}). The length prefix lets a reader find
+ * packet boundaries without parsing packets, size its buffer before the
+ * packet arrives and skip packets it does not know how to decode.
+ */
+final class Packets {
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+	/**
+	 * The packet id of packets that are sent through the connection's
+	 * serialization stream instead of a {@link PacketCodec}.
+	 */
+	static final int SERIALIZED = 0;
+	/**
+	 * The packet id of packets that are serialized with a stream of their
+	 * own, so the same frame can be sent to any connection.
+	 */
+	static final int STANDALONE = PacketRegistry.MAX_ID + 1;
+	/**
+	 * The packet id of frames that contain another frame's packet id and
+	 * packet, compressed. See {@link PacketCompressor}.
+	 */
+	static final int COMPRESSED = PacketRegistry.MAX_ID + 2;
+	/**
+	 * The packet id of frames that contain the varint lane number followed by
+	 * another frame's packet id and packet, for lanes other than lane 0. See
+	 * {@link NetworkOptions#setLanes(int)}.
+	 */
+	static final int LANE = PacketRegistry.MAX_ID + 3;
+	/**
+	 * The packet id of frames that contain the varint lane number, a byte
+	 * that is 1 for the last fragment and 0 otherwise, and part of another
+	 * frame's packet id and packet.
+	 */
+	static final int FRAGMENT = PacketRegistry.MAX_ID + 4;
+	static final int MAX_LANES = 16;
+
+	private Packets() {
+	}
+
+	/**
+	 * @param frame a whole frame, with its length prefix, which is left
+	 * untouched
+	 * @return true if the frame belongs to the connection's serialization
+	 * stream, so it must not be dropped
+	 */
+	static boolean isStreamFrame(ByteBuffer frame) {
+		ByteBuffer header = frame.duplicate();
+		VarInts.get(header);
+		int id = VarInts.get(header);
+		if (id == FRAGMENT) {
+			return true; // Dropping part of a packet would garble the rest.
+		}
+		if (id == LANE) {
+			VarInts.get(header);
+			id = VarInts.get(header);
+		}
+		if (id == COMPRESSED) {
+			id = VarInts.get(header);
+		}
+		return id == SERIALIZED;
+	}
+
+	/**
+	 * @param frame a whole frame, with its length prefix, which is left
+	 * untouched
+	 * @return the frame, sent on another lane
+	 */
+	static ByteBuffer laneFrame(int lane, ByteBuffer frame) throws IOException {
+		ByteBuffer body = frame.duplicate();
+		VarInts.get(body);
+		int length = checkLength(VarInts.size(LANE) + VarInts.size(lane) + body.remaining());
+		ByteBuffer wrapped = ByteBuffer.allocate(VarInts.size(length) + length);
+		VarInts.put(wrapped, length);
+		VarInts.put(wrapped, LANE);
+		VarInts.put(wrapped, lane);
+		wrapped.put(body).flip();
+		return wrapped;
+	}
+
+	/**
+	 * Splits a frame into {@link #FRAGMENT} frames, each with at most
+	 * {@code size} bytes of it.
+	 *
+	 * @param frame a whole frame, with its length prefix, which is left
+	 * untouched
+	 */
+	static List<ByteBuffer> fragment(int lane, ByteBuffer frame, int size) throws IOException {
+		ByteBuffer body = frame.duplicate();
+		VarInts.get(body);
+		List<ByteBuffer> fragments = new ArrayList<ByteBuffer>(body.remaining() / size + 1);
+		while (body.hasRemaining()) {
+			int chunk = Math.min(size, body.remaining());
+			int length = checkLength(VarInts.size(FRAGMENT) + VarInts.size(lane) + 1 + chunk);
+			ByteBuffer fragment = ByteBuffer.allocate(VarInts.size(length) + length);
+			VarInts.put(fragment, length);
+			VarInts.put(fragment, FRAGMENT);
+			VarInts.put(fragment, lane);
+			fragment.put((byte) (chunk == body.remaining() ? 1 : 0));
+			ByteBuffer part = body.duplicate();
+			part.limit(part.position() + chunk);
+			fragment.put(part).flip();
+			body.position(body.position() + chunk);
+			fragments.add(fragment);
+		}
+		return fragments;
+	}
+
+	static int checkLength(int length) throws IOException {
+		if (length < 1 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Reads a frame length from a buffer, leaving the buffer untouched and
+	 * returning -1 if the buffer does not contain all of it yet.
+	 */
+	static int readLength(ByteBuffer buffer) throws IOException {
+		for (int i = buffer.position(); i < buffer.limit() && i - buffer.position() < VarInts.MAX_LENGTH; i++) {
+			if (buffer.get(i) >= 0) {
+				return checkLength(VarInts.get(buffer));
+			}
+		}
+		if (buffer.remaining() >= VarInts.MAX_LENGTH) {
+			throw new IOException("Invalid frame length");
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads a frame length from a stream.
+	 */
+	static int readLength(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 7 * VarInts.MAX_LENGTH; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return checkLength(value);
+			}
+		}
+		throw new IOException("Invalid frame length");
+	}
+}
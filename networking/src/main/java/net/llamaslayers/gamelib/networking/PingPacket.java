@@ -0,0 +1,21 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a {@link Heartbeat} and sent straight back by the other side,
+ * which handles it itself rather than passing it to the game. The time is
+ * the sender's own {@link System#nanoTime()}, so the clocks of the two sides
+ * do not need to agree.
+ */
+final class PingPacket implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final long sentNanos;
+	final boolean response;
+
+	PingPacket(long sentNanos, boolean response) {
+		this.sentNanos = sentNanos;
+		this.response = response;
+	}
+}
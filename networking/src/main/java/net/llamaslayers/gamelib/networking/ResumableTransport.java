@@ -0,0 +1,181 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A blocking connection whose socket can be replaced. Every frame written is
+ * numbered, and the latest frames are kept in a replay buffer of limited
+ * size. When the socket is lost, frames keep being numbered and kept while
+ * the other side reconnects; once it says how many frames it received, the
+ * ones it missed are sent again over the new socket. Both sides must keep
+ * their serialization streams for this to work, since replayed frames may
+ * refer to what earlier frames wrote to them.
+ *
+ * With a replay buffer of 0 bytes, this is a plain {@link BlockingTransport}
+ * that cannot be resumed.
+ */
+final class ResumableTransport implements Transport {
+	private final long maxReplayBytes;
+	private final ArrayDeque<ByteBuffer> replay = new ArrayDeque<ByteBuffer>();
+	private long replayBytes;
+	/**
+	 * The number of frames ever written.
+	 */
+	private long written;
+	/**
+	 * Changed under the lock, but read without it by {@link #close()} and
+	 * {@link #detach()}, which must not wait for a writer blocked on the
+	 * socket: closing the socket is what unblocks it.
+	 */
+	private volatile BlockingTransport current;
+	private volatile boolean closed;
+
+	ResumableTransport(BlockingTransport transport, long maxReplayBytes) {
+		this.current = transport;
+		this.maxReplayBytes = maxReplayBytes;
+	}
+
+	/**
+	 * @return the socket to read from, or null if it has been lost
+	 */
+	BlockingTransport current() {
+		return current;
+	}
+
+	@Override
+	public synchronized void write(ByteBuffer frame) throws IOException {
+		if (closed) {
+			throw new IOException("Connection is closed");
+		}
+		written++;
+		if (maxReplayBytes > 0) {
+			replay.add(frame.duplicate());
+			replayBytes += frame.remaining();
+			while (replayBytes > maxReplayBytes) {
+				replayBytes -= replay.remove().remaining();
+			}
+		}
+		if (current != null) {
+			try {
+				current.write(frame);
+			} catch (IOException ex) {
+				lost(ex);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (current != null) {
+			try {
+				current.flush();
+			} catch (IOException ex) {
+				lost(ex);
+			}
+		}
+	}
+
+	/**
+	 * The frame is kept for replay, so a failed write only loses the socket.
+	 * Closing it makes the reading thread notice.
+	 */
+	private void lost(IOException ex) throws IOException {
+		if (maxReplayBytes <= 0) {
+			throw ex;
+		}
+		detach();
+	}
+
+	/**
+	 * Closes the socket without closing the connection.
+	 */
+	void detach() {
+		BlockingTransport socket = current;
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			// The socket is being thrown away anyway.
+		}
+		synchronized (this) {
+			if (current == socket) {
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Continues over a new socket, sending again every frame after the first
+	 * {@code received}.
+	 *
+	 * @param greeting sent before those frames, or null
+	 * @return false if some of those frames are no longer in the replay
+	 * buffer, in which case nothing was sent
+	 */
+	synchronized boolean resume(BlockingTransport transport, long received, ByteBuffer greeting) throws IOException {
+		long missed = written - received;
+		if (closed || missed < 0 || missed > replay.size()) {
+			return false;
+		}
+		detach();
+		if (greeting != null) {
+			transport.write(greeting);
+		}
+		Iterator<ByteBuffer> it = replay.iterator();
+		for (long skip = replay.size() - missed; skip > 0; skip--) {
+			it.next();
+		}
+		while (it.hasNext()) {
+			transport.write(it.next().duplicate());
+		}
+		transport.flush();
+		current = transport;
+		if (closed) { // Closed meanwhile, without the lock.
+			transport.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Frames are handed to the socket as they are written, so nothing is
+	 * ever queued.
+	 */
+	@Override
+	public int queuedFrames() {
+		return 0;
+	}
+
+	@Override
+	public long queuedBytes() {
+		return 0;
+	}
+
+	@Override
+	public boolean dropOldest() {
+		return false;
+	}
+
+	@Override
+	public void awaitRoom(int frames, long bytes) {
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		BlockingTransport socket = current;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		BlockingTransport socket = current;
+		return closed || maxReplayBytes <= 0 && (socket == null || socket.isClosed());
+	}
+}
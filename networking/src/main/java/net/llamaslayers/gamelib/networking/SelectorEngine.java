@@ -0,0 +1,179 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed pool of I/O threads, each multiplexing many non-blocking connections
+ * with its own {@link Selector}. Connections stay on the same thread for their
+ * whole lifetime. The threads are split into shards, one for each accepting
+ * thread, and each shard assigns its connections to its own threads round
+ * robin, so accepting threads share nothing. If there are more shards than
+ * threads, shards share threads.
+ */
+final class SelectorEngine {
+	private final ThreadGroup group = new ThreadGroup("Selector workers");
+	private final Worker[] workers;
+	private final int shards;
+	/**
+	 * The next worker of each shard. Only used by the shard's accepting
+	 * thread.
+	 */
+	private final int[] nextWorker;
+
+	SelectorEngine(int threads, int shards) throws IOException {
+		this.shards = shards;
+		nextWorker = new int[shards];
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i);
+		}
+		for (Worker worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Prepares an accepted channel. The returned transport does not read
+	 * anything until {@link SelectorTransport#start(ServerClient)} is called.
+	 * Only called from the shard's accepting thread.
+	 */
+	SelectorTransport open(SocketChannel channel, int shard) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Worker worker;
+		if (shards >= workers.length) {
+			worker = workers[shard % workers.length];
+		} else {
+			// The shard's workers are shard, shard + shards, shard + 2 * shards...
+			int owned = (workers.length - shard + shards - 1) / shards;
+			worker = workers[shard + nextWorker[shard] * shards];
+			nextWorker[shard] = (nextWorker[shard] + 1) % owned;
+		}
+		return new SelectorTransport(channel, worker);
+	}
+
+	void shutdown() {
+		for (Worker worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	final class Worker extends Thread {
+		private final Selector selector;
+		private final Queue<SelectorTransport> registrations = new ConcurrentLinkedQueue<SelectorTransport>();
+		private final Queue<SelectorTransport> writes = new ConcurrentLinkedQueue<SelectorTransport>();
+		private final Queue<SelectorTransport> reads = new ConcurrentLinkedQueue<SelectorTransport>();
+		private volatile boolean running = true;
+
+		private Worker(int index) throws IOException {
+			super(group, "SELECTOR#" + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void register(SelectorTransport transport) {
+			registrations.add(transport);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks this thread to finish writing a frame that could not be written
+		 * in one go by the thread that queued it.
+		 */
+		void wantsWrite(SelectorTransport transport) {
+			writes.add(transport);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks this thread to start reading a connection again that it stopped
+		 * reading because the connection's inbound queue was full.
+		 */
+		void wantsRead(SelectorTransport transport) {
+			reads.add(transport);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					SelectorTransport transport;
+					while ((transport = registrations.poll()) != null) {
+						try {
+							transport.registered(transport.channel().register(selector, SelectionKey.OP_READ, transport));
+						} catch (IOException ex) {
+							transport.fail(ex);
+						} catch (RuntimeException ex) {
+							transport.fail(new IOException(ex));
+						}
+					}
+					while ((transport = writes.poll()) != null) {
+						try {
+							transport.writable();
+						} catch (IOException ex) {
+							transport.fail(ex);
+						} catch (RuntimeException ex) {
+							transport.fail(new IOException(ex));
+						}
+					}
+					while ((transport = reads.poll()) != null) {
+						try {
+							transport.resume();
+						} catch (IOException ex) {
+							transport.fail(ex);
+						} catch (RuntimeException ex) {
+							transport.fail(new IOException(ex));
+						}
+					}
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						transport = (SelectorTransport) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								transport.readable();
+							}
+							if (key.isValid() && key.isWritable()) {
+								transport.writable();
+							}
+						} catch (IOException ex) {
+							transport.fail(ex);
+						} catch (RuntimeException ex) {
+							transport.fail(new IOException(ex));
+						}
+					}
+				}
+			} catch (IOException ex) {
+				Logger.getLogger(SelectorEngine.class.getName()).log(Level.SEVERE, null, ex);
+			} catch (ClosedSelectorException ex) {
+				Logger.getLogger(SelectorEngine.class.getName()).log(Level.SEVERE, null, ex);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((SelectorTransport) key.attachment()).fail(null);
+				}
+				try {
+					selector.close();
+				} catch (IOException ex) {
+					Logger.getLogger(SelectorEngine.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking {@link SocketChannel} served by a {@link SelectorEngine}
+ * worker. Written frames are kept until the connection is flushed, when they
+ * are written straight to the channel with one gathering write; only what
+ * does not fit in the socket buffer is left for the worker. When the client's
+ * inbound queue is full the worker stops reading the channel until the game
+ * has made room, so the other side is slowed down by TCP.
+ */
+final class SelectorTransport implements Transport {
+	private final SocketChannel channel;
+	private final SelectorEngine.Worker worker;
+	private final Deque<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private long pendingBytes;
+	private ByteBuffer readBuffer;
+	private boolean handshaken;
+	private boolean paused;
+	private boolean endOfStream;
+	private boolean writeInterest;
+	private SelectionKey key;
+	private ServerClient client;
+
+	SelectorTransport(SocketChannel channel, SelectorEngine.Worker worker) {
+		this.channel = channel;
+		this.worker = worker;
+	}
+
+	SocketChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * Sends the server half of the handshake and starts delivering packets to
+	 * {@code client}.
+	 */
+	void start(ServerClient client) throws IOException {
+		this.client = client;
+		worker.register(this);
+		write(ByteBuffer.wrap(new byte[] {'S'}));
+		flush();
+	}
+
+	void registered(SelectionKey key) {
+		this.key = key;
+		if (closed.get()) {
+			key.cancel();
+		}
+	}
+
+	@Override
+	public void write(ByteBuffer frame) throws IOException {
+		synchronized (pending) {
+			if (closed.get()) {
+				throw new SocketException("Socket is closed");
+			}
+			pending.add(frame);
+			pendingBytes += frame.remaining();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (pending) {
+			if (closed.get()) {
+				throw new SocketException("Socket is closed");
+			}
+			if (drain()) {
+				return;
+			}
+		}
+		worker.wantsWrite(this);
+	}
+
+	@Override
+	public int queuedFrames() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	@Override
+	public long queuedBytes() {
+		synchronized (pending) {
+			return pendingBytes;
+		}
+	}
+
+	@Override
+	public boolean dropOldest() {
+		synchronized (pending) {
+			for (Iterator<ByteBuffer> it = pending.iterator(); it.hasNext();) {
+				ByteBuffer frame = it.next();
+				if (frame.position() != 0) { // Partly written already.
+					continue;
+				}
+				if (!Packets.isStreamFrame(frame)) {
+					it.remove();
+					pendingBytes -= frame.remaining();
+					pending.notifyAll();
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public void awaitRoom(int frames, long bytes) throws IOException {
+		synchronized (pending) {
+			while (!closed.get() && (frames > 0 && pending.size() >= frames || bytes > 0 && pendingBytes >= bytes)) {
+				try {
+					pending.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by the worker when the channel can accept more data.
+	 */
+	void writable() throws IOException {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		synchronized (pending) {
+			writeInterest = !drain();
+		}
+		updateInterest();
+	}
+
+	/**
+	 * Writes as many pending frames as the channel accepts with a single
+	 * gathering write.
+	 *
+	 * @return true if nothing is left pending
+	 */
+	private boolean drain() throws IOException {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		pendingBytes -= channel.write(pending.toArray(new ByteBuffer[pending.size()]));
+		while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+			pending.remove();
+		}
+		pending.notifyAll();
+		return pending.isEmpty();
+	}
+
+	private void updateInterest() {
+		if (key != null && key.isValid()) {
+			key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writeInterest ? SelectionKey.OP_WRITE : 0));
+		}
+	}
+
+	/**
+	 * Called by the worker when the channel has data. Every complete frame in
+	 * the read buffer is decoded where it is and handed to the client. The
+	 * buffer comes from a pool and is only held while part of a frame is
+	 * waiting for the rest, so idle connections do not tie up any memory.
+	 */
+	void readable() throws IOException {
+		if (readBuffer == null) {
+			readBuffer = BufferPool.DEFAULT.acquire(BufferPool.MIN_SIZE);
+		}
+		int read = channel.read(readBuffer);
+		readBuffer.flip();
+		if (!handshaken && readBuffer.hasRemaining()) {
+			int init = readBuffer.get();
+			if (init != 'C' && init != 'U') {
+				throw new IOException("Client INIT " + (char) init + " != CU");
+			}
+			handshaken = true;
+			if (init == 'U') {
+				client.openUnreliable();
+			}
+		}
+		if (read < 0) {
+			endOfStream = true;
+		}
+		deliver();
+	}
+
+	/**
+	 * Asks the worker to start reading again after the client's inbound
+	 * queue was full. Called from whichever thread made room.
+	 */
+	void wantsRead() {
+		worker.wantsRead(this);
+	}
+
+	/**
+	 * Called by the worker after {@link #wantsRead()}.
+	 */
+	void resume() throws IOException {
+		if (!paused || closed.get() || !client.retryBlocked()) {
+			return;
+		}
+		paused = false;
+		updateInterest();
+		if (readBuffer != null) {
+			readBuffer.flip();
+		}
+		deliver();
+	}
+
+	private void deliver() throws IOException {
+		while (readBuffer != null && !closed.get() && !paused && readBuffer.hasRemaining()) {
+			int start = readBuffer.position();
+			int length = Packets.readLength(readBuffer);
+			if (length < 0) {
+				break;
+			}
+			if (readBuffer.remaining() < length) {
+				int needed = readBuffer.position() - start + length;
+				readBuffer.position(start);
+				if (readBuffer.capacity() < needed) {
+					ByteBuffer larger = BufferPool.DEFAULT.acquire(needed);
+					larger.put(readBuffer);
+					BufferPool.DEFAULT.release(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+			ByteBuffer frame = readBuffer.slice();
+			frame.limit(length);
+			readBuffer.position(readBuffer.position() + length);
+			try {
+				if (!client.receivedFrame(frame)) {
+					paused = true;
+					updateInterest();
+				}
+				if (client.isStopRequested()) {
+					client.flush();
+					close();
+				}
+			} catch (ClassNotFoundException ex) {
+				Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, null, ex);
+				close();
+			}
+		}
+		if (readBuffer != null) {
+			if (readBuffer.hasRemaining()) {
+				readBuffer.compact();
+			} else {
+				BufferPool.DEFAULT.release(readBuffer);
+				readBuffer = null;
+			}
+		}
+		if (endOfStream && !paused) {
+			close();
+		}
+	}
+
+	void fail(IOException ex) {
+		if (ex != null && !closed.get()) {
+			Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		try {
+			close();
+		} catch (IOException e) {
+			Logger.getLogger(SelectorTransport.class.getName()).log(Level.SEVERE, null, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed.getAndSet(true)) {
+			return;
+		}
+		try {
+			channel.close();
+		} finally {
+			synchronized (pending) {
+				pending.clear();
+				pendingBytes = 0;
+				pending.notifyAll();
+			}
+			if (client != null) {
+				client.transportClosed();
+			}
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed.get();
+	}
+}
@@ -2,107 +2,531 @@ package net.llamaslayers.gamelib.networking;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class ServerClient extends Thread {
 	private final int id;
 	private final AbstractServer server;
-	private final Socket socket;
-	private final AtomicReference<ObjectInputStream> in;
-	private final AtomicReference<ObjectOutputStream> out;
-	private final NoCloseInputStream _in;
-	private final NoCloseOutputStream _out;
-	private final Deque<Serializable> queue = new LinkedList<Serializable>();
-
-	ServerClient(Socket socket, int id, ThreadGroup group, AbstractServer server) throws IOException {
+	private final Transport transport;
+	private final OutboundQueue outbound;
+	private final PacketReader reader;
+	private final InboundQueue queue;
+	private final PacketNotifier notifier = new PacketNotifier();
+	private final OverflowPolicy inboundPolicy;
+	private final ConnectionMetrics metrics;
+	private final UnreliableEndpoint unreliable;
+	private final Heartbeat heartbeat;
+	private final PacketRecorder recorder;
+	/**
+	 * The token the client can resume this connection with, or 0.
+	 */
+	private final long session;
+	private final long sessionTimeout;
+	private final Object resumeLock = new Object();
+	/**
+	 * A socket the client reconnected on, waiting for the thread reading the
+	 * connection to take it over.
+	 */
+	private Socket resumed;
+	private long resumedReceived;
+	/**
+	 * The number of frames read. Only written by the thread reading the
+	 * connection.
+	 */
+	private volatile long framesRead;
+	/**
+	 * The connection is closed once this many frames have been read.
+	 */
+	private final AtomicLong stopAfter = new AtomicLong(Long.MAX_VALUE);
+	/**
+	 * The thread running {@link #run()}, which is not this one if the server
+	 * has a connection thread factory.
+	 */
+	private volatile Thread runner;
+	private Serializable blocked;
+	private int blockedSize;
+	private final Runnable resume = new Runnable() {
+		@Override
+		public void run() {
+			((SelectorTransport) transport).wantsRead();
+		}
+	};
+
+	/**
+	 * @param init what the client sent in the handshake
+	 */
+	ServerClient(Socket socket, char init, int id, ThreadGroup group, AbstractServer server, NetworkOptions options) throws IOException {
+		this(socket.getInetAddress().toString() + " on port " + socket.getPort(), SocketTransport.open(socket), init, id, group, server, options, options.getSessionTimeout());
+	}
+
+	/**
+	 * Creates a client connected through memory from the same process, which
+	 * cannot be resumed since it is never lost.
+	 */
+	ServerClient(LoopbackTransport transport, int id, ThreadGroup group, AbstractServer server, NetworkOptions options) throws IOException {
+		this("loopback", transport, 'C', id, group, server, options, 0);
+	}
+
+	private ServerClient(String address, BlockingTransport socket, char init, int id, ThreadGroup group, AbstractServer server, NetworkOptions options, long sessionTimeout) throws IOException {
+		super(group, "CLIENT#" + id + ": " + address);
+		this.id = id;
+		this.server = server;
+		this.metrics = new ConnectionMetrics(server.getMetrics(), options.isDetailedMetrics());
+		this.queue = new InboundQueue(options.getInboundQueueCapacity(), options.getInboundQueueBytes(), metrics);
+		this.inboundPolicy = options.getInboundOverflowPolicy();
+		this.reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+		this.sessionTimeout = TimeUnit.MILLISECONDS.toNanos(sessionTimeout);
+		this.transport = new ResumableTransport(socket, sessionTimeout > 0 ? options.getReplayBufferBytes() : 0);
+		this.outbound = new OutboundQueue(transport, options, metrics);
+		this.unreliable = createUnreliable(options);
+		this.heartbeat = createHeartbeat(options);
+		this.recorder = options.getPacketRecorder();
+		if (recorder != null) {
+			recorder.opened(id);
+		}
+		this.session = sessionTimeout > 0 ? server.openSession(this) : 0;
+		if (session != 0) {
+			write(new SessionToken(session));
+		}
+		if (init == 'U') {
+			openUnreliable();
+		}
+		heartbeat.start();
+	}
+
+	/**
+	 * Creates a client whose socket is read by a selector thread instead of by
+	 * this thread, which is never started.
+	 */
+	ServerClient(Socket socket, SelectorTransport transport, int id, ThreadGroup group, AbstractServer server, NetworkOptions options) throws IOException {
 		super(group, "CLIENT#" + id + ": " + socket.getInetAddress().toString() + " on port " + socket.getPort());
 		this.id = id;
 		this.server = server;
-		this.socket = socket;
-		socket.setSoTimeout(30000);
-		socket.getOutputStream().write('S');
-		_out = new NoCloseOutputStream(socket.getOutputStream());
-		out = new AtomicReference<ObjectOutputStream>(new ObjectOutputStream(_out));
-		int clientInit = socket.getInputStream().read();
-		if (clientInit != 'C')
-			throw new IOException("Client INIT " + (char) clientInit + " != C");
-		_in = new NoCloseInputStream(socket.getInputStream());
-		in = new AtomicReference<ObjectInputStream>(new ObjectInputStream(_in));
+		this.metrics = new ConnectionMetrics(server.getMetrics(), options.isDetailedMetrics());
+		this.queue = new InboundQueue(options.getInboundQueueCapacity(), options.getInboundQueueBytes(), metrics);
+		this.inboundPolicy = options.getInboundOverflowPolicy();
+		this.reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+		this.transport = transport;
+		this.outbound = new OutboundQueue(transport, options, metrics);
+		this.unreliable = createUnreliable(options);
+		this.heartbeat = createHeartbeat(options);
+		this.recorder = options.getPacketRecorder();
+		if (recorder != null) {
+			recorder.opened(id);
+		}
+		this.session = 0;
+		this.sessionTimeout = 0;
+		heartbeat.start();
+	}
+
+	private UnreliableEndpoint createUnreliable(NetworkOptions options) throws IOException {
+		UnreliableChannel channel = server.getUnreliableChannel();
+		return channel == null ? null : new UnreliableEndpoint(channel, true, options, metrics);
+	}
+
+	private Heartbeat createHeartbeat(NetworkOptions options) {
+		return new Heartbeat(options, metrics) {
+			@Override
+			void send(PingPacket ping) throws IOException {
+				outbound.write(ping);
+			}
+
+			@Override
+			void idle(long millis) {
+				if (session != 0) {
+					((ResumableTransport) transport).detach();
+					return;
+				}
+				Logger.getLogger(ServerClient.class.getName()).log(Level.WARNING, "Nothing received from {0} for {1} ms, disconnecting", new Object[] {getName(), millis});
+				stopAfter(0);
+				try {
+					transport.close();
+				} catch (IOException ex) {
+					Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Called once the client has asked for an unreliable channel.
+	 */
+	void openUnreliable() {
+		if (unreliable != null) {
+			write(new ChannelToken(unreliable.open()));
+		}
 	}
 
 	@Override
 	public void run() {
-		while (!interrupted()) {
+		if (!(transport instanceof ResumableTransport)) {
+			return;
+		}
+		ResumableTransport resumable = (ResumableTransport) transport;
+		runner = Thread.currentThread();
+		while (!isStopRequested()) {
 			try {
-				Serializable s = (Serializable) in.get().readObject();
-				if (s instanceof DisconnectPacket) {
-					if (!((DisconnectPacket) s).response) {
-						write(DisconnectPacket.DISCONNECT_ACK);
-					}
-					interrupt();
-				} else {
-					synchronized (queue) {
-						queue.add(s);
-						queue.notify();
-					}
-					in.get().close();
-					in.set(new ObjectInputStream(_in));
+				BlockingTransport socket = resumable.current();
+				if (socket == null) {
+					throw new EOFException();
 				}
+				receivedFrame(socket.readFrame());
 			} catch (EOFException ex) {
-				interrupt();
+				if (!awaitResume(resumable)) {
+					stopAfter(0);
+				}
 			} catch (IOException ex) {
-				if (!interrupted())
+				if (session == 0 && stopAfter.get() == Long.MAX_VALUE)
 					Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
-				interrupt();
+				if (!awaitResume(resumable)) {
+					stopAfter(0);
+				}
 			} catch (ClassNotFoundException ex) {
 				Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
-				interrupt();
+				stopAfter(0);
 			}
 		}
+		heartbeat.stop();
+		flush();
 		try {
-			in.get().close();
-			out.get().close();
-			socket.close();
+			transport.close();
 		} catch (IOException ex) {
 			Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
 		} finally {
+			if (session != 0) {
+				server.closeSession(session);
+			}
+			if (recorder != null) {
+				recorder.closed(id);
+			}
+			if (unreliable != null) {
+				unreliable.close();
+			}
+			notifier.closed();
 			if (finished()) {
 				server.clientIsFinished(this);
 			}
 		}
 	}
 
+	/**
+	 * Waits for the client to reconnect after its connection was lost, and
+	 * carries on over the new socket.
+	 *
+	 * @return false if the client did not come back in time, could not be
+	 * sent what it missed, or this connection was asked to stop
+	 */
+	private boolean awaitResume(ResumableTransport resumable) {
+		if (session == 0 || stopAfter.get() != Long.MAX_VALUE) {
+			return false;
+		}
+		resumable.detach();
+		heartbeat.stop();
+		long deadline = System.nanoTime() + sessionTimeout;
+		while (true) {
+			Socket socket;
+			long received;
+			synchronized (resumeLock) {
+				while (resumed == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0 || stopAfter.get() != Long.MAX_VALUE) {
+						return false;
+					}
+					try {
+						TimeUnit.NANOSECONDS.timedWait(resumeLock, remaining);
+					} catch (InterruptedException ex) {
+						return false;
+					}
+				}
+				socket = resumed;
+				received = resumedReceived;
+				resumed = null;
+			}
+			try {
+				ByteBuffer greeting = ByteBuffer.allocate(9);
+				greeting.put((byte) 'R').putLong(framesRead).flip();
+				if (resumable.resume(SocketTransport.open(socket), received, greeting)) {
+					heartbeat.start();
+					return true;
+				}
+				socket.getOutputStream().write('N');
+				socket.close();
+				return false;
+			} catch (IOException ex) {
+				// Lost again already. Wait for the next attempt.
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands a socket the client reconnected on to the thread reading the
+	 * connection.
+	 *
+	 * @param received the number of frames the client has received
+	 * @return false if this connection is closing
+	 */
+	boolean resumeSession(Socket socket, long received) throws IOException {
+		synchronized (resumeLock) {
+			if (transport.isClosed() || stopAfter.get() != Long.MAX_VALUE) {
+				return false;
+			}
+			if (resumed != null) { // Replaced by a newer attempt.
+				resumed.close();
+			}
+			// Wakes the reading thread if it has not noticed the old socket is
+			// gone yet.
+			((ResumableTransport) transport).detach();
+			resumed = socket;
+			resumedReceived = received;
+			resumeLock.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Asks this connection to stop. The connection is closed once the next
+	 * packet that starts arriving after this call has been delivered, or
+	 * straight away if the connection fails first.
+	 */
+	@Override
+	public void interrupt() {
+		stopAfter(framesRead + 1);
+		super.interrupt();
+		Thread thread = runner;
+		if (thread != null && thread != this) {
+			thread.interrupt();
+		}
+	}
+
+	private void stopAfter(long frames) {
+		long current;
+		do {
+			current = stopAfter.get();
+		} while (frames < current && !stopAfter.compareAndSet(current, frames));
+	}
+
+	boolean isStopRequested() {
+		return framesRead >= stopAfter.get();
+	}
+
+	/**
+	 * @return false if the packet did not fit in the inbound queue and the
+	 * connection must not be read until {@link #retryBlocked()} succeeds
+	 */
+	boolean receivedFrame(ByteBuffer frame) throws IOException, ClassNotFoundException {
+		int size = frame.remaining();
+		framesRead++;
+		heartbeat.received();
+		if (recorder != null) {
+			recorder.received(id, frame);
+		}
+		if (metrics.isDetailed()) {
+			metrics.received(size);
+		}
+		return received(reader.decode(frame), size);
+	}
+
+	private boolean received(Serializable packet, int size) {
+		if (packet == null) {
+			return true;
+		} else if (packet instanceof DisconnectPacket) {
+			if (!((DisconnectPacket) packet).response) {
+				write(DisconnectPacket.DISCONNECT_ACK);
+			}
+			stopAfter(framesRead);
+			return true;
+		} else if (packet instanceof PingPacket) {
+			heartbeat.received((PingPacket) packet);
+			return true;
+		} else if (queue.offer(packet, size)) {
+			return true;
+		}
+		switch (inboundPolicy) {
+		case BLOCK:
+			if (transport instanceof ResumableTransport) {
+				if (!queue.put(packet, size)) { // Interrupted while waiting.
+					stopAfter(framesRead);
+				}
+				return true;
+			}
+			blocked = packet;
+			blockedSize = size;
+			queue.whenRoom(size, resume);
+			return false;
+		case DROP_OLDEST:
+			while (!queue.offer(packet, size)) {
+				queue.dropOldest();
+				metrics.inboundDropped(1);
+			}
+			return true;
+		case DROP_NEWEST:
+			metrics.inboundDropped(1);
+			return true;
+		default:
+			Logger.getLogger(ServerClient.class.getName()).log(Level.WARNING, "Inbound queue of {0} is full, disconnecting", getName());
+			metrics.overflowDisconnect();
+			stopAfter(framesRead);
+			return true;
+		}
+	}
+
+	/**
+	 * Tries again to queue the packet that made {@link #receivedFrame} return
+	 * false. If there is still no room, the connection's transport is asked to
+	 * read again once there is.
+	 */
+	boolean retryBlocked() {
+		if (blocked == null || queue.offer(blocked, blockedSize)) {
+			blocked = null;
+			return true;
+		}
+		queue.whenRoom(blockedSize, resume);
+		return false;
+	}
+
+	void transportClosed() {
+		heartbeat.stop();
+		if (recorder != null) {
+			recorder.closed(id);
+		}
+		if (unreliable != null) {
+			unreliable.close();
+		}
+		notifier.closed();
+		if (finished()) {
+			server.clientIsFinished(this);
+		}
+	}
+
 	public void write(Serializable packet) {
+		write(packet, 0);
+	}
+
+	/**
+	 * Sends a packet on one of the connection's
+	 * {@link NetworkOptions#setLanes(int) lanes}. Packets on the same lane
+	 * arrive in the order they were written, but may overtake or be overtaken
+	 * by packets on other lanes.
+	 *
+	 * @throws IllegalArgumentException if there is no such lane
+	 */
+	public void write(Serializable packet, int lane) {
 		if (packet == null) { // Don't send null packets.
 			return;
 		}
-		synchronized (out) {
-			try {
-				out.get().writeObject(packet);
-				out.get().flush();
-				out.get().close();
-				out.set(new ObjectOutputStream(_out));
-			} catch (IOException ex) {
-				Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
-				interrupt();
+		try {
+			outbound.write(packet, lane);
+		} catch (IOException ex) {
+			Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
+			interrupt();
+		}
+	}
+
+	/**
+	 * Sends a packet over the unreliable channel, if the client has one. The
+	 * packet may be lost, and is dropped by the client if a newer packet of
+	 * the same class arrives first, which suits state that is sent over and
+	 * over such as positions. Packets without a {@link PacketCodec} are
+	 * serialized on their own, which makes them much larger. Packets are sent
+	 * with {@link #write(Serializable)} instead if the client has no channel,
+	 * its first datagram has not arrived yet, or they do not fit in a
+	 * datagram.
+	 */
+	public void writeUnreliable(Serializable packet) {
+		if (packet == null) { // Don't send null packets.
+			return;
+		}
+		try {
+			if (unreliable != null && unreliable.write(packet)) {
+				return;
 			}
+		} catch (IOException ex) {
+			Logger.getLogger(ServerClient.class.getName()).log(Level.WARNING, null, ex);
+		}
+		write(packet);
+	}
+
+	/**
+	 * Sends a frame from {@link PacketWriter#encodeShared(Serializable)}. The
+	 * frame is shared with other connections, so only a duplicate of it is
+	 * handed to the transport.
+	 */
+	void writeShared(ByteBuffer frame, boolean flushNow) {
+		if (transport.isClosed()) {
+			return;
+		}
+		try {
+			outbound.write(frame.duplicate(), flushNow);
+		} catch (IOException ex) {
+			Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
+			interrupt();
+		}
+	}
+
+	/**
+	 * Sends every packet that is being held back by the connection's
+	 * {@link FlushPolicy}.
+	 */
+	public void flush() {
+		if (transport.isClosed()) {
+			return;
+		}
+		try {
+			outbound.flush();
+		} catch (IOException ex) {
+			Logger.getLogger(ServerClient.class.getName()).log(Level.SEVERE, null, ex);
+			interrupt();
+		}
+	}
+
+	/**
+	 * Runs {@code listener} once, as soon as a packet is waiting to be taken
+	 * or the connection is closed, on the thread that received it or straight
+	 * away. For taking packets from many connections on a few threads instead
+	 * of one waiting per connection. Replaces the listener set before, if it
+	 * has not run yet. The listener should be quick.
+	 */
+	public void whenPacket(Runnable listener) {
+		notifier.whenPacket(listener, queue, unreliable == null ? null : unreliable.queue());
+		if (transport.isClosed()) {
+			notifier.closed();
 		}
 	}
 
 	public Serializable queryPacket() {
 		try {
-			synchronized (queue) {
-				return queue.poll();
+			Serializable packet = unreliable == null ? null : unreliable.queue().poll();
+			return packet != null ? packet : queue.poll();
+		} finally {
+			if (finished()) {
+				server.clientIsFinished(this);
 			}
+		}
+	}
+
+	/**
+	 * Moves up to {@code max} received packets into {@code target} without
+	 * waiting, so a game loop can handle a tick's worth of packets at once.
+	 *
+	 * @return the number of packets moved
+	 */
+	public int drainTo(Collection<? super Serializable> target, int max) {
+		try {
+			int count = unreliable == null ? 0 : unreliable.queue().drainTo(target, max);
+			return count + queue.drainTo(target, max - count);
 		} finally {
 			if (finished()) {
 				server.clientIsFinished(this);
@@ -112,13 +536,7 @@ public final class ServerClient extends Thread {
 
 	public Serializable waitForPacket() throws InterruptedException {
 		try {
-			synchronized (queue) {
-				if (!queue.isEmpty()) {
-					return queue.remove();
-				}
-				queue.wait();
-				return queue.remove();
-			}
+			return queue.take(-1, unreliable == null ? null : unreliable.queue());
 		} finally {
 			if (finished()) {
 				server.clientIsFinished(this);
@@ -128,13 +546,7 @@ public final class ServerClient extends Thread {
 
 	public Serializable waitForPacket(long maxWait) throws InterruptedException, NoSuchElementException {
 		try {
-			synchronized (queue) {
-				if (!queue.isEmpty()) {
-					return queue.remove();
-				}
-				queue.wait(maxWait);
-				return queue.remove();
-			}
+			return queue.take(maxWait == 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(maxWait), unreliable == null ? null : unreliable.queue());
 		} finally {
 			if (finished()) {
 				server.clientIsFinished(this);
@@ -143,9 +555,28 @@ public final class ServerClient extends Thread {
 	}
 
 	public boolean finished() {
-		synchronized (queue) {
-			return socket.isClosed() && queue.isEmpty();
-		}
+		return transport.isClosed() && queue.isEmpty() && (unreliable == null || unreliable.queue().isEmpty());
+	}
+
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the smoothed round trip time to the client in nanoseconds, or -1
+	 * if no ping has been answered yet
+	 * @see NetworkOptions#setPingInterval(long)
+	 */
+	public long getRoundTripNanos() {
+		return heartbeat.getRoundTrip();
+	}
+
+	/**
+	 * @return how much the round trip time varies, in nanoseconds, or -1 if no
+	 * ping has been answered yet
+	 */
+	public long getJitterNanos() {
+		return heartbeat.getJitter();
 	}
 
 	public int getClientId() {
@@ -0,0 +1,18 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a server that keeps sessions, as the first frame of every new
+ * connection. A client that loses its connection reconnects with the token
+ * to carry on where it left off.
+ */
+final class SessionToken implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final long token;
+
+	SessionToken(long token) {
+		this.token = token;
+	}
+}
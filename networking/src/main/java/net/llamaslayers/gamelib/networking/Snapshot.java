@@ -0,0 +1,86 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The state of every replicated entity at one tick. An entity is an id and
+ * up to 64 numeric fields; what the fields mean is up to the game. Floating
+ * point fields can be stored with {@link Double#doubleToLongBits(double)} or
+ * {@link Float#floatToIntBits(float)}, although fields that change by small
+ * whole amounts take the least room in deltas.
+ *
+ * A snapshot must not be changed once it has been published to a
+ * {@link SnapshotSender}.
+ *
+ * @see SnapshotSender
+ * @see SnapshotReceiver
+ */
+public final class Snapshot {
+	/**
+	 * The most fields an entity can have.
+	 */
+	public static final int MAX_FIELDS = 64;
+	private final int tick;
+	final TreeMap<Integer, long[]> entities;
+
+	/**
+	 * @param tick a number that grows with every snapshot, starting at 0
+	 */
+	public Snapshot(int tick) {
+		this(tick, new TreeMap<Integer, long[]>());
+	}
+
+	Snapshot(int tick, TreeMap<Integer, long[]> entities) {
+		if (tick < 0) {
+			throw new IllegalArgumentException("tick < 0");
+		}
+		this.tick = tick;
+		this.entities = entities;
+	}
+
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * Adds an entity, or replaces the fields of one. The fields are copied.
+	 */
+	public Snapshot put(int entity, long... fields) {
+		if (fields.length > MAX_FIELDS) {
+			throw new IllegalArgumentException("More than " + MAX_FIELDS + " fields");
+		}
+		entities.put(entity, fields.clone());
+		return this;
+	}
+
+	public Snapshot remove(int entity) {
+		entities.remove(entity);
+		return this;
+	}
+
+	/**
+	 * @return the fields of an entity, which must not be modified, or null if
+	 * there is no such entity
+	 */
+	public long[] get(int entity) {
+		return entities.get(entity);
+	}
+
+	/**
+	 * @return the ids of every entity, in ascending order
+	 */
+	public Set<Integer> getEntities() {
+		return Collections.unmodifiableSet(entities.keySet());
+	}
+
+	public int size() {
+		return entities.size();
+	}
+
+	@Override
+	public String toString() {
+		return "Snapshot[tick=" + tick + ", entities=" + entities.size() + "]";
+	}
+}
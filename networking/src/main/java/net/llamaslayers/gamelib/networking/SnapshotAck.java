@@ -0,0 +1,43 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Sent by a client to tell the server which snapshot it has, so the next
+ * snapshot can be sent as the difference from it. See
+ * {@link SnapshotReceiver#acknowledgement()}.
+ */
+public final class SnapshotAck implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final int tick;
+
+	/**
+	 * @param tick the tick of the latest snapshot the client has, or
+	 * {@link SnapshotPacket#NO_BASELINE} to ask for a full snapshot
+	 */
+	SnapshotAck(int tick) {
+		this.tick = tick;
+	}
+
+	public int getTick() {
+		return tick;
+	}
+
+	static final class Codec implements PacketCodec<SnapshotAck> {
+		@Override
+		public void encode(SnapshotAck packet, ByteBuffer out) {
+			VarInts.put(out, packet.tick + 1);
+		}
+
+		@Override
+		public SnapshotAck decode(ByteBuffer in) throws IOException {
+			int tick = VarInts.get(in) - 1;
+			if (tick < SnapshotPacket.NO_BASELINE) {
+				throw new IOException("Invalid snapshot tick");
+			}
+			return new SnapshotAck(tick);
+		}
+	}
+}
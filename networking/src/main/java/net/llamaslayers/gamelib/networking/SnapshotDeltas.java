@@ -0,0 +1,162 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes the difference between two snapshots. The encoding is the ids of
+ * removed entities, followed by every entity that is new or has changed. A
+ * changed entity is a bitmask of its changed fields and, for each of them,
+ * the difference from the old value. A new entity, or one whose number of
+ * fields changed, is sent in full. Ids are sent as the difference from the
+ * previous id, and all numbers are {@link VarInts varints}, so small changes
+ * to a few fields of a few entities take a few bytes each.
+ */
+final class SnapshotDeltas {
+	private static final Snapshot EMPTY = new Snapshot(0);
+
+	private SnapshotDeltas() {
+	}
+
+	/**
+	 * @param baseline the snapshot the other side has, or null if it has none
+	 */
+	static byte[] encode(Snapshot baseline, Snapshot current) {
+		if (baseline == null) {
+			baseline = EMPTY;
+		}
+		ByteBuffer out = ByteBuffer.allocate(maxLength(baseline, current));
+
+		int removed = 0;
+		for (Integer id : baseline.entities.keySet()) {
+			if (!current.entities.containsKey(id)) {
+				removed++;
+			}
+		}
+		VarInts.put(out, removed);
+		long previous = 0;
+		for (Integer id : baseline.entities.keySet()) {
+			if (!current.entities.containsKey(id)) {
+				VarInts.putLong(out, VarInts.zigZag(id - previous));
+				previous = id;
+			}
+		}
+
+		int countAt = out.position();
+		out.position(countAt + VarInts.MAX_LENGTH);
+		int changed = 0;
+		previous = 0;
+		for (Map.Entry<Integer, long[]> entry : current.entities.entrySet()) {
+			long[] fields = entry.getValue();
+			long[] old = baseline.entities.get(entry.getKey());
+			if (old == fields) {
+				continue;
+			}
+			long mask = 0;
+			if (old != null && old.length == fields.length) {
+				for (int i = 0; i < fields.length; i++) {
+					if (fields[i] != old[i]) {
+						mask |= 1L << i;
+					}
+				}
+				if (mask == 0) {
+					continue;
+				}
+			}
+			VarInts.putLong(out, VarInts.zigZag(entry.getKey() - previous));
+			previous = entry.getKey();
+			changed++;
+			if (old == null || old.length != fields.length) {
+				VarInts.put(out, fields.length + 1);
+				for (long field : fields) {
+					VarInts.putLong(out, VarInts.zigZag(field));
+				}
+			} else {
+				VarInts.put(out, 0);
+				VarInts.putLong(out, mask);
+				for (int i = 0; i < fields.length; i++) {
+					if ((mask & 1L << i) != 0) {
+						VarInts.putLong(out, VarInts.zigZag(fields[i] - old[i]));
+					}
+				}
+			}
+		}
+
+		// Move the entities back so the count takes no more room than it needs.
+		int end = out.position();
+		int countLength = VarInts.size(changed);
+		byte[] delta = new byte[end - VarInts.MAX_LENGTH + countLength];
+		out.flip();
+		out.get(delta, 0, countAt);
+		ByteBuffer count = ByteBuffer.wrap(delta, countAt, countLength);
+		VarInts.put(count, changed);
+		out.position(countAt + VarInts.MAX_LENGTH);
+		out.get(delta, countAt + countLength, end - out.position());
+		return delta;
+	}
+
+	private static int maxLength(Snapshot baseline, Snapshot current) {
+		int length = 2 * VarInts.MAX_LENGTH + baseline.size() * VarInts.MAX_LONG_LENGTH;
+		for (long[] fields : current.entities.values()) {
+			length += VarInts.MAX_LONG_LENGTH + VarInts.MAX_LENGTH + (fields.length + 1) * VarInts.MAX_LONG_LENGTH;
+		}
+		return length;
+	}
+
+	/**
+	 * @param baseline the snapshot the delta was made against, or null if it
+	 * was made against nothing
+	 */
+	static Snapshot decode(Snapshot baseline, int tick, ByteBuffer in) throws IOException {
+		TreeMap<Integer, long[]> entities = baseline == null ? new TreeMap<Integer, long[]>() : new TreeMap<Integer, long[]>(baseline.entities);
+		try {
+			int removed = VarInts.get(in);
+			long id = 0;
+			for (int i = 0; i < removed; i++) {
+				id += VarInts.unZigZag(VarInts.getLong(in));
+				entities.remove((int) id);
+			}
+			int changed = VarInts.get(in);
+			id = 0;
+			for (int i = 0; i < changed; i++) {
+				id += VarInts.unZigZag(VarInts.getLong(in));
+				int length = VarInts.get(in);
+				long[] fields;
+				if (length > 0) {
+					if (length - 1 > Snapshot.MAX_FIELDS) {
+						throw new IOException("Entity with " + (length - 1) + " fields");
+					}
+					fields = new long[length - 1];
+					for (int f = 0; f < fields.length; f++) {
+						fields[f] = VarInts.unZigZag(VarInts.getLong(in));
+					}
+				} else {
+					long[] old = entities.get((int) id);
+					if (old == null) {
+						throw new IOException("Change to unknown entity " + id);
+					}
+					fields = old.clone();
+					long mask = VarInts.getLong(in);
+					if (fields.length < Snapshot.MAX_FIELDS && mask >>> fields.length != 0) {
+						throw new IOException("Change to missing field of entity " + id);
+					}
+					for (int f = 0; f < fields.length; f++) {
+						if ((mask & 1L << f) != 0) {
+							fields[f] += VarInts.unZigZag(VarInts.getLong(in));
+						}
+					}
+				}
+				entities.put((int) id, fields);
+			}
+		} catch (RuntimeException ex) { // Truncated delta.
+			throw new IOException("Corrupt snapshot delta", ex);
+		}
+		if (in.hasRemaining()) {
+			throw new IOException(in.remaining() + " unread bytes in snapshot delta");
+		}
+		return new Snapshot(tick, entities);
+	}
+}
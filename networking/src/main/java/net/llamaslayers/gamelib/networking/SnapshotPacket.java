@@ -0,0 +1,82 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A snapshot encoded as the difference from an earlier snapshot the client
+ * acknowledged, or in full. Made by {@link SnapshotSender} and turned back
+ * into a snapshot by {@link SnapshotReceiver}. Snapshot packets can be sent
+ * with {@code writeUnreliable}, since a lost packet only means the next one
+ * is made against an older baseline.
+ */
+public final class SnapshotPacket implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The baseline of packets that contain the whole snapshot.
+	 */
+	public static final int NO_BASELINE = -1;
+	private final int tick;
+	private final int baseline;
+	private final byte[] delta;
+
+	SnapshotPacket(int tick, int baseline, byte[] delta) {
+		this.tick = tick;
+		this.baseline = baseline;
+		this.delta = delta;
+	}
+
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * @return the tick of the snapshot this packet is the difference from, or
+	 * {@link #NO_BASELINE}
+	 */
+	public int getBaseline() {
+		return baseline;
+	}
+
+	/**
+	 * @return the size of the encoded snapshot in bytes
+	 */
+	public int getLength() {
+		return delta.length;
+	}
+
+	ByteBuffer delta() {
+		return ByteBuffer.wrap(delta);
+	}
+
+	/**
+	 * Registers codecs for snapshot packets and their acknowledgements, which
+	 * saves the cost of Java serialization.
+	 */
+	public static PacketRegistry register(PacketRegistry registry, int packetId, int ackId) {
+		return registry.register(packetId, SnapshotPacket.class, new Codec())
+				.register(ackId, SnapshotAck.class, new SnapshotAck.Codec());
+	}
+
+	static final class Codec implements PacketCodec<SnapshotPacket> {
+		@Override
+		public void encode(SnapshotPacket packet, ByteBuffer out) {
+			VarInts.put(out, packet.tick);
+			VarInts.put(out, packet.baseline + 1);
+			out.put(packet.delta);
+		}
+
+		@Override
+		public SnapshotPacket decode(ByteBuffer in) throws IOException {
+			int tick = VarInts.get(in);
+			int baseline = VarInts.get(in) - 1;
+			if (tick < 0 || baseline < NO_BASELINE) {
+				throw new IOException("Invalid snapshot tick");
+			}
+			byte[] delta = new byte[in.remaining()];
+			in.get(delta);
+			return new SnapshotPacket(tick, baseline, delta);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+
+/**
+ * The client half of snapshot replication. Turns each {@link SnapshotPacket}
+ * back into a {@link Snapshot} using the earlier snapshot it was made
+ * against, and produces the {@link SnapshotAck} to send back.
+ */
+public final class SnapshotReceiver {
+	private final Snapshot[] history;
+	private Snapshot latest;
+	private boolean needsFull;
+
+	/**
+	 * @param history how many snapshots to keep as baselines, which should be
+	 * at least as many as the server keeps
+	 */
+	public SnapshotReceiver(int history) {
+		if (history < 1) {
+			throw new IllegalArgumentException("history < 1");
+		}
+		this.history = new Snapshot[history];
+	}
+
+	/**
+	 * @return the snapshot, or null if the packet is not newer than the latest
+	 * snapshot or was made against a snapshot this receiver no longer has. In
+	 * the latter case the next acknowledgement asks for a full snapshot.
+	 * @throws IOException if the packet is corrupt
+	 */
+	public synchronized Snapshot receive(SnapshotPacket packet) throws IOException {
+		if (latest != null && packet.getTick() <= latest.getTick()) {
+			return null;
+		}
+		Snapshot baseline = null;
+		if (packet.getBaseline() != SnapshotPacket.NO_BASELINE) {
+			baseline = history[packet.getBaseline() % history.length];
+			if (baseline == null || baseline.getTick() != packet.getBaseline()) {
+				needsFull = true;
+				return null;
+			}
+		}
+		Snapshot snapshot = SnapshotDeltas.decode(baseline, packet.getTick(), packet.delta());
+		history[snapshot.getTick() % history.length] = snapshot;
+		latest = snapshot;
+		needsFull = false;
+		return snapshot;
+	}
+
+	/**
+	 * @return the latest snapshot received, or null if there is none
+	 */
+	public synchronized Snapshot getLatest() {
+		return latest;
+	}
+
+	/**
+	 * @return the acknowledgement to send to the server after receiving a
+	 * packet
+	 */
+	public synchronized SnapshotAck acknowledgement() {
+		if (needsFull || latest == null) {
+			return new SnapshotAck(SnapshotPacket.NO_BASELINE);
+		}
+		return new SnapshotAck(latest.getTick());
+	}
+}
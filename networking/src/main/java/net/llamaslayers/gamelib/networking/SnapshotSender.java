@@ -0,0 +1,91 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The server half of snapshot replication. The game publishes a
+ * {@link Snapshot} of the world every tick and sends each client the packet
+ * from {@link #packetFor(int)}, which only contains what changed since the
+ * latest snapshot the client acknowledged with a {@link SnapshotAck}. Clients
+ * that have not acknowledged anything, or whose baseline is older than the
+ * snapshots kept, get the whole snapshot. Clients with the same baseline
+ * share one encoded packet.
+ */
+public final class SnapshotSender {
+	private final Snapshot[] history;
+	private final Map<Integer, Integer> acknowledged = new HashMap<Integer, Integer>();
+	private final Map<Integer, SnapshotPacket> packets = new HashMap<Integer, SnapshotPacket>();
+	private Snapshot latest;
+
+	/**
+	 * @param history how many snapshots to keep as baselines, which bounds how
+	 * far behind a client can be before it gets a full snapshot
+	 */
+	public SnapshotSender(int history) {
+		if (history < 1) {
+			throw new IllegalArgumentException("history < 1");
+		}
+		this.history = new Snapshot[history];
+	}
+
+	/**
+	 * Makes {@code snapshot} the one sent to clients from now on. Its tick must
+	 * be higher than that of the previous snapshot.
+	 */
+	public synchronized void publish(Snapshot snapshot) {
+		if (latest != null && snapshot.getTick() <= latest.getTick()) {
+			throw new IllegalArgumentException("Tick " + snapshot.getTick() + " is not after " + latest.getTick());
+		}
+		history[snapshot.getTick() % history.length] = snapshot;
+		latest = snapshot;
+		packets.clear();
+	}
+
+	/**
+	 * @return the latest snapshot for a client, as the difference from the
+	 * snapshot it last acknowledged
+	 * @throws IllegalStateException if nothing has been published
+	 */
+	public synchronized SnapshotPacket packetFor(int client) {
+		if (latest == null) {
+			throw new IllegalStateException("No snapshot has been published");
+		}
+		Integer ack = acknowledged.get(client);
+		Snapshot baseline = ack == null ? null : find(ack);
+		int baselineTick = baseline == null ? SnapshotPacket.NO_BASELINE : baseline.getTick();
+		SnapshotPacket packet = packets.get(baselineTick);
+		if (packet == null) {
+			packet = new SnapshotPacket(latest.getTick(), baselineTick, SnapshotDeltas.encode(baseline, latest));
+			packets.put(baselineTick, packet);
+		}
+		return packet;
+	}
+
+	/**
+	 * Records that a client has a snapshot. Acknowledgements older than one
+	 * already recorded are ignored, since they may arrive out of order.
+	 */
+	public synchronized void acknowledged(int client, SnapshotAck ack) {
+		if (ack.getTick() == SnapshotPacket.NO_BASELINE) {
+			acknowledged.remove(client);
+			return;
+		}
+		Integer previous = acknowledged.get(client);
+		if ((previous == null || ack.getTick() > previous) && find(ack.getTick()) != null) {
+			acknowledged.put(client, ack.getTick());
+		}
+	}
+
+	/**
+	 * Forgets a client that has disconnected.
+	 */
+	public synchronized void forget(int client) {
+		acknowledged.remove(client);
+	}
+
+	private Snapshot find(int tick) {
+		Snapshot snapshot = history[tick % history.length];
+		return snapshot != null && snapshot.getTick() == tick ? snapshot : null;
+	}
+}
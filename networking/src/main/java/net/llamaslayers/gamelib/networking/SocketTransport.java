@@ -0,0 +1,113 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * A blocking {@link Socket}. Frames are read by the thread that owns the
+ * connection through {@link #readFrame()}. Both directions are buffered, so
+ * small frames cost one system call instead of one per byte, and frames
+ * larger than the buffer go straight to the socket. Nagle's algorithm is
+ * turned off because writes are already batched by {@link OutboundQueue}.
+ */
+final class SocketTransport implements BlockingTransport {
+	static final int BUFFER_SIZE = 8192;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private ByteBuffer frame = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private SocketTransport(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(new NoCloseInputStream(socket.getInputStream()), BUFFER_SIZE));
+		out = new BufferedOutputStream(new NoCloseOutputStream(socket.getOutputStream()), BUFFER_SIZE);
+	}
+
+	/**
+	 * Sends {@code local} and expects {@code remote} in return, which is how
+	 * both sides of a connection check that they are talking to each other.
+	 */
+	static SocketTransport handshake(Socket socket, char local, char remote) throws IOException {
+		handshake(socket, local, String.valueOf(remote));
+		return new SocketTransport(socket);
+	}
+
+	/**
+	 * Sends {@code local} and expects one of {@code remote} in return.
+	 *
+	 * @return the character received
+	 */
+	static char handshake(Socket socket, char local, String remote) throws IOException {
+		socket.getOutputStream().write(local);
+		int init = socket.getInputStream().read();
+		if (init < 0 || remote.indexOf(init) < 0) {
+			throw new IOException((remote.charAt(0) == 'C' ? "Client" : "Server") + " INIT " + (char) init + " != " + remote);
+		}
+		return (char) init;
+	}
+
+	static SocketTransport open(Socket socket) throws IOException {
+		return new SocketTransport(socket);
+	}
+
+	@Override
+	public ByteBuffer readFrame() throws IOException {
+		int length = Packets.readLength(in);
+		if (frame.capacity() < length || frame.capacity() > BUFFER_SIZE && length <= BUFFER_SIZE) {
+			frame = ByteBuffer.allocate(Math.max(length, BUFFER_SIZE));
+		}
+		in.readFully(frame.array(), 0, length);
+		frame.clear();
+		frame.limit(length);
+		return frame;
+	}
+
+	@Override
+	public synchronized void write(ByteBuffer frame) throws IOException {
+		out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Frames are handed to the socket as they are written, and writes block
+	 * while the socket's buffer is full, so nothing is ever queued.
+	 */
+	@Override
+	public int queuedFrames() {
+		return 0;
+	}
+
+	@Override
+	public long queuedBytes() {
+		return 0;
+	}
+
+	@Override
+	public boolean dropOldest() {
+		return false;
+	}
+
+	@Override
+	public void awaitRoom(int frames, long bytes) {
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+}
@@ -0,0 +1,51 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The outgoing half of a connection. Incoming frames are delivered by whoever
+ * owns the connection's read side: the connection's own thread for blocking
+ * sockets, or an I/O thread for selector-based connections.
+ */
+interface Transport {
+	/**
+	 * Queues a complete frame. Frames may be held back until the next
+	 * {@link #flush()}. Implementations must be safe to call from multiple
+	 * threads and must keep frames in the order they were written.
+	 */
+	void write(ByteBuffer frame) throws IOException;
+
+	/**
+	 * Sends every frame written so far, in as few writes as possible.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * @return the number of frames written but not yet handed to the socket
+	 */
+	int queuedFrames();
+
+	/**
+	 * @return the number of bytes written but not yet handed to the socket
+	 */
+	long queuedBytes();
+
+	/**
+	 * Throws away the oldest queued frame that has not been started and does
+	 * not belong to the connection's serialization stream.
+	 *
+	 * @return false if there is no such frame
+	 */
+	boolean dropOldest();
+
+	/**
+	 * Waits until fewer than {@code frames} frames (if not 0) and fewer than
+	 * {@code bytes} bytes (if not 0) are queued, or the transport is closed.
+	 */
+	void awaitRoom(int frames, long bytes) throws IOException;
+
+	void close() throws IOException;
+
+	boolean isClosed();
+}
@@ -0,0 +1,133 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A datagram socket shared by the unreliable halves of connections, with a
+ * thread that receives datagrams and hands them to their
+ * {@link UnreliableEndpoint}. A server has one for all of its connections and
+ * a client has one of its own.
+ *
+ * A datagram is the endpoint's token (8 bytes), a sequence number (4 bytes)
+ * and a frame as it would be sent over the stream. A datagram without a frame
+ * only tells the server where the client's datagrams come from. Frames never
+ * use the connection's serialization stream, since that needs every frame to
+ * arrive.
+ */
+final class UnreliableChannel extends Thread {
+	static final int HEADER_LENGTH = 12;
+	/**
+	 * The largest datagram sent. Larger packets are sent over the stream, so
+	 * datagrams are never fragmented on ordinary links.
+	 */
+	static final int MAX_DATAGRAM_LENGTH = 1200;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private final DatagramSocket socket;
+	private final ConcurrentHashMap<Long, UnreliableEndpoint> endpoints = new ConcurrentHashMap<Long, UnreliableEndpoint>();
+	private final PacketReader reader;
+
+	UnreliableChannel(DatagramSocket socket, PacketRegistry registry) {
+		super("Unreliable channel on port " + socket.getLocalPort());
+		setDaemon(true);
+		this.socket = socket;
+		this.reader = new PacketReader(registry);
+	}
+
+	int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Gives an endpoint a new random token and starts delivering datagrams
+	 * carrying it.
+	 */
+	long register(UnreliableEndpoint endpoint) {
+		while (true) {
+			long token = RANDOM.nextLong();
+			if (token != 0 && endpoints.putIfAbsent(token, endpoint) == null) {
+				return token;
+			}
+		}
+	}
+
+	/**
+	 * Starts delivering datagrams carrying a token the other side chose.
+	 */
+	void register(long token, UnreliableEndpoint endpoint) {
+		endpoints.put(token, endpoint);
+	}
+
+	void unregister(long token) {
+		endpoints.remove(token);
+	}
+
+	void send(SocketAddress address, long token, int sequence, ByteBuffer frame) throws IOException {
+		byte[] datagram = new byte[HEADER_LENGTH + (frame == null ? 0 : frame.remaining())];
+		ByteBuffer buffer = ByteBuffer.wrap(datagram);
+		buffer.putLong(token);
+		buffer.putInt(sequence);
+		if (frame != null) {
+			buffer.put(frame);
+		}
+		socket.send(new DatagramPacket(datagram, datagram.length, address));
+	}
+
+	@Override
+	public void run() {
+		byte[] data = new byte[65536];
+		DatagramPacket datagram = new DatagramPacket(data, data.length);
+		while (!socket.isClosed()) {
+			try {
+				datagram.setLength(data.length);
+				socket.receive(datagram);
+				received(ByteBuffer.wrap(data, 0, datagram.getLength()), datagram.getSocketAddress());
+			} catch (IOException ex) {
+				if (!socket.isClosed()) {
+					Logger.getLogger(UnreliableChannel.class.getName()).log(Level.WARNING, null, ex);
+				}
+			} catch (ClassNotFoundException ex) {
+				Logger.getLogger(UnreliableChannel.class.getName()).log(Level.WARNING, null, ex);
+			} catch (RuntimeException ex) { // Garbage from the network.
+				Logger.getLogger(UnreliableChannel.class.getName()).log(Level.WARNING, null, ex);
+			}
+		}
+	}
+
+	private void received(ByteBuffer datagram, SocketAddress from) throws IOException, ClassNotFoundException {
+		if (datagram.remaining() < HEADER_LENGTH) {
+			return;
+		}
+		UnreliableEndpoint endpoint = endpoints.get(datagram.getLong());
+		if (endpoint == null) {
+			return;
+		}
+		int sequence = datagram.getInt();
+		endpoint.receivedFrom(from);
+		if (!datagram.hasRemaining()) {
+			return;
+		}
+		int length = Packets.readLength(datagram);
+		if (length != datagram.remaining()) {
+			throw new IOException("Datagram frame length " + length + " != " + datagram.remaining());
+		}
+		if (VarInts.get(datagram.duplicate()) == Packets.SERIALIZED) {
+			throw new IOException("Datagram frame uses the serialization stream");
+		}
+		endpoint.received(reader.decode(datagram), sequence, length);
+	}
+
+	/**
+	 * Closes the socket, which stops the thread.
+	 */
+	void close() {
+		socket.close();
+	}
+}
@@ -0,0 +1,127 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The unreliable half of a connection. Packets sent through it may be lost,
+ * duplicated or arrive out of order. Every datagram is numbered, and a packet
+ * is dropped if a packet of the same class with a higher number has already
+ * arrived, so only the latest value of each kind of packet is delivered.
+ * Received packets wait in a small queue of their own, which drops the oldest
+ * packet when it is full rather than slowing down the other side.
+ */
+final class UnreliableEndpoint {
+	private static final int QUEUE_CAPACITY = 256;
+	private final UnreliableChannel channel;
+	private final PacketWriter writer;
+	private final InboundQueue queue;
+	private final ConnectionMetrics metrics;
+	/**
+	 * Whether the other side's address is learned from its datagrams, which
+	 * is the case on the server.
+	 */
+	private final boolean learnsAddress;
+	private final AtomicInteger nextSequence = new AtomicInteger(1);
+	/**
+	 * The sequence number of the latest packet of each class. Only used by
+	 * the channel's thread.
+	 */
+	private final Map<Class<?>, Integer> latest = new HashMap<Class<?>, Integer>();
+	private volatile long token;
+	private volatile SocketAddress remote;
+
+	UnreliableEndpoint(UnreliableChannel channel, boolean learnsAddress, NetworkOptions options, ConnectionMetrics metrics) throws IOException {
+		this.channel = channel;
+		this.learnsAddress = learnsAddress;
+		this.writer = new PacketWriter(options.getPacketRegistry(), 1);
+		this.queue = new InboundQueue(QUEUE_CAPACITY, options.getInboundQueueBytes(), metrics);
+		this.metrics = metrics;
+	}
+
+	InboundQueue queue() {
+		return queue;
+	}
+
+	/**
+	 * Starts accepting datagrams on the server. They are only sent back once
+	 * the client's first datagram has arrived.
+	 *
+	 * @return the token to send to the client
+	 */
+	long open() {
+		token = channel.register(this);
+		return token;
+	}
+
+	/**
+	 * Starts sending and accepting datagrams on the client, and tells the
+	 * server where to send its datagrams.
+	 */
+	void open(long token, SocketAddress server) throws IOException {
+		this.remote = server;
+		this.token = token;
+		channel.register(token, this);
+		channel.send(server, token, 0, null);
+	}
+
+	void receivedFrom(SocketAddress from) {
+		if (learnsAddress) {
+			remote = from;
+		}
+	}
+
+	void received(Serializable packet, int sequence, int size) {
+		if (metrics.isDetailed()) {
+			metrics.received(size);
+		}
+		if (packet == null) {
+			return;
+		}
+		Integer last = latest.get(packet.getClass());
+		if (last != null && sequence - last.intValue() <= 0) {
+			metrics.staleDropped(1);
+			return;
+		}
+		latest.put(packet.getClass(), sequence);
+		while (!queue.offer(packet, size)) {
+			queue.dropOldest();
+			metrics.inboundDropped(1);
+		}
+	}
+
+	/**
+	 * @return false if the packet was not sent because the other side's
+	 * address is not known yet or the packet does not fit in a datagram
+	 */
+	boolean write(Serializable packet) throws IOException {
+		SocketAddress address = remote;
+		if (address == null) {
+			return false;
+		}
+		ByteBuffer frame;
+		synchronized (writer) {
+			frame = writer.encodeShared(packet);
+		}
+		if (UnreliableChannel.HEADER_LENGTH + frame.remaining() > UnreliableChannel.MAX_DATAGRAM_LENGTH) {
+			return false;
+		}
+		if (metrics.isDetailed()) {
+			metrics.sent(frame.remaining());
+		}
+		channel.send(address, token, nextSequence.getAndIncrement(), frame);
+		return true;
+	}
+
+	void close() {
+		if (token != 0) {
+			channel.unregister(token);
+		}
+		remote = null;
+	}
+}
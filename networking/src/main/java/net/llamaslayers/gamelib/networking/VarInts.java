@@ -0,0 +1,92 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned variable length integers: seven bits per byte, least significant
+ * group first, with the high bit set on every byte but the last. Small values
+ * take a single byte. Used for frame lengths and packet ids, and available to
+ * {@link PacketCodec}s.
+ */
+public final class VarInts {
+	/**
+	 * The most bytes an int can take.
+	 */
+	public static final int MAX_LENGTH = 5;
+	/**
+	 * The most bytes a long can take.
+	 */
+	public static final int MAX_LONG_LENGTH = 10;
+
+	private VarInts() {
+	}
+
+	public static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static ByteBuffer put(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		return buffer.put((byte) value);
+	}
+
+	/**
+	 * @throws java.nio.BufferUnderflowException if the buffer ends in the
+	 * middle of the number
+	 */
+	public static int get(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 7 * MAX_LENGTH; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	public static ByteBuffer putLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		return buffer.put((byte) value);
+	}
+
+	/**
+	 * @throws java.nio.BufferUnderflowException if the buffer ends in the
+	 * middle of the number
+	 */
+	public static long getLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 7 * MAX_LONG_LENGTH; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Maps signed numbers to unsigned ones so that numbers close to zero,
+	 * negative or not, take few bytes: 0, -1, 1, -2 become 0, 1, 2, 3.
+	 */
+	public static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
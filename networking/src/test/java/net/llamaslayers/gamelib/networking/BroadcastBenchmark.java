@@ -0,0 +1,74 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Measures the CPU cost of sending one world update to every player in a
+ * zone: encoding it once per connection, as a loop over
+ * {@link ServerClient#write(Serializable)} does, against encoding it once with
+ * {@link PacketWriter#encodeShared(Serializable)} and sharing the frame, as
+ * {@link AbstractServer#broadcast(Serializable)} does. Sockets are left out.
+ *
+ * Usage: BroadcastBenchmark [players] [ticks]
+ */
+public final class BroadcastBenchmark {
+	private BroadcastBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int players = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		WorldUpdate update = new WorldUpdate();
+		for (int i = 0; i < 20; i++) {
+			update.positions.add(new float[] {i, -i});
+		}
+
+		System.out.printf("%-14s %14s %14s%n", "mode", "us/tick", "bytes/player");
+		for (int round = 0; round < 2; round++) { // The first round is warmup.
+			perConnection(update, players, ticks, round == 1);
+			shared(update, players, ticks, round == 1);
+		}
+	}
+
+	private static void perConnection(Serializable update, int players, int ticks, boolean print) throws IOException {
+		PacketWriter[] writers = new PacketWriter[players];
+		for (int i = 0; i < players; i++) {
+			writers[i] = new PacketWriter(new PacketRegistry(), 1);
+		}
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < ticks; tick++) {
+			for (PacketWriter writer : writers) {
+				bytes += writer.encode(update).remaining();
+			}
+		}
+		report("per connection", System.nanoTime() - start, bytes, players, ticks, print);
+	}
+
+	private static void shared(Serializable update, int players, int ticks, boolean print) throws IOException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 1);
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < ticks; tick++) {
+			ByteBuffer frame = writer.encodeShared(update);
+			for (int i = 0; i < players; i++) {
+				bytes += frame.duplicate().remaining();
+			}
+		}
+		report("shared", System.nanoTime() - start, bytes, players, ticks, print);
+	}
+
+	private static void report(String mode, long nanos, long bytes, int players, int ticks, boolean print) {
+		if (print) {
+			System.out.printf("%-14s %14.1f %14.1f%n", mode, nanos / 1000.0 / ticks, (double) bytes / players / ticks);
+		}
+	}
+
+	private static final class WorldUpdate implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final ArrayList<float[]> positions = new ArrayList<float[]>();
+	}
+}
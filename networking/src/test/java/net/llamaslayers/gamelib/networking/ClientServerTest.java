@@ -3,7 +3,11 @@ package net.llamaslayers.gamelib.networking;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.NoSuchElementException;
 import junit.framework.TestCase;
 
 public class ClientServerTest extends TestCase {
@@ -11,24 +15,47 @@ public class ClientServerTest extends TestCase {
 		super(testName);
 	}
 	private AbstractServer server;
+	private Thread serverThread;
+	private NetworkOptions options;
 	private static final int SERVER_PORT = 4000;
 
 	@Override
 	protected void setUp() throws Exception {
 		super.setUp();
-		server = new Server(SERVER_PORT);
-		new Thread(server).start();
+		options = createOptions().setPacketRegistry(new PacketRegistry().register(1, Packet4.class, new Packet4.Codec()));
+		server = new Server(SERVER_PORT, options);
+		serverThread = new Thread(server);
+		serverThread.start();
+	}
+
+	protected NetworkOptions createOptions() {
+		return new NetworkOptions();
+	}
+
+	/**
+	 * @return true to connect clients through memory instead of a socket
+	 */
+	protected boolean isLoopback() {
+		return false;
+	}
+
+	private AbstractClient connect(ArrayList<Serializable> packetsRecieved) throws IOException {
+		if (isLoopback()) {
+			return new Client(server, options, packetsRecieved);
+		}
+		return new Client(InetAddress.getLocalHost(), SERVER_PORT, options, packetsRecieved);
 	}
 
 	@Override
 	protected void tearDown() throws Exception {
 		super.tearDown();
 		server.stop();
+		serverThread.join();
 	}
 
 	private static class Server extends AbstractServer {
-		public Server(int port) throws IOException {
-			super(port);
+		public Server(int port, NetworkOptions options) throws IOException {
+			super(port, options);
 		}
 
 		@Override
@@ -116,11 +143,53 @@ public class ClientServerTest extends TestCase {
 		}
 	}
 
+	private static class Packet4 implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final int x, y;
+
+		public Packet4(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Packet4)) {
+				return false;
+			}
+			final Packet4 other = (Packet4) obj;
+			return this.x == other.x && this.y == other.y;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * x + y;
+		}
+
+		private static class Codec implements PacketCodec<Packet4> {
+			@Override
+			public void encode(Packet4 packet, ByteBuffer out) {
+				out.putInt(packet.x).putInt(packet.y);
+			}
+
+			@Override
+			public Packet4 decode(ByteBuffer in) {
+				return new Packet4(in.getInt(), in.getInt());
+			}
+		}
+	}
+
 	private static class Client extends AbstractClient {
 		private final ArrayList<Serializable> packetsRecieved;
 
-		public Client(InetAddress ip, int port, ArrayList<Serializable> packetsRecieved) throws IOException {
-			super(ip, port);
+		public Client(InetAddress ip, int port, NetworkOptions options, ArrayList<Serializable> packetsRecieved) throws IOException {
+			super(ip, port, options);
+			this.packetsRecieved = packetsRecieved;
+			new ListenThread().start();
+		}
+
+		public Client(AbstractServer server, NetworkOptions options, ArrayList<Serializable> packetsRecieved) throws IOException {
+			super(server, options);
 			this.packetsRecieved = packetsRecieved;
 			new ListenThread().start();
 		}
@@ -152,7 +221,7 @@ public class ClientServerTest extends TestCase {
 	public void testDataOrder() throws IOException, InterruptedException {
 		ArrayList<Serializable> packetsSent = new ArrayList<Serializable>();
 		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
-		AbstractClient client = new Client(InetAddress.getLocalHost(), SERVER_PORT, packetsRecieved);
+		AbstractClient client = connect(packetsRecieved);
 		client.start();
 
 		packetsSent.add(new Packet1());
@@ -173,7 +242,7 @@ public class ClientServerTest extends TestCase {
 	public void testComplexSerialization() throws IOException, InterruptedException {
 		ArrayList<Serializable> packetsSent = new ArrayList<Serializable>();
 		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
-		AbstractClient client = new Client(InetAddress.getLocalHost(), SERVER_PORT, packetsRecieved);
+		AbstractClient client = connect(packetsRecieved);
 		client.start();
 
 		packetsSent.add(new Packet3().add("This").add("is").add(null).add("a").add("test"));
@@ -189,4 +258,121 @@ public class ClientServerTest extends TestCase {
 
 		assertEquals("packets should not differ", packetsRecieved, packetsSent);
 	}
+
+	public void testRegisteredCodec() throws IOException, InterruptedException {
+		ArrayList<Serializable> packetsSent = new ArrayList<Serializable>();
+		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
+		AbstractClient client = connect(packetsRecieved);
+		client.start();
+
+		packetsSent.add(new Packet4(1, 2));
+		packetsSent.add(new Packet1());
+		packetsSent.add(new Packet4(-3, 4));
+		for (Serializable packet : packetsSent) {
+			client.write(packet);
+		}
+		client.write(new PacketFinished());
+		synchronized (client) {
+			if (!client.finished()) {
+				client.wait();
+			}
+		}
+
+		assertEquals("packets should not differ", packetsRecieved, packetsSent);
+	}
+
+	public void testLargePacket() throws IOException, InterruptedException {
+		ArrayList<Serializable> packetsSent = new ArrayList<Serializable>();
+		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
+		AbstractClient client = connect(packetsRecieved);
+		client.start();
+
+		Packet3 large = new Packet3();
+		for (int i = 0; i < 20000; i++) {
+			large.add("line " + i);
+		}
+		packetsSent.add(new Packet1());
+		packetsSent.add(large);
+		packetsSent.add(new Packet2());
+		for (Serializable packet : packetsSent) {
+			client.write(packet);
+		}
+		client.write(new PacketFinished());
+		synchronized (client) {
+			if (!client.finished()) {
+				client.wait();
+			}
+		}
+
+		assertEquals("packets should not differ", packetsRecieved, packetsSent);
+	}
+
+	public void testBroadcast() throws IOException, InterruptedException {
+		ArrayList<Serializable> packetsSent = new ArrayList<Serializable>();
+		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
+		AbstractClient client = connect(packetsRecieved);
+		client.start();
+		while (true) {
+			try {
+				server.getClient(1);
+				break;
+			} catch (NoSuchElementException ex) {
+				Thread.sleep(10);
+			}
+		}
+
+		packetsSent.add(new Packet3().add("to").add("everyone"));
+		packetsSent.add(new Packet4(5, 6));
+		packetsSent.add(new Packet1());
+		server.broadcast(packetsSent.get(0));
+		server.sendTo(Collections.singleton(1), packetsSent.get(1));
+		server.sendTo(Collections.singleton(2), new Packet2());
+		client.write(packetsSent.get(2));
+		client.write(new PacketFinished());
+		synchronized (client) {
+			if (!client.finished()) {
+				client.wait();
+			}
+		}
+
+		assertEquals("packets should not differ", packetsRecieved, packetsSent);
+	}
+
+	public void testMalformedFrameOnlyDropsItsConnection() throws IOException, InterruptedException {
+		if (isLoopback()) {
+			return;
+		}
+		ArrayList<Serializable> packetsRecieved = new ArrayList<Serializable>();
+		AbstractClient client = connect(packetsRecieved);
+		client.start();
+		Socket socket = new Socket(InetAddress.getLocalHost(), SERVER_PORT);
+		try {
+			socket.setSoTimeout(5000);
+			// A one byte frame whose packet id is cut off.
+			socket.getOutputStream().write(new byte[] {'C', 0x01, (byte) 0x80});
+			assertEquals('S', socket.getInputStream().read());
+			assertEquals("the malformed connection should be closed", -1, socket.getInputStream().read());
+		} finally {
+			socket.close();
+		}
+
+		// Connections on the same selector thread, old and new, still work.
+		ArrayList<AbstractClient> clients = new ArrayList<AbstractClient>();
+		ArrayList<ArrayList<Serializable>> received = new ArrayList<ArrayList<Serializable>>();
+		clients.add(client);
+		received.add(packetsRecieved);
+		for (int i = 0; i < 2; i++) {
+			received.add(new ArrayList<Serializable>());
+			clients.add(connect(received.get(i + 1)));
+			clients.get(i + 1).start();
+		}
+		for (int i = 0; i < clients.size(); i++) {
+			AbstractClient c = clients.get(i);
+			c.write(new Packet1());
+			c.write(new PacketFinished());
+			c.join(5000);
+			assertFalse("client " + i + " should finish", c.isAlive());
+			assertEquals(Collections.singletonList(new Packet1()), received.get(i));
+		}
+	}
 }
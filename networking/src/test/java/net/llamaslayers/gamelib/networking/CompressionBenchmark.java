@@ -0,0 +1,93 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sends chat and inventory packets through a writer and reader without
+ * compression, with compression and with compression and a dictionary
+ * trained on earlier packets. Reports bytes per packet, the compression ratio
+ * and the time to compress and decompress a packet.
+ *
+ * Usage: CompressionBenchmark [packets] [threshold]
+ */
+public final class CompressionBenchmark {
+	private static final String[] WORDS = {"the", "sword", "of", "anyone", "selling", "iron", "ore", "meet",
+		"me", "at", "north", "gate", "guild", "raid", "tonight", "need", "healer", "for", "dungeon", "lol"};
+
+	private CompressionBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threshold = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		List<Serializable> training = traffic(new Random(1), 2000);
+		List<Serializable> traffic = traffic(new Random(2), packets);
+		byte[] dictionary = CompressionDictionary.train(new PacketRegistry(), training, 4096);
+
+		System.out.printf("%-20s %14s %10s %16s %16s%n", "mode", "bytes/packet", "ratio", "compress ns", "decompress ns");
+		for (int round = 0; round < 2; round++) { // The first round is warmup.
+			run(round == 1, "uncompressed", new NetworkOptions(), traffic);
+			run(round == 1, "deflate", new NetworkOptions().setCompressionThreshold(threshold), traffic);
+			run(round == 1, "deflate, dictionary", new NetworkOptions().setCompressionThreshold(threshold)
+					.setCompressionDictionary(dictionary), traffic);
+		}
+	}
+
+	private static void run(boolean print, String name, NetworkOptions options, List<Serializable> traffic) throws IOException, ClassNotFoundException {
+		ConnectionMetrics metrics = new ConnectionMetrics(null);
+		PacketWriter writer = new PacketWriter(options.getPacketRegistry(), 1, new PacketCompressor(options, metrics));
+		PacketReader reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+		long bytes = 0;
+		for (Serializable packet : traffic) {
+			ByteBuffer frame = writer.encode(packet);
+			bytes += frame.remaining();
+			VarInts.get(frame);
+			reader.decode(frame);
+		}
+		if (print) {
+			System.out.printf("%-20s %14.1f %10.2f %16.0f %16.0f%n", name, (double) bytes / traffic.size(),
+					metrics.getCompressionRatio(), (double) metrics.getCompressionNanos() / traffic.size(),
+					(double) metrics.getDecompressionNanos() / traffic.size());
+		}
+	}
+
+	private static List<Serializable> traffic(Random random, int packets) {
+		List<Serializable> traffic = new ArrayList<Serializable>(packets);
+		for (int i = 0; i < packets; i++) {
+			if (random.nextBoolean()) {
+				StringBuilder text = new StringBuilder();
+				for (int w = 3 + random.nextInt(10); w > 0; w--) {
+					text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+				}
+				traffic.add(new Chat("player" + random.nextInt(50), text.toString()));
+			} else {
+				Inventory inventory = new Inventory();
+				for (int s = 0; s < inventory.slots.length; s++) {
+					inventory.slots[s] = random.nextInt(4) == 0 ? "minecraft:iron_ore" : "minecraft:air";
+				}
+				traffic.add(inventory);
+			}
+		}
+		return traffic;
+	}
+
+	private static final class Chat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String from, text;
+
+		Chat(String from, String text) {
+			this.from = from;
+			this.text = text;
+		}
+	}
+
+	private static final class Inventory implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String[] slots = new String[36];
+	}
+}
@@ -0,0 +1,83 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+public class ConnectionMetricsTest extends TestCase {
+	public ConnectionMetricsTest(String testName) {
+		super(testName);
+	}
+
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(0.99));
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getSum());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(100, histogram.getMax());
+		long median = histogram.getPercentile(0.5);
+		assertTrue("the median should be within a factor of two, was " + median, median >= 50 && median < 100);
+		assertEquals("percentiles should not exceed the maximum", 100, histogram.getPercentile(1));
+	}
+
+	public void testCountsReachParent() {
+		ConnectionMetrics server = new ConnectionMetrics(null, true);
+		ConnectionMetrics connection = new ConnectionMetrics(server, true);
+		connection.received(10);
+		connection.sent(20);
+		connection.serialized(String.class, 1000);
+		connection.writeLockWait(50);
+		assertEquals(1, server.getPacketsIn());
+		assertEquals(10, server.getBytesIn());
+		assertEquals(1, server.getPacketsOut());
+		assertEquals(20, server.getBytesOut());
+		assertEquals(1, server.getSerialization().get(String.class).getCount());
+		assertEquals(50, server.getWriteLockWait().getMax());
+		Map<String, Double> means = connection.getSerializationMeanNanos();
+		assertEquals(1000.0, means.get(String.class.getName()), 0.001);
+	}
+
+	public void testInboundQueue() throws InterruptedException {
+		ConnectionMetrics metrics = new ConnectionMetrics(null, true);
+		InboundQueue queue = new InboundQueue(8, 0, metrics);
+		for (int i = 0; i < 3; i++) {
+			queue.offer(Integer.valueOf(i), 1);
+		}
+		assertEquals(3, metrics.getInboundQueueDepth().getMax());
+		Thread.sleep(5);
+		queue.poll();
+		queue.drainTo(new ArrayList<Object>(), 8);
+		assertEquals(3, metrics.getReceiveLatency().getCount());
+		assertTrue(metrics.getReceiveLatency().getMax() >= 5000000);
+	}
+
+	public void testNotDetailed() {
+		ConnectionMetrics metrics = new ConnectionMetrics(null);
+		InboundQueue queue = new InboundQueue(8, 0, metrics);
+		queue.offer("a", 1);
+		queue.poll();
+		assertEquals(0, metrics.getInboundQueueDepth().getCount());
+		assertEquals(0, metrics.getReceiveLatency().getCount());
+	}
+
+	public void testRegister() throws Exception {
+		MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(ConnectionMetrics.DOMAIN + ":type=Test,name=registered");
+		ConnectionMetrics metrics = new ConnectionMetrics(null, true);
+		metrics.register("type=Test,name=registered");
+		try {
+			metrics.received(42);
+			assertEquals(Long.valueOf(42), beans.getAttribute(name, "BytesIn"));
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(beans.isRegistered(name));
+	}
+}
@@ -0,0 +1,182 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compares connections served by platform threads with connections served by
+ * virtual threads. First opens many idle connections and reports connect
+ * time, live threads and heap used, then has fewer connections echo a burst
+ * of packets and reports packets per second. Virtual threads are skipped on
+ * Java versions without them.
+ *
+ * Usage: ConnectionScalingBenchmark [idle connections] [active connections] [packets per connection]
+ */
+public final class ConnectionScalingBenchmark {
+	private static final int PORT = 4200;
+
+	private ConnectionScalingBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int packets = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		idle("platform", new NetworkOptions(), idle);
+		if (ConnectionThreads.isVirtualAvailable()) {
+			idle("virtual", new NetworkOptions().setConnectionThreadFactory(ConnectionThreads.virtual()), idle);
+		} else {
+			System.out.println("virtual threads are not available on this Java version");
+		}
+		active("platform", new NetworkOptions(), active, packets);
+		if (ConnectionThreads.isVirtualAvailable()) {
+			active("virtual", new NetworkOptions().setConnectionThreadFactory(ConnectionThreads.virtual()), active, packets);
+		}
+	}
+
+	/**
+	 * Idle connections are plain sockets that only do the handshake, so the
+	 * benchmark does not need a thread per connection of its own.
+	 */
+	private static void idle(String name, NetworkOptions options, int connections) throws Exception {
+		EchoServer server = new EchoServer(PORT, options);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		long heapBefore = usedHeap();
+		int threadsBefore = Thread.activeCount();
+
+		InetAddress host = InetAddress.getLocalHost();
+		long start = System.nanoTime();
+		List<Socket> sockets = new ArrayList<Socket>(connections);
+		for (int i = 0; i < connections; i++) {
+			Socket socket = new Socket(host, PORT);
+			socket.getOutputStream().write('C');
+			sockets.add(socket);
+		}
+		for (Socket socket : sockets) {
+			InputStream in = socket.getInputStream();
+			if (in.read() != 'S') {
+				throw new IOException("Bad handshake");
+			}
+		}
+		while (server.clients.size() < connections) {
+			Thread.sleep(1);
+		}
+		long connected = System.nanoTime();
+
+		System.out.printf("%-9s %6d idle connections in %6d ms, %6d more threads, %6d KiB more heap%n",
+				name, connections, (connected - start) / 1000000, Thread.activeCount() - threadsBefore,
+				(usedHeap() - heapBefore) / 1024);
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.stop();
+		serverThread.join();
+	}
+
+	private static void active(String name, NetworkOptions options, int connections, int packets) throws Exception {
+		EchoServer server = new EchoServer(PORT, options);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		InetAddress host = InetAddress.getLocalHost();
+		List<AbstractClient> clients = new ArrayList<AbstractClient>();
+		for (int i = 0; i < connections; i++) {
+			AbstractClient client = new AbstractClient(host, PORT) {
+			};
+			client.start();
+			clients.add(client);
+		}
+		while (server.clients.size() < connections) {
+			Thread.sleep(1);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			for (AbstractClient client : clients) {
+				client.write(Integer.valueOf(i));
+			}
+		}
+		long received = 0;
+		long total = (long) connections * packets;
+		while (received < total) {
+			boolean idle = true;
+			for (AbstractClient client : clients) {
+				while (client.queryPacket() != null) {
+					received++;
+					idle = false;
+				}
+			}
+			if (idle) {
+				Thread.sleep(1);
+			}
+		}
+		long done = System.nanoTime();
+
+		System.out.printf("%-9s %6d active connections, %10.0f echoed packets/s%n",
+				name, connections, total * 1e9 / (done - start));
+
+		for (AbstractClient client : clients) {
+			client.write(DisconnectPacket.DISCONNECT);
+		}
+		for (AbstractClient client : clients) {
+			client.join();
+		}
+		server.stop();
+		serverThread.join();
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		Thread.sleep(100);
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Echoes packets from each connection's own thread, so that every
+	 * connection costs what it would in a server without a game loop.
+	 */
+	private static final class EchoServer extends AbstractServer {
+		private final List<ServerClient> clients = new CopyOnWriteArrayList<ServerClient>();
+		private final NetworkOptions options;
+
+		EchoServer(int port, NetworkOptions options) throws IOException {
+			super(port, options);
+			this.options = options;
+		}
+
+		@Override
+		public void handleNewConnection(final ServerClient client) {
+			clients.add(client);
+			Runnable echo = new Runnable() {
+				@Override
+				public void run() {
+					while (!client.finished()) {
+						try {
+							Serializable packet = client.waitForPacket(1000);
+							client.write(packet);
+						} catch (InterruptedException ex) {
+							break;
+						} catch (NoSuchElementException ex) { // Check whether the client is finished.
+						}
+					}
+				}
+			};
+			if (options.getConnectionThreadFactory() == null) {
+				new Thread(echo).start();
+			} else {
+				options.getConnectionThreadFactory().newThread(echo).start();
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens connections as fast as a pool of client threads can, as every player
+ * does at once after a server restart, and reports how many connections per
+ * second the server sets up with different numbers of acceptor threads. Each
+ * connection only does the handshake and closes. Connections are served by
+ * their own threads and by selector threads.
+ *
+ * Usage: ConnectionStormBenchmark [connections] [client threads]
+ */
+public final class ConnectionStormBenchmark {
+	private static final int PORT = 4210;
+
+	private ConnectionStormBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.printf("%-9s %9s %14s%n", "mode", "acceptors", "connections/s");
+		for (int round = 0; round < 2; round++) { // The first round is warmup.
+			for (int acceptors = 1; acceptors <= Math.max(cores, 4); acceptors *= 2) {
+				report(round, "blocking", acceptors, storm(new NetworkOptions().setAcceptorThreads(acceptors), connections, clients));
+				report(round, "selector", acceptors, storm(new NetworkOptions().setAcceptorThreads(acceptors).setSelectorThreads(cores), connections, clients));
+			}
+		}
+	}
+
+	private static void report(int round, String mode, int acceptors, double rate) {
+		if (round > 0) {
+			System.out.printf("%-9s %9d %14.0f%n", mode, acceptors, rate);
+		}
+	}
+
+	private static double storm(NetworkOptions options, final int connections, int clients) throws Exception {
+		final AtomicInteger accepted = new AtomicInteger();
+		AbstractServer server = new AbstractServer(PORT, options) {
+			@Override
+			public void handleNewConnection(ServerClient client) {
+				accepted.incrementAndGet();
+			}
+		};
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		final InetAddress host = InetAddress.getLocalHost();
+		final AtomicInteger remaining = new AtomicInteger(connections);
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					while (remaining.getAndDecrement() > 0) {
+						try {
+							Socket socket = new Socket(host, PORT);
+							socket.getOutputStream().write('C');
+							if (socket.getInputStream().read() != 'S') {
+								throw new IOException("Bad handshake");
+							}
+							socket.close();
+						} catch (IOException ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		while (accepted.get() < connections) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		server.stop();
+		serverThread.join();
+		return connections * 1e9 / elapsed;
+	}
+}
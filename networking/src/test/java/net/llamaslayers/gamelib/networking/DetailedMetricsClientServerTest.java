@@ -0,0 +1,12 @@
+package net.llamaslayers.gamelib.networking;
+
+public class DetailedMetricsClientServerTest extends ClientServerTest {
+	public DetailedMetricsClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected NetworkOptions createOptions() {
+		return new NetworkOptions().setDetailedMetrics(true).setMetricsName("test");
+	}
+}
@@ -0,0 +1,181 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class HeartbeatTest extends TestCase {
+	public HeartbeatTest(String testName) {
+		super(testName);
+	}
+	private static final int SERVER_PORT = 4020;
+	private AbstractServer server;
+	private Thread serverThread;
+	private volatile ServerClient connection;
+	private volatile ServerClient firstConnection;
+
+	private void startServer(NetworkOptions options) throws IOException {
+		server = new AbstractServer(SERVER_PORT, options) {
+			@Override
+			public void handleNewConnection(ServerClient client) {
+				if (firstConnection == null) {
+					firstConnection = client;
+				}
+				connection = client;
+			}
+		};
+		serverThread = new Thread(server);
+		serverThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		if (server != null) {
+			server.stop();
+			serverThread.join();
+		}
+	}
+
+	public void testRoundTrip() throws IOException, InterruptedException {
+		NetworkOptions options = new NetworkOptions().setPingInterval(20);
+		startServer(options);
+		AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), SERVER_PORT, options) {
+		};
+		assertEquals(-1, client.getRoundTripNanos());
+		client.start();
+		try {
+			for (int i = 0; i < 500 && (client.getRoundTripNanos() < 0 || connection == null || connection.getRoundTripNanos() < 0); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(client.getRoundTripNanos() > 0);
+			assertTrue(client.getJitterNanos() >= 0);
+			assertTrue(connection.getRoundTripNanos() > 0);
+			assertTrue(server.getMetrics().getRoundTrip().getCount() > 0);
+			assertNull("pings should not reach the game", client.queryPacket());
+			assertNull("pings should not reach the game", connection.queryPacket());
+		} finally {
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+		}
+	}
+
+	public void testIdleTimeout() throws IOException, InterruptedException {
+		startServer(new NetworkOptions().setPingInterval(0).setIdleTimeout(100));
+		Socket socket = new Socket(InetAddress.getLocalHost(), SERVER_PORT);
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write('C');
+			assertEquals('S', socket.getInputStream().read());
+			long start = System.nanoTime();
+			assertEquals("the server should close an idle connection", -1, socket.getInputStream().read());
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+			assertEquals(1, server.getMetrics().getIdleDisconnects());
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testPingsKeepConnectionOpen() throws IOException, InterruptedException {
+		NetworkOptions options = new NetworkOptions().setPingInterval(20).setIdleTimeout(100);
+		startServer(options);
+		AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), SERVER_PORT, options) {
+		};
+		client.start();
+		try {
+			Thread.sleep(500);
+			assertFalse(connection.finished());
+			assertTrue(client.isAlive());
+			assertEquals(0, server.getMetrics().getIdleDisconnects());
+		} finally {
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+		}
+	}
+
+	public void testStuckConnectionDoesNotStopHeartbeats() throws IOException, InterruptedException {
+		NetworkOptions options = new NetworkOptions().setPingInterval(20).setIdleTimeout(300);
+		startServer(options);
+		Socket socket = new Socket(InetAddress.getLocalHost(), SERVER_PORT);
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write('C');
+			assertEquals('S', socket.getInputStream().read());
+			for (int i = 0; i < 500 && firstConnection == null; i++) {
+				Thread.sleep(10);
+			}
+			final ServerClient stuck = firstConnection;
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					// The peer never reads, so this ends up blocked on the socket.
+					while (!stuck.finished()) {
+						stuck.write(new byte[65536]);
+					}
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+			Thread.sleep(200);
+
+			AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), SERVER_PORT, options) {
+			};
+			client.start();
+			try {
+				for (int i = 0; i < 500 && client.getRoundTripNanos() < 0; i++) {
+					Thread.sleep(10);
+				}
+				assertTrue("a stuck peer should not stop other pings", client.getRoundTripNanos() > 0);
+				writer.join(5000);
+				assertFalse("the stuck peer should time out", writer.isAlive());
+				assertTrue(server.getMetrics().getIdleDisconnects() >= 1);
+			} finally {
+				client.write(DisconnectPacket.DISCONNECT);
+				client.join();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testRepliesAreSentOffTheReadingThread() throws InterruptedException {
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BlockingQueue<PingPacket> sent = new LinkedBlockingQueue<PingPacket>();
+		Heartbeat heartbeat = new Heartbeat(new NetworkOptions().setPingInterval(0), new ConnectionMetrics(null)) {
+			@Override
+			void send(PingPacket ping) {
+				sending.countDown();
+				try {
+					// Like a socket whose other side stopped reading.
+					release.await();
+				} catch (InterruptedException ex) {
+					return;
+				}
+				sent.add(ping);
+			}
+
+			@Override
+			void idle(long millis) {
+			}
+		};
+		heartbeat.start();
+		heartbeat.received(new PingPacket(1, false));
+		assertTrue(sending.await(5, TimeUnit.SECONDS));
+		heartbeat.received(new PingPacket(2, false));
+		heartbeat.received(new PingPacket(3, false));
+		release.countDown();
+		assertEquals(1, sent.poll(5, TimeUnit.SECONDS).sentNanos);
+		assertEquals("only the newest waiting reply should be sent", 3, sent.poll(5, TimeUnit.SECONDS).sentNanos);
+		assertTrue(sent.isEmpty());
+
+		heartbeat.stop();
+		heartbeat.received(new PingPacket(4, false));
+		assertNull("nothing should be sent once stopped", sent.poll(100, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,96 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Passes packets from a reader thread to a game thread through the
+ * {@link LinkedList} with wait/notify that connections used to use and
+ * through {@link InboundQueue}, consumed one at a time and in batches.
+ * Reports packets per second.
+ *
+ * Usage: InboundQueueBenchmark [packets]
+ */
+public final class InboundQueueBenchmark {
+	private static final Serializable PACKET = Integer.valueOf(42);
+
+	private InboundQueueBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int packets = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		System.out.printf("%-22s %14s%n", "queue", "packets/s");
+		for (int round = 0; round < 3; round++) { // The first round is warmup.
+			report(round, "LinkedList", linkedList(packets), packets);
+			report(round, "InboundQueue", inboundQueue(packets, false), packets);
+			report(round, "InboundQueue, drainTo", inboundQueue(packets, true), packets);
+		}
+	}
+
+	private static void report(int round, String name, long nanos, int packets) {
+		if (round > 0) {
+			System.out.printf("%-22s %14.0f%n", name, packets * 1e9 / nanos);
+		}
+	}
+
+	private static long linkedList(final int packets) throws InterruptedException {
+		final LinkedList<Serializable> queue = new LinkedList<Serializable>();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < packets; i++) {
+					synchronized (queue) {
+						queue.add(PACKET);
+						queue.notify();
+					}
+				}
+			}
+		};
+		long start = System.nanoTime();
+		producer.start();
+		for (int i = 0; i < packets; i++) {
+			synchronized (queue) {
+				while (queue.isEmpty()) {
+					queue.wait();
+				}
+				queue.remove();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		producer.join();
+		return elapsed;
+	}
+
+	private static long inboundQueue(final int packets, boolean batch) throws InterruptedException {
+		final InboundQueue queue = new InboundQueue(4096, 0);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < packets; i++) {
+					queue.put(PACKET, 1);
+				}
+			}
+		};
+		long start = System.nanoTime();
+		producer.start();
+		ArrayList<Serializable> drained = new ArrayList<Serializable>(256);
+		for (int i = 0; i < packets;) {
+			if (batch) {
+				drained.clear();
+				int count = queue.drainTo(drained, 256);
+				if (count == 0) {
+					queue.take(-1);
+					count = 1;
+				}
+				i += count;
+			} else {
+				queue.take(-1);
+				i++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		producer.join();
+		return elapsed;
+	}
+}
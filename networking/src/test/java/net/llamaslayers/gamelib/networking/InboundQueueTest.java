@@ -0,0 +1,173 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class InboundQueueTest extends TestCase {
+	public InboundQueueTest(String testName) {
+		super(testName);
+	}
+
+	public void testOfferAndPoll() {
+		InboundQueue queue = new InboundQueue(3, 0);
+		assertEquals("capacity should be rounded up", 4, queue.capacity());
+		assertNull(queue.poll());
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 4; i++) {
+				assertTrue(queue.offer(Integer.valueOf(i), 1));
+			}
+			assertFalse("a full queue should refuse packets", queue.offer(Integer.valueOf(4), 1));
+			for (int i = 0; i < 4; i++) {
+				assertEquals(Integer.valueOf(i), queue.poll());
+			}
+			assertNull(queue.poll());
+			assertTrue(queue.isEmpty());
+		}
+	}
+
+	public void testDrainTo() {
+		InboundQueue queue = new InboundQueue(8, 0);
+		for (int i = 0; i < 6; i++) {
+			queue.offer(Integer.valueOf(i), 1);
+		}
+		ArrayList<Serializable> drained = new ArrayList<Serializable>();
+		assertEquals(4, queue.drainTo(drained, 4));
+		assertEquals(2, queue.drainTo(drained, 4));
+		assertEquals(0, queue.drainTo(drained, 4));
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Integer.valueOf(i), drained.get(i));
+		}
+	}
+
+	public void testTakeTimesOut() throws InterruptedException {
+		InboundQueue queue = new InboundQueue(8, 0);
+		try {
+			queue.take(TimeUnit.MILLISECONDS.toNanos(10));
+			fail("take should time out on an empty queue");
+		} catch (NoSuchElementException ex) {
+		}
+	}
+
+	public void testProducerAndConsumerThreads() throws InterruptedException {
+		final InboundQueue queue = new InboundQueue(8, 0);
+		final int packets = 100000;
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < packets; i++) {
+					queue.put(Integer.valueOf(i), 1);
+				}
+			}
+		};
+		producer.start();
+		ArrayList<Serializable> drained = new ArrayList<Serializable>();
+		for (int i = 0; i < packets; i++) {
+			Serializable packet;
+			if (i % 3 == 0) {
+				drained.clear();
+				if (queue.drainTo(drained, 1) == 0) {
+					packet = queue.take(-1);
+				} else {
+					packet = drained.get(0);
+				}
+			} else {
+				packet = queue.take(-1);
+			}
+			assertEquals(Integer.valueOf(i), packet);
+		}
+		producer.join();
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testTwoWaitingConsumers() throws InterruptedException {
+		final InboundQueue queue = new InboundQueue(8, 0);
+		final BlockingQueue<Serializable> taken = new LinkedBlockingQueue<Serializable>();
+		Thread[] consumers = new Thread[2];
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						taken.add(queue.take(-1));
+					} catch (InterruptedException ex) {
+					}
+				}
+			};
+			consumers[i].start();
+		}
+		for (int i = 0; i < consumers.length; i++) {
+			// Wait until both are parked, past their yielding.
+			while (consumers[i].getState() != Thread.State.WAITING) {
+				Thread.sleep(1);
+			}
+		}
+		queue.offer("a", 1);
+		queue.offer("b", 1);
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i].join(5000);
+			assertFalse("every waiting consumer should get a packet", consumers[i].isAlive());
+		}
+		assertEquals(2, taken.size());
+		assertTrue(taken.contains("a"));
+		assertTrue(taken.contains("b"));
+	}
+
+	public void testByteLimit() {
+		InboundQueue queue = new InboundQueue(8, 100);
+		assertTrue(queue.offer("a", 60));
+		assertFalse("the byte limit should be enforced", queue.offer("b", 60));
+		assertTrue(queue.offer("c", 40));
+		assertEquals(100, queue.bytes());
+		assertTrue(queue.dropOldest());
+		assertEquals(40, queue.bytes());
+		assertEquals("c", queue.poll());
+		assertTrue("an empty queue should take any packet", queue.offer("d", 1000));
+		assertEquals("d", queue.poll());
+		assertFalse(queue.dropOldest());
+	}
+
+	public void testRoomListener() {
+		InboundQueue queue = new InboundQueue(4, 0);
+		for (int i = 0; i < 4; i++) {
+			queue.offer(Integer.valueOf(i), 1);
+		}
+		final int[] calls = new int[1];
+		queue.whenRoom(1, new Runnable() {
+			@Override
+			public void run() {
+				calls[0]++;
+			}
+		});
+		assertEquals(0, calls[0]);
+		queue.poll();
+		assertEquals("the producer should not be woken for every packet", 0, calls[0]);
+		queue.poll();
+		assertEquals(1, calls[0]);
+		queue.poll();
+		assertEquals(1, calls[0]);
+	}
+
+	public void testPacketListener() {
+		InboundQueue queue = new InboundQueue(4, 0);
+		final int[] calls = new int[1];
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				calls[0]++;
+			}
+		};
+		queue.whenPacket(listener);
+		assertEquals(0, calls[0]);
+		queue.offer("a", 1);
+		assertEquals(1, calls[0]);
+		queue.offer("b", 1);
+		assertEquals("the listener should only run once", 1, calls[0]);
+		queue.whenPacket(listener);
+		assertEquals("packets were already waiting", 2, calls[0]);
+	}
+}
@@ -0,0 +1,124 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Has a server stream large chunks to a client while sending it small hit
+ * packets, and reports how long hits take to arrive: first with everything
+ * on one lane, then with chunks on a lane of their own, over a socket and
+ * through memory. Also prints the server's time from writing to sending by
+ * lane. Over a loopback socket, hits mostly wait behind the megabytes the
+ * kernel has buffered, which lanes cannot reorder.
+ *
+ * Usage: LanesBenchmark [chunk kilobytes] [hits]
+ */
+public final class LanesBenchmark {
+	private static final int PORT = 4103;
+
+	private LanesBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int chunkSize = (args.length > 0 ? Integer.parseInt(args[0]) : 2048) * 1024;
+		int hits = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		for (boolean local : new boolean[] {false, true}) {
+			run(local, "one lane", new NetworkOptions().setDetailedMetrics(true), 0, chunkSize, hits);
+			run(local, "two lanes", new NetworkOptions().setDetailedMetrics(true).setLanes(2), 1, chunkSize, hits);
+		}
+	}
+
+	private static void run(boolean local, String name, NetworkOptions options, final int chunkLane, final int chunkSize, int hits) throws Exception {
+		final Server server = new Server(options);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		AbstractClient client = local
+				? new AbstractClient(server, options) {
+				}
+				: new AbstractClient(InetAddress.getLocalHost(), PORT, options) {
+				};
+		client.start();
+		while (server.client == null) {
+			Thread.sleep(1);
+		}
+		final ServerClient connection = server.client;
+
+		Thread chunks = new Thread("Chunks") {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[chunkSize];
+				while (!isInterrupted()) {
+					connection.write(chunk, chunkLane);
+				}
+			}
+		};
+		chunks.start();
+
+		final long[] latencies = new long[hits];
+		final int[] chunksReceived = new int[1];
+		final AbstractClient receiver = client;
+		Thread game = new Thread("Client game loop") {
+			@Override
+			public void run() {
+				int received = 0;
+				try {
+					while (received < latencies.length) {
+						Serializable packet = receiver.waitForPacket();
+						if (packet instanceof Hit) {
+							latencies[received++] = System.nanoTime() - ((Hit) packet).sent;
+						} else {
+							chunksReceived[0]++;
+						}
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		game.start();
+		for (int i = 0; i < hits; i++) {
+			connection.write(new Hit(System.nanoTime()));
+			Thread.sleep(5);
+		}
+		game.join();
+		chunks.interrupt();
+		Arrays.sort(latencies);
+		System.out.printf("%-6s %-10s hit latency median %8.2f ms, p99 %8.2f ms, write lock wait p99 %8.2f ms, %d chunks%n",
+				local ? "memory" : "socket", name, latencies[hits / 2] / 1e6, latencies[hits * 99 / 100] / 1e6,
+				server.getMetrics().getWriteLockWait().getPercentile(0.99) / 1e6, chunksReceived[0]);
+		for (Integer lane : server.getMetrics().getLaneWait().keySet()) {
+			Histogram wait = server.getMetrics().getLaneWait().get(lane);
+			System.out.printf("       lane %d: %6d packets, mean wait %8.2f ms, p99 %8.2f ms%n", lane,
+					wait.getCount(), wait.getMean() / 1e6, wait.getPercentile(0.99) / 1e6);
+		}
+
+		client.interrupt();
+		server.stop();
+		chunks.join();
+		serverThread.join();
+	}
+
+	private static final class Server extends AbstractServer {
+		volatile ServerClient client;
+
+		Server(NetworkOptions options) throws IOException {
+			super(PORT, options);
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			this.client = client;
+		}
+	}
+
+	private static final class Hit implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final long sent;
+
+		Hit(long sent) {
+			this.sent = sent;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package net.llamaslayers.gamelib.networking;
+
+public class LanesClientServerTest extends ClientServerTest {
+	public LanesClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected NetworkOptions createOptions() {
+		return new NetworkOptions().setLanes(4).setFragmentSize(1024);
+	}
+}
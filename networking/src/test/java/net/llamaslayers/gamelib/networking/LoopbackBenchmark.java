@@ -0,0 +1,83 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Compares a client connected over a loopback socket with one connected
+ * through memory: sends packets to an echo server one at a time and reports
+ * the median and 99th percentile round trip times and packets per second.
+ *
+ * Usage: LoopbackBenchmark [round trips]
+ */
+public final class LoopbackBenchmark {
+	private static final int PORT = 4102;
+
+	private LoopbackBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int trips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		for (int i = 0; i < 2; i++) { // The first pass warms up.
+			run("socket", false, trips);
+			run("memory", true, trips);
+		}
+	}
+
+	private static void run(String name, boolean local, int trips) throws Exception {
+		EchoServer server = new EchoServer(PORT, new NetworkOptions());
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		AbstractClient client = local
+				? new AbstractClient(server) {
+				}
+				: new AbstractClient(InetAddress.getLocalHost(), PORT) {
+				};
+		client.start();
+
+		long[] times = new long[trips];
+		long start = System.nanoTime();
+		for (int i = 0; i < trips; i++) {
+			long sent = System.nanoTime();
+			client.write(Integer.valueOf(i));
+			client.waitForPacket();
+			times[i] = System.nanoTime() - sent;
+		}
+		long elapsed = System.nanoTime() - start;
+		Arrays.sort(times);
+		System.out.printf("%-6s median %7.1f us, p99 %7.1f us, %8.0f round trips/s%n", name,
+				times[trips / 2] / 1e3, times[trips * 99 / 100] / 1e3, trips * 1e9 / elapsed);
+
+		client.write(DisconnectPacket.DISCONNECT);
+		client.join();
+		server.stop();
+		serverThread.join();
+	}
+
+	private static final class EchoServer extends AbstractServer {
+		EchoServer(int port, NetworkOptions options) throws IOException {
+			super(port, options);
+		}
+
+		@Override
+		public void handleNewConnection(final ServerClient client) {
+			Thread echo = new Thread("Echo") {
+				@Override
+				public void run() {
+					while (!client.finished()) {
+						try {
+							Serializable packet = client.waitForPacket();
+							client.write(packet);
+						} catch (InterruptedException ex) {
+							break;
+						}
+					}
+				}
+			};
+			echo.setDaemon(true); // Waits for packets forever once the client is gone.
+			echo.start();
+		}
+	}
+}
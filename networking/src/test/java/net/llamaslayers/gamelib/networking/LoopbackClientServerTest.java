@@ -0,0 +1,12 @@
+package net.llamaslayers.gamelib.networking;
+
+public class LoopbackClientServerTest extends ClientServerTest {
+	public LoopbackClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected boolean isLoopback() {
+		return true;
+	}
+}
@@ -0,0 +1,12 @@
+package net.llamaslayers.gamelib.networking;
+
+public class MultiAcceptorClientServerTest extends ClientServerTest {
+	public MultiAcceptorClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected NetworkOptions createOptions() {
+		return new NetworkOptions().setSelectorThreads(3).setAcceptorThreads(2);
+	}
+}
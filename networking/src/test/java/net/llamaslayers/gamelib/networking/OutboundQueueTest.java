@@ -0,0 +1,437 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class OutboundQueueTest extends TestCase {
+	public OutboundQueueTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * Holds written frames until they are flushed, like a selector transport
+	 * whose socket buffer is never full.
+	 */
+	private static class RecordingTransport implements Transport {
+		final LinkedList<ByteBuffer> queued = new LinkedList<ByteBuffer>();
+		int frames, flushed, flushes;
+		boolean closed;
+
+		@Override
+		public synchronized void write(ByteBuffer frame) {
+			frames++;
+			queued.add(frame);
+		}
+
+		@Override
+		public synchronized void flush() {
+			flushed = frames;
+			flushes++;
+			queued.clear();
+			notifyAll();
+		}
+
+		@Override
+		public synchronized int queuedFrames() {
+			return queued.size();
+		}
+
+		@Override
+		public synchronized long queuedBytes() {
+			long bytes = 0;
+			for (ByteBuffer frame : queued) {
+				bytes += frame.remaining();
+			}
+			return bytes;
+		}
+
+		@Override
+		public synchronized boolean dropOldest() {
+			for (Iterator<ByteBuffer> it = queued.iterator(); it.hasNext();) {
+				if (!Packets.isStreamFrame(it.next())) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void awaitRoom(int frames, long bytes) {
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+	}
+
+	private static class Name implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final String name;
+
+		Name(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class NameCodec implements PacketCodec<Name> {
+		@Override
+		public void encode(Name packet, ByteBuffer out) {
+			out.put(packet.name.getBytes());
+		}
+
+		@Override
+		public Name decode(ByteBuffer in) {
+			byte[] bytes = new byte[in.remaining()];
+			in.get(bytes);
+			return new Name(new String(bytes));
+		}
+	}
+
+	private static OutboundQueue queue(Transport transport, FlushPolicy policy) throws IOException {
+		return new OutboundQueue(transport, new NetworkOptions().setFlushPolicy(policy), new ConnectionMetrics(null));
+	}
+
+	private static OutboundQueue queue(Transport transport, OverflowPolicy policy, ConnectionMetrics metrics) throws IOException {
+		NetworkOptions options = new NetworkOptions().setFlushPolicy(FlushPolicy.MANUAL)
+				.setOutboundQueueCapacity(2).setOutboundOverflowPolicy(policy)
+				.setPacketRegistry(new PacketRegistry().register(1, Name.class, new NameCodec()));
+		return new OutboundQueue(transport, options, metrics);
+	}
+
+	public void testImmediate() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.IMMEDIATE);
+		queue.write("a");
+		queue.write("b");
+		assertEquals(2, transport.flushed);
+		assertEquals(2, transport.flushes);
+	}
+
+	public void testManual() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.MANUAL);
+		for (int i = 0; i < 50; i++) {
+			queue.write(Integer.valueOf(i));
+		}
+		assertEquals("nothing should be flushed before flush()", 0, transport.flushes);
+		queue.flush();
+		assertEquals(50, transport.flushed);
+		assertEquals(1, transport.flushes);
+		queue.flush();
+		assertEquals("flushing nothing should not reach the transport", 1, transport.flushes);
+	}
+
+	public void testMaxBytes() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.maxBytes(1024));
+		queue.write("small");
+		assertEquals(0, transport.flushes);
+		queue.write(new byte[1024]);
+		assertEquals(2, transport.flushed);
+		assertEquals(1, transport.flushes);
+	}
+
+	public void testMaxDelay() throws IOException, InterruptedException {
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.maxDelay(20, TimeUnit.MILLISECONDS));
+		queue.write("a");
+		queue.write("b");
+		synchronized (transport) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (transport.flushes == 0 && System.currentTimeMillis() < deadline) {
+				transport.wait(100);
+			}
+		}
+		assertEquals(2, transport.flushed);
+		assertEquals(1, transport.flushes);
+	}
+
+	public void testBlockedFlushDoesNotDelayOthers() throws IOException, InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingTransport stuck = new RecordingTransport() {
+			@Override
+			public void flush() {
+				try {
+					// Like a socket whose other side stopped reading.
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				super.flush();
+			}
+		};
+		OutboundQueue stuckQueue = queue(stuck, FlushPolicy.maxDelay(5, TimeUnit.MILLISECONDS));
+		stuckQueue.write("stuck");
+		Thread.sleep(50);
+
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.maxDelay(5, TimeUnit.MILLISECONDS));
+		queue.write("a");
+		synchronized (transport) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (transport.flushes == 0 && System.currentTimeMillis() < deadline) {
+				transport.wait(100);
+			}
+		}
+		assertEquals(1, transport.flushes);
+		release.countDown();
+	}
+
+	public void testDisconnectIsFlushed() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		OutboundQueue queue = queue(transport, FlushPolicy.MANUAL);
+		queue.write("a");
+		queue.write(DisconnectPacket.DISCONNECT);
+		assertEquals(2, transport.flushed);
+	}
+
+	public void testDropNewest() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		ConnectionMetrics server = new ConnectionMetrics(null);
+		ConnectionMetrics metrics = new ConnectionMetrics(server);
+		OutboundQueue queue = queue(transport, OverflowPolicy.DROP_NEWEST, metrics);
+		queue.write("a");
+		queue.write("b");
+		queue.write("c");
+		assertEquals(2, transport.frames);
+		assertEquals(1, metrics.getOutboundDropped());
+		assertEquals("drops should be counted for the server too", 1, server.getOutboundDropped());
+		queue.flush();
+		queue.write("d");
+		assertEquals(3, transport.frames);
+	}
+
+	public void testDropOldest() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		ConnectionMetrics metrics = new ConnectionMetrics(null);
+		OutboundQueue queue = queue(transport, OverflowPolicy.DROP_OLDEST, metrics);
+		queue.write(new Name("first"));
+		queue.write("serialized");
+		queue.write(new Name("third"));
+		assertEquals(2, transport.queued.size());
+		assertEquals("the codec packet should have been dropped", 1, metrics.getOutboundDropped());
+		queue.write(new Name("fourth"));
+		queue.write("serialized again");
+		assertEquals(2, transport.queued.size());
+		assertEquals(3, metrics.getOutboundDropped());
+	}
+
+	/**
+	 * Keeps frames queued while the other side is not reading, like a
+	 * selector transport, and makes writers wait until it reads again.
+	 */
+	private static class StuckTransport extends RecordingTransport {
+		boolean reading;
+
+		@Override
+		public synchronized void flush() {
+			if (reading) {
+				super.flush();
+			}
+		}
+
+		@Override
+		public synchronized void awaitRoom(int frames, long bytes) {
+			while (!reading) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		synchronized void startReading() {
+			reading = true;
+			super.flush();
+		}
+	}
+
+	public void testBlockedWriterDoesNotHoldUpControlPackets() throws IOException, InterruptedException {
+		StuckTransport transport = new StuckTransport();
+		final OutboundQueue queue = queue(transport, OverflowPolicy.BLOCK, new ConnectionMetrics(null));
+		queue.write("a");
+		queue.write("b");
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.write("c");
+				} catch (IOException ex) {
+					fail(ex.toString());
+				}
+			}
+		};
+		writer.start();
+		while (writer.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		Thread pong = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.write(new PingPacket(0, true));
+				} catch (IOException ex) {
+					fail(ex.toString());
+				}
+			}
+		};
+		pong.start();
+		pong.join(5000);
+		assertFalse("a pong should not wait for room", pong.isAlive());
+		assertEquals(3, transport.frames);
+
+		transport.startReading();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertEquals(4, transport.frames);
+	}
+
+	public void testDisconnect() throws IOException {
+		RecordingTransport transport = new RecordingTransport();
+		ConnectionMetrics metrics = new ConnectionMetrics(null);
+		OutboundQueue queue = queue(transport, OverflowPolicy.DISCONNECT, metrics);
+		queue.write("a");
+		queue.write("b");
+		assertFalse(transport.closed);
+		queue.write("c");
+		assertTrue(transport.closed);
+		assertEquals(1, metrics.getOverflowDisconnects());
+	}
+
+	/**
+	 * Keeps every frame written. The first writer to wait for room between
+	 * fragments is held until {@code release} is written.
+	 */
+	private static class LaneTransport extends RecordingTransport {
+		final LinkedList<ByteBuffer> sent = new LinkedList<ByteBuffer>();
+		String release;
+		boolean waiting, released;
+
+		@Override
+		public synchronized void write(ByteBuffer frame) {
+			super.write(frame);
+			sent.add(frame);
+			if (release != null && release.equals(decodeAll(sent).peekLast())) {
+				released = true;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void awaitRoom(int frames, long bytes) {
+			if (release == null || released) {
+				return;
+			}
+			waiting = true;
+			notifyAll();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!released && System.nanoTime() < deadline) {
+				try {
+					wait(100);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+
+		synchronized void awaitWaiting() throws InterruptedException {
+			while (!waiting) {
+				wait();
+			}
+		}
+	}
+
+	private static LinkedList<Serializable> decodeAll(Iterable<ByteBuffer> frames) {
+		PacketReader reader = new PacketReader(new PacketRegistry().register(1, Name.class, new NameCodec()));
+		LinkedList<Serializable> packets = new LinkedList<Serializable>();
+		try {
+			for (ByteBuffer frame : frames) {
+				frame = frame.duplicate();
+				Packets.readLength(frame);
+				Serializable packet = reader.decode(frame);
+				if (packet != null) {
+					packets.add(packet instanceof Name ? ((Name) packet).name : packet);
+				}
+			}
+		} catch (Exception ex) {
+			throw new AssertionError(ex);
+		}
+		return packets;
+	}
+
+	private static OutboundQueue laneQueue(Transport transport, ConnectionMetrics metrics) throws IOException {
+		NetworkOptions options = new NetworkOptions().setLanes(3).setFragmentSize(64)
+				.setPacketRegistry(new PacketRegistry().register(1, Name.class, new NameCodec()));
+		return new OutboundQueue(transport, options, metrics);
+	}
+
+	private static String large(int length) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append(sb.length()).append(' ');
+		}
+		return sb.toString();
+	}
+
+	public void testLanes() throws IOException {
+		LaneTransport transport = new LaneTransport();
+		OutboundQueue queue = laneQueue(transport, new ConnectionMetrics(null));
+		String large = large(1000);
+		queue.write("zero");
+		queue.write(new Name("one"), 1);
+		queue.write(large, 2);
+		queue.write("zero", 2);
+		queue.write(new Name(large), 1);
+		queue.write(large, 0);
+		assertTrue("large packets should be fragmented", transport.sent.size() > 20);
+		assertEquals(Arrays.asList("zero", "one", large, "zero", large, large), decodeAll(transport.sent));
+		try {
+			queue.write("nowhere", 3);
+			fail("there are only 3 lanes");
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+	public void testLowerLaneOvertakesFragments() throws IOException, InterruptedException {
+		final LaneTransport transport = new LaneTransport();
+		transport.release = "urgent";
+		ConnectionMetrics metrics = new ConnectionMetrics(null, true);
+		final OutboundQueue queue = laneQueue(transport, metrics);
+		final String bulk = large(2000);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.write(bulk, 2);
+				} catch (IOException ex) {
+					throw new AssertionError(ex);
+				}
+			}
+		};
+		writer.start();
+		transport.awaitWaiting();
+		queue.write("urgent", 0);
+		writer.join();
+		assertEquals(Arrays.asList("urgent", bulk), decodeAll(transport.sent));
+		assertEquals(1, metrics.getLaneWait().get(0).getCount());
+		assertEquals(1, metrics.getLaneWait().get(2).getCount());
+		assertTrue("the bulk packet waited for the urgent one", metrics.getLaneWait().get(2).getMax() > metrics.getLaneWait().get(0).getMax());
+	}
+}
@@ -0,0 +1,170 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class PacketCaptureTest extends TestCase {
+	public PacketCaptureTest(String testName) {
+		super(testName);
+	}
+	private static final int SERVER_PORT = 4040;
+	private File log;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		log = File.createTempFile("packets", ".log");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		log.delete();
+	}
+
+	private static final class Server extends AbstractServer {
+		final List<Serializable> received = Collections.synchronizedList(new ArrayList<Serializable>());
+		private final Thread thread = new Thread(this);
+
+		Server(NetworkOptions options) throws IOException {
+			super(SERVER_PORT, options);
+			thread.start();
+		}
+
+		@Override
+		public void handleNewConnection(final ServerClient client) {
+			Thread game = new Thread() {
+				@Override
+				public void run() {
+					while (!client.finished()) {
+						try {
+							Serializable packet = client.waitForPacket();
+							received.add(packet);
+						} catch (InterruptedException ex) {
+							break;
+						}
+					}
+				}
+			};
+			game.setDaemon(true);
+			game.start();
+		}
+
+		void await(int packets) throws InterruptedException {
+			for (int i = 0; i < 500 && received.size() < packets; i++) {
+				Thread.sleep(10);
+			}
+		}
+
+		void close() throws InterruptedException {
+			stop();
+			thread.join();
+		}
+	}
+
+	/**
+	 * Records a client sending {@code packets}, waiting {@code gapMillis}
+	 * between each.
+	 */
+	private void record(List<? extends Serializable> packets, long gapMillis) throws IOException, InterruptedException {
+		PacketRecorder recorder = new PacketRecorder(log);
+		Server server = new Server(new NetworkOptions().setPacketRecorder(recorder));
+		try {
+			AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), SERVER_PORT) {
+			};
+			client.start();
+			for (Serializable packet : packets) {
+				client.write(packet);
+				Thread.sleep(gapMillis);
+			}
+			server.await(packets.size());
+			assertEquals(packets, server.received);
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+		} finally {
+			server.close();
+			recorder.close();
+		}
+	}
+
+	public void testReplayThroughMemory() throws IOException, InterruptedException {
+		List<String> packets = Arrays.asList("one", "two", "two", "three");
+		record(packets, 0);
+
+		Server server = new Server(new NetworkOptions());
+		try {
+			// The disconnect is replayed too.
+			assertEquals(packets.size() + 1, new PacketReplayer(log).replay(server, 0));
+			server.await(packets.size());
+			assertEquals(packets, server.received);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testReplayOverSocket() throws IOException, InterruptedException {
+		List<Integer> packets = Arrays.asList(1, 2, 3, 1000000);
+		record(packets, 0);
+
+		Server server = new Server(new NetworkOptions());
+		try {
+			new PacketReplayer(log).replay(InetAddress.getLocalHost(), SERVER_PORT, 0);
+			server.await(packets.size());
+			assertEquals(packets, server.received);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testReplaySpeed() throws IOException, InterruptedException {
+		List<String> packets = Arrays.asList("a", "b", "c");
+		record(packets, 100);
+
+		Server server = new Server(new NetworkOptions());
+		try {
+			long start = System.nanoTime();
+			new PacketReplayer(log).replay(server, 2);
+			assertTrue("recorded gaps should be kept, halved", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+			server.await(packets.size());
+			assertEquals(packets, server.received);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testUnclosedLog() throws IOException, InterruptedException {
+		PacketRecorder recorder = new PacketRecorder(log);
+		Server server = new Server(new NetworkOptions().setPacketRecorder(recorder));
+		try {
+			AbstractClient client = new AbstractClient(server) {
+			};
+			client.start();
+			client.write("lost");
+			server.await(1);
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+		} finally {
+			server.close();
+		}
+		// Without closing the recorder, the log is still its full first chunk.
+		assertTrue(log.length() >= PacketRecorder.CHUNK_SIZE);
+
+		Server replayed = new Server(new NetworkOptions());
+		try {
+			new PacketReplayer(log).replay(replayed, 0);
+			replayed.await(1);
+			assertEquals(Collections.singletonList("lost"), replayed.received);
+		} finally {
+			replayed.close();
+			recorder.close();
+		}
+	}
+}
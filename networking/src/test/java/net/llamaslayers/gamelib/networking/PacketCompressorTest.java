@@ -0,0 +1,107 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class PacketCompressorTest extends TestCase {
+	public PacketCompressorTest(String testName) {
+		super(testName);
+	}
+
+	private static class Chat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final String from, text;
+
+		public Chat(String from, String text) {
+			this.from = from;
+			this.text = text;
+		}
+	}
+
+	private static ByteBuffer payload(ByteBuffer frame) {
+		frame = frame.duplicate();
+		int length = VarInts.get(frame);
+		assertEquals(frame.remaining(), length);
+		return frame;
+	}
+
+	private static boolean isCompressed(ByteBuffer frame) {
+		ByteBuffer payload = payload(frame);
+		return VarInts.get(payload) == Packets.COMPRESSED;
+	}
+
+	private static Chat chat(int i) {
+		return new Chat("player" + i % 5, "Has anyone seen the blacksmith near the north gate of the old castle? #" + i);
+	}
+
+	public void testThreshold() throws IOException, ClassNotFoundException {
+		ConnectionMetrics metrics = new ConnectionMetrics(null);
+		NetworkOptions options = new NetworkOptions().setCompressionThreshold(100);
+		PacketWriter writer = new PacketWriter(options.getPacketRegistry(), 1, new PacketCompressor(options, metrics));
+		PacketReader reader = new PacketReader(options.getPacketRegistry(), new PacketCompressor(options, metrics));
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			text.append("spam ");
+		}
+		// The first packet carries the class descriptors, which are long.
+		reader.decode(payload(writer.encode(new Chat("a", "b"))));
+		ByteBuffer small = writer.encode(new Chat("a", "hi"));
+		ByteBuffer large = writer.encode(new Chat("a", text.toString()));
+		assertFalse("short packets should not be compressed", isCompressed(small));
+		assertTrue(isCompressed(large));
+		assertTrue("frames inside compressed frames should still count as stream frames", Packets.isStreamFrame(large));
+		assertEquals("hi", ((Chat) reader.decode(payload(small))).text);
+		assertEquals(text.toString(), ((Chat) reader.decode(payload(large))).text);
+
+		assertTrue(metrics.getCompressionRatio() < 0.5);
+		assertTrue(metrics.getCompressionInputBytes() >= 250);
+		assertTrue(metrics.getCompressionNanos() > 0);
+		assertTrue(metrics.getDecompressionNanos() > 0);
+	}
+
+	public void testIncompressiblePacketIsSentAsIs() throws IOException {
+		NetworkOptions options = new NetworkOptions().setCompressionThreshold(1);
+		PacketWriter writer = new PacketWriter(options.getPacketRegistry(), 1, new PacketCompressor(options, new ConnectionMetrics(null)));
+		byte[] noise = new byte[200];
+		new Random(1).nextBytes(noise);
+		assertFalse(isCompressed(writer.encodeShared(noise)));
+	}
+
+	public void testDictionary() throws IOException, ClassNotFoundException {
+		List<Chat> samples = new ArrayList<Chat>();
+		for (int i = 0; i < 200; i++) {
+			samples.add(chat(i));
+		}
+		byte[] dictionary = CompressionDictionary.train(new PacketRegistry(), samples, 4096);
+		assertTrue(dictionary.length > 0 && dictionary.length <= 4096);
+
+		NetworkOptions plain = new NetworkOptions().setCompressionThreshold(16);
+		NetworkOptions trained = new NetworkOptions(plain).setCompressionDictionary(dictionary);
+		int plainBytes = 0;
+		int trainedBytes = 0;
+		PacketWriter plainWriter = new PacketWriter(plain.getPacketRegistry(), 1, new PacketCompressor(plain, new ConnectionMetrics(null)));
+		PacketWriter trainedWriter = new PacketWriter(trained.getPacketRegistry(), 1, new PacketCompressor(trained, new ConnectionMetrics(null)));
+		PacketReader reader = new PacketReader(trained.getPacketRegistry(), new PacketCompressor(trained, new ConnectionMetrics(null)));
+		PacketReader wrongReader = new PacketReader(plain.getPacketRegistry(), new PacketCompressor(plain, new ConnectionMetrics(null)));
+		for (int i = 1000; i < 1020; i++) {
+			plainBytes += plainWriter.encode(chat(i)).remaining();
+			ByteBuffer frame = trainedWriter.encode(chat(i));
+			trainedBytes += frame.remaining();
+			assertEquals(chat(i).text, ((Chat) reader.decode(payload(frame))).text);
+			if (i == 1019) {
+				try {
+					wrongReader.decode(payload(frame));
+					fail("a packet compressed with a dictionary should need it");
+				} catch (IOException ex) {
+				}
+			}
+		}
+		assertTrue("trained " + trainedBytes + " >= plain " + plainBytes, trainedBytes * 2 < plainBytes);
+	}
+}
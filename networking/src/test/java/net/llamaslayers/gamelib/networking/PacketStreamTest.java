@@ -0,0 +1,222 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+public class PacketStreamTest extends TestCase {
+	public PacketStreamTest(String testName) {
+		super(testName);
+	}
+
+	private static class Chat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final ArrayList<String> lines = new ArrayList<String>();
+	}
+
+	private static class Name implements Serializable {
+		private static final long serialVersionUID = 1L;
+		public final String name;
+
+		public Name(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class NameCodec implements PacketCodec<Name> {
+		@Override
+		public void encode(Name packet, ByteBuffer out) {
+			out.putInt(packet.name.length());
+			for (int i = 0; i < packet.name.length(); i++) {
+				out.putChar(packet.name.charAt(i));
+			}
+		}
+
+		@Override
+		public Name decode(ByteBuffer in) {
+			char[] name = new char[in.getInt()];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = in.getChar();
+			}
+			return new Name(new String(name));
+		}
+	}
+
+	private static class Broken implements Serializable {
+		private static final long serialVersionUID = 1L;
+		@SuppressWarnings("unused")
+		private final Object notSerializable = new Object();
+	}
+
+	private static ByteBuffer payload(ByteBuffer frame) {
+		frame = frame.duplicate();
+		int length = VarInts.get(frame);
+		assertEquals(frame.remaining(), length);
+		return frame;
+	}
+
+	public void testClassDescriptorsSentOnce() throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 1);
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		Chat chat = new Chat();
+		chat.lines.add("hello");
+
+		ByteBuffer first = writer.encode(chat);
+		ByteBuffer second = writer.encode(chat);
+		assertTrue("second frame should not repeat descriptors", second.remaining() * 2 < first.remaining());
+
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(first))).lines);
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(second))).lines);
+	}
+
+	public void testModifiedPacketIsResent() throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 1);
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		Chat chat = new Chat();
+
+		for (int i = 0; i < 5; i++) {
+			chat.lines.add("line " + i);
+			assertEquals(i + 1, ((Chat) reader.decode(payload(writer.encode(chat)))).lines.size());
+		}
+	}
+
+	public void testSharedHandlesBetweenResets() throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 3);
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		Chat chat = new Chat();
+
+		Chat first = (Chat) reader.decode(payload(writer.encode(chat)));
+		assertSame(first, reader.decode(payload(writer.encode(chat))));
+		assertSame(first, reader.decode(payload(writer.encode(chat))));
+		assertNotSame(first, reader.decode(payload(writer.encode(chat))));
+	}
+
+	public void testFailedPacketDoesNotCorruptStream() throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 10);
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		try {
+			writer.encode(new Broken());
+			fail();
+		} catch (NotSerializableException ex) {
+		}
+		Chat chat = new Chat();
+		chat.lines.add("still here");
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+		try {
+			writer.encode(new Broken());
+			fail();
+		} catch (NotSerializableException ex) {
+		}
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+	}
+
+	public void testRegisteredCodec() throws IOException, ClassNotFoundException {
+		PacketRegistry registry = new PacketRegistry().register(7, Name.class, new NameCodec());
+		PacketWriter writer = new PacketWriter(registry, 1);
+		PacketReader reader = new PacketReader(registry);
+		Chat chat = new Chat();
+		chat.lines.add("mixed with serialized packets");
+
+		ByteBuffer frame = writer.encode(new Name("llama"));
+		assertEquals(1 + 1 + 4 + 2 * 5, frame.remaining());
+		assertEquals("llama", ((Name) reader.decode(payload(frame))).name);
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			longName.append((char) ('a' + i % 26));
+		}
+		assertEquals(longName.toString(), ((Name) reader.decode(payload(writer.encode(new Name(longName.toString()))))).name);
+	}
+
+	public void testRegistryRejectsDuplicates() {
+		PacketRegistry registry = new PacketRegistry().register(1, Name.class, new NameCodec());
+		try {
+			registry.register(1, Chat.class, null);
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			registry.register(2, Name.class, new NameCodec());
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+		try {
+			registry.register(PacketRegistry.MAX_ID + 1, Chat.class, null);
+			fail();
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testUnknownPacketIsSkipped() throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry().register(7, Name.class, new NameCodec()), 1);
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		Chat chat = new Chat();
+		chat.lines.add("after the unknown packet");
+
+		assertNull(reader.decode(payload(writer.encode(new Name("unknown")))));
+		assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+	}
+
+	public void testSharedFrame() throws IOException, ClassNotFoundException {
+		PacketRegistry registry = new PacketRegistry().register(1, Name.class, new NameCodec());
+		PacketWriter shared = new PacketWriter(registry, 1);
+		Chat chat = new Chat();
+		chat.lines.add("to everyone");
+		ByteBuffer sharedChat = shared.encodeShared(chat);
+		ByteBuffer sharedName = shared.encodeShared(new Name("llama"));
+
+		for (int i = 0; i < 2; i++) {
+			PacketWriter writer = new PacketWriter(registry, 1);
+			PacketReader reader = new PacketReader(registry);
+			assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+			assertEquals(chat.lines, ((Chat) reader.decode(payload(sharedChat))).lines);
+			assertEquals("llama", ((Name) reader.decode(payload(sharedName))).name);
+			assertEquals(chat.lines, ((Chat) reader.decode(payload(writer.encode(chat)))).lines);
+		}
+	}
+
+	public void testNestedLaneIsRejected() throws ClassNotFoundException {
+		PacketReader reader = new PacketReader(new PacketRegistry());
+		ByteBuffer frame = ByteBuffer.allocate(200000);
+		while (frame.remaining() >= 2 * VarInts.MAX_LENGTH) {
+			VarInts.put(frame, Packets.LANE);
+			VarInts.put(frame, 0);
+		}
+		frame.flip();
+		try {
+			reader.decode(frame);
+			fail("nested lane headers should be rejected");
+		} catch (IOException ex) {
+		}
+	}
+
+	public void testMalformedFrameIsRejected() throws ClassNotFoundException {
+		PacketReader reader = new PacketReader(new PacketRegistry().register(7, Name.class, new NameCodec()));
+		byte[][] frames = {
+			{(byte) 0x80}, // The packet id is cut off.
+			{7, 0, 0, 0, 5, 0, 'a'}, // The codec reads past the end.
+		};
+		for (byte[] frame : frames) {
+			try {
+				reader.decode(ByteBuffer.wrap(frame));
+				fail("a malformed frame should be rejected");
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	public void testVarInts() {
+		ByteBuffer buffer = ByteBuffer.allocate(VarInts.MAX_LENGTH);
+		for (int value : new int[] {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1}) {
+			buffer.clear();
+			VarInts.put(buffer, value);
+			assertEquals(VarInts.size(value), buffer.position());
+			buffer.flip();
+			assertEquals(value, VarInts.get(buffer));
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package net.llamaslayers.gamelib.networking;
+
+public class SelectorClientServerTest extends ClientServerTest {
+	public SelectorClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected NetworkOptions createOptions() {
+		return new NetworkOptions().setSelectorThreads(2);
+	}
+}
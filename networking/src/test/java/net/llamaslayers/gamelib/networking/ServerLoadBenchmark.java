@@ -0,0 +1,152 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compares the blocking and selector server engines: opens many connections,
+ * has every connection echo a burst of packets through a single game thread
+ * and reports connect time, server thread count and packets per second. Each
+ * engine is run twice: flushing every packet, and flushing once per client
+ * per game loop iteration.
+ *
+ * Usage: ServerLoadBenchmark [connections] [packets per connection] [selector threads]
+ */
+public final class ServerLoadBenchmark {
+	private static final int PORT = 4100;
+
+	private ServerLoadBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int packets = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int selectorThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		run("blocking", new NetworkOptions(), connections, packets);
+		run("selector", new NetworkOptions().setSelectorThreads(selectorThreads), connections, packets);
+		run("blocking, per tick", new NetworkOptions().setFlushPolicy(FlushPolicy.MANUAL), connections, packets);
+		run("selector, per tick", new NetworkOptions().setSelectorThreads(selectorThreads).setFlushPolicy(FlushPolicy.MANUAL), connections, packets);
+	}
+
+	private static void run(String name, NetworkOptions options, int connections, int packets) throws Exception {
+		EchoServer server = new EchoServer(PORT, options);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		server.start();
+
+		long start = System.nanoTime();
+		List<AbstractClient> clients = new ArrayList<AbstractClient>();
+		for (int i = 0; i < connections; i++) {
+			AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), PORT) {
+			};
+			client.start();
+			clients.add(client);
+		}
+		while (server.clients.size() < connections) {
+			Thread.sleep(1);
+		}
+		long connected = System.nanoTime();
+
+		for (int i = 0; i < packets; i++) {
+			for (AbstractClient client : clients) {
+				client.write(new Position(i, i, -i));
+			}
+		}
+		long received = 0;
+		long total = (long) connections * packets;
+		while (received < total) {
+			boolean idle = true;
+			for (AbstractClient client : clients) {
+				while (client.queryPacket() != null) {
+					received++;
+					idle = false;
+				}
+			}
+			if (idle) {
+				Thread.sleep(1);
+			}
+		}
+		long done = System.nanoTime();
+
+		System.out.printf("%-18s %6d connections in %6d ms, %4d server threads, %10.0f echoed packets/s%n",
+				name, connections, (connected - start) / 1000000, serverThreads(),
+				total * 1e9 / (done - connected));
+
+		for (AbstractClient client : clients) {
+			client.write(DisconnectPacket.DISCONNECT);
+		}
+		server.interrupt();
+		server.stop();
+		serverThread.join();
+		for (AbstractClient client : clients) {
+			client.join();
+		}
+	}
+
+	private static int serverThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("CLIENT#") || thread.getName().startsWith("SELECTOR#")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static final class EchoServer extends AbstractServer {
+		private final List<ServerClient> clients = new CopyOnWriteArrayList<ServerClient>();
+		private final Thread game = new Thread("Game loop") {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					boolean idle = true;
+					for (ServerClient client : clients) {
+						Serializable packet;
+						while ((packet = client.queryPacket()) != null) {
+							client.write(packet);
+							idle = false;
+						}
+						client.flush();
+					}
+					if (idle) {
+						Thread.yield();
+					}
+				}
+			}
+		};
+
+		EchoServer(int port, NetworkOptions options) throws IOException {
+			super(port, options);
+		}
+
+		void start() {
+			game.start();
+		}
+
+		void interrupt() {
+			game.interrupt();
+		}
+
+		@Override
+		public void handleNewConnection(ServerClient client) {
+			clients.add(client);
+		}
+	}
+
+	private static final class Position implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int entity;
+		final float x, y;
+
+		Position(int entity, float x, float y) {
+			this.entity = entity;
+			this.x = x;
+			this.y = y;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public class SessionTest extends TestCase {
+	public SessionTest(String testName) {
+		super(testName);
+	}
+	private static final int SERVER_PORT = 4030;
+	private static final int PROXY_PORT = 4031;
+	private final AtomicInteger connections = new AtomicInteger();
+	private AbstractServer server;
+	private Thread serverThread;
+	private Proxy proxy;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new AbstractServer(SERVER_PORT, new NetworkOptions().setSessionTimeout(5000)) {
+			@Override
+			public void handleNewConnection(final ServerClient client) {
+				connections.incrementAndGet();
+				new Thread() {
+					@Override
+					public void run() {
+						while (!client.finished()) {
+							try {
+								client.write(client.waitForPacket(100));
+							} catch (InterruptedException ex) {
+								break;
+							} catch (NoSuchElementException ex) {
+							}
+						}
+					}
+				}.start();
+			}
+		};
+		serverThread = new Thread(server);
+		serverThread.start();
+		proxy = new Proxy();
+		proxy.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		proxy.close();
+		server.stop();
+		serverThread.join();
+	}
+
+	/**
+	 * Forwards connections to the server, and can cut them all at once.
+	 */
+	private static class Proxy extends Thread {
+		private final ServerSocket socket = new ServerSocket(PROXY_PORT);
+		private final List<Socket> open = new ArrayList<Socket>();
+		private boolean closed;
+
+		Proxy() throws IOException {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket client = socket.accept();
+					Socket server = new Socket(InetAddress.getLocalHost(), SERVER_PORT);
+					synchronized (open) {
+						if (closed) { // Accepted while closing.
+							client.close();
+							server.close();
+							return;
+						}
+						open.add(client);
+						open.add(server);
+					}
+					pump(client, server);
+					pump(server, client);
+				}
+			} catch (IOException ex) {
+				// Closed.
+			}
+		}
+
+		private void pump(final Socket from, final Socket to) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[4096];
+					try {
+						InputStream in = from.getInputStream();
+						OutputStream out = to.getOutputStream();
+						int read;
+						while ((read = in.read(buffer)) >= 0) {
+							out.write(buffer, 0, read);
+						}
+					} catch (IOException ex) {
+						// Cut.
+					}
+					try {
+						from.close();
+						to.close();
+					} catch (IOException ex) {
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void cut() throws IOException {
+			synchronized (open) {
+				for (Socket s : open) {
+					s.close();
+				}
+				open.clear();
+			}
+		}
+
+		void close() throws IOException, InterruptedException {
+			synchronized (open) {
+				closed = true;
+			}
+			socket.close();
+			cut();
+			join();
+		}
+	}
+
+	private AbstractClient connect(long sessionTimeout) throws IOException {
+		AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), PROXY_PORT, new NetworkOptions().setSessionTimeout(sessionTimeout)) {
+		};
+		client.start();
+		return client;
+	}
+
+	private static void echo(AbstractClient client, int from, int to) throws InterruptedException {
+		for (int i = from; i < to; i++) {
+			client.write(Integer.valueOf(i));
+		}
+		for (int i = from; i < to; i++) {
+			Serializable packet = client.waitForPacket(5000);
+			assertEquals(Integer.valueOf(i), packet);
+		}
+	}
+
+	public void testResume() throws IOException, InterruptedException {
+		AbstractClient client = connect(5000);
+		try {
+			echo(client, 0, 10);
+			proxy.cut();
+			echo(client, 10, 20);
+			proxy.cut();
+			for (int i = 20; i < 30; i++) {
+				client.write(Integer.valueOf(i));
+			}
+			proxy.cut();
+			for (int i = 20; i < 30; i++) {
+				assertEquals(Integer.valueOf(i), client.waitForPacket(5000));
+			}
+			assertEquals("the session should have been resumed, not replaced", 1, connections.get());
+		} finally {
+			if (client.isAlive()) {
+				client.write(DisconnectPacket.DISCONNECT);
+			}
+			client.join();
+		}
+	}
+
+	public void testSessionExpires() throws IOException, InterruptedException {
+		AbstractClient client = connect(300);
+		echo(client, 0, 1);
+		proxy.close();
+		client.join(5000);
+		assertFalse("the client should give up once the session times out", client.isAlive());
+		assertTrue(client.finished());
+	}
+}
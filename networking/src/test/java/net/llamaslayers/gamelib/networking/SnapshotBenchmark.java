@@ -0,0 +1,111 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Measures the bandwidth one player costs when the whole world is sent every
+ * tick through {@link ServerClient#write(Serializable)}, against sending
+ * snapshot deltas from a {@link SnapshotSender}. A fraction of the entities
+ * move a little every tick and the rest stand still. Reports bytes per tick
+ * and per second at 20 ticks per second, and the time per tick, which for
+ * deltas includes building, encoding and decoding the snapshot.
+ *
+ * Usage: SnapshotBenchmark [entities] [moving percent] [ticks]
+ */
+public final class SnapshotBenchmark {
+	private static final int TICKS_PER_SECOND = 20;
+
+	private SnapshotBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entities = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int moving = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		System.out.printf("%-20s %14s %14s %14s%n", "mode", "bytes/tick", "KiB/s", "us/tick");
+		for (int round = 0; round < 2; round++) { // The first round is warmup.
+			fullWorld(entities, moving, ticks, round == 1);
+			deltas(entities, moving, ticks, round == 1);
+		}
+	}
+
+	private static void fullWorld(int entities, int moving, int ticks, boolean print) throws IOException {
+		PacketWriter writer = new PacketWriter(new PacketRegistry(), 1);
+		World world = new World(entities);
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < ticks; tick++) {
+			world.step(moving);
+			bytes += writer.encode(world).remaining();
+		}
+		report(print, "full world", bytes, ticks, System.nanoTime() - start);
+	}
+
+	private static void deltas(int entities, int moving, int ticks, boolean print) throws IOException {
+		PacketWriter writer = new PacketWriter(SnapshotPacket.register(new PacketRegistry(), 1, 2), 1);
+		SnapshotSender sender = new SnapshotSender(32);
+		SnapshotReceiver receiver = new SnapshotReceiver(32);
+		World world = new World(entities);
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < ticks; tick++) {
+			world.step(moving);
+			sender.publish(world.snapshot(tick));
+			SnapshotPacket packet = sender.packetFor(1);
+			bytes += writer.encode(packet).remaining();
+			receiver.receive(packet);
+			sender.acknowledged(1, receiver.acknowledgement());
+		}
+		report(print, "snapshot deltas", bytes, ticks, System.nanoTime() - start);
+	}
+
+	private static void report(boolean print, String name, long bytes, int ticks, long nanos) {
+		if (print) {
+			System.out.printf("%-20s %14d %14.1f %14.1f%n", name, bytes / ticks,
+					bytes * (double) TICKS_PER_SECOND / ticks / 1024, nanos / 1000.0 / ticks);
+		}
+	}
+
+	/**
+	 * Entities with a position, a velocity and a few fields that rarely
+	 * change.
+	 */
+	private static final class World implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int[][] entities;
+		private transient Random random = new Random(42);
+
+		World(int count) {
+			entities = new int[count][];
+			for (int i = 0; i < count; i++) {
+				entities[i] = new int[] {random.nextInt(100000), random.nextInt(100000), 0, 0, 100, i % 7, 0, 0};
+			}
+		}
+
+		void step(int movingPercent) {
+			for (int[] entity : entities) {
+				if (random.nextInt(100) < movingPercent) {
+					entity[2] = random.nextInt(21) - 10;
+					entity[3] = random.nextInt(21) - 10;
+					entity[0] += entity[2];
+					entity[1] += entity[3];
+				}
+			}
+		}
+
+		Snapshot snapshot(int tick) {
+			Snapshot snapshot = new Snapshot(tick);
+			long[] fields = new long[8];
+			for (int i = 0; i < entities.length; i++) {
+				for (int f = 0; f < fields.length; f++) {
+					fields[f] = entities[i][f];
+				}
+				snapshot.put(i, fields);
+			}
+			return snapshot;
+		}
+	}
+}
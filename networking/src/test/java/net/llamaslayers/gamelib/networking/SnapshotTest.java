@@ -0,0 +1,131 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class SnapshotTest extends TestCase {
+	public SnapshotTest(String testName) {
+		super(testName);
+	}
+
+	private static void assertSameWorld(Snapshot expected, Snapshot actual) {
+		assertEquals(expected.getTick(), actual.getTick());
+		assertEquals(expected.getEntities(), actual.getEntities());
+		for (int id : expected.getEntities()) {
+			assertTrue("entity " + id + " differs", Arrays.equals(expected.get(id), actual.get(id)));
+		}
+	}
+
+	/**
+	 * Sends a packet through its codec, like a connection would.
+	 */
+	private static SnapshotPacket send(SnapshotPacket packet) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(packet.getLength() + 16);
+		new SnapshotPacket.Codec().encode(packet, buffer);
+		buffer.flip();
+		return new SnapshotPacket.Codec().decode(buffer);
+	}
+
+	public void testDeltas() throws IOException {
+		SnapshotSender sender = new SnapshotSender(8);
+		SnapshotReceiver receiver = new SnapshotReceiver(8);
+
+		Snapshot first = new Snapshot(0).put(-5, 1, 2, 3).put(7, 100, -100).put(9);
+		sender.publish(first);
+		SnapshotPacket packet = sender.packetFor(1);
+		assertEquals(SnapshotPacket.NO_BASELINE, packet.getBaseline());
+		assertSameWorld(first, receiver.receive(send(packet)));
+		sender.acknowledged(1, receiver.acknowledgement());
+
+		Snapshot second = new Snapshot(1).put(-5, 1, 2, 4).put(7, 100, -100).put(8, Long.MIN_VALUE, Long.MAX_VALUE).put(9, 1);
+		sender.publish(second);
+		packet = sender.packetFor(1);
+		assertEquals(0, packet.getBaseline());
+		assertSameWorld(second, receiver.receive(send(packet)));
+		sender.acknowledged(1, receiver.acknowledgement());
+
+		Snapshot third = new Snapshot(2).put(8, Long.MAX_VALUE, Long.MIN_VALUE).put(9, 1);
+		sender.publish(third);
+		packet = sender.packetFor(1);
+		assertEquals(1, packet.getBaseline());
+		assertSameWorld(third, receiver.receive(send(packet)));
+		sender.acknowledged(1, receiver.acknowledgement());
+
+		sender.publish(new Snapshot(3).put(8, Long.MAX_VALUE, Long.MIN_VALUE).put(9, 1));
+		assertEquals("an unchanged world should take a few bytes", 2, sender.packetFor(1).getLength());
+	}
+
+	public void testSmallChangesAreSmall() {
+		Random random = new Random(42);
+		Snapshot before = new Snapshot(0);
+		Snapshot after = new Snapshot(1);
+		for (int id = 0; id < 1000; id++) {
+			long[] fields = {random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt()};
+			before.put(id, fields);
+			if (id % 10 == 0) {
+				fields[1]++;
+			}
+			after.put(id, fields);
+		}
+		int full = SnapshotDeltas.encode(null, after).length;
+		int delta = SnapshotDeltas.encode(before, after).length;
+		assertTrue("full snapshot of " + full + " bytes", full > 4 * 1000);
+		assertTrue("delta of " + delta + " bytes", delta < 5 * 100 + 10);
+	}
+
+	public void testLostPackets() throws IOException {
+		SnapshotSender sender = new SnapshotSender(4);
+		SnapshotReceiver receiver = new SnapshotReceiver(4);
+		sender.publish(new Snapshot(0).put(1, 1));
+		receiver.receive(sender.packetFor(1));
+		sender.acknowledged(1, receiver.acknowledgement());
+
+		// Packets for ticks 1 and 2 are lost, so 3 is still made against 0.
+		for (int tick = 1; tick <= 3; tick++) {
+			sender.publish(new Snapshot(tick).put(1, tick));
+			sender.packetFor(1);
+		}
+		SnapshotPacket packet = sender.packetFor(1);
+		assertEquals(0, packet.getBaseline());
+		assertEquals(3, receiver.receive(packet).get(1)[0]);
+		assertNull("older packets should be ignored", receiver.receive(packet));
+		sender.acknowledged(1, receiver.acknowledgement());
+		sender.acknowledged(1, new SnapshotAck(0));
+		assertEquals("late acknowledgements should be ignored", 3, sender.packetFor(1).getBaseline());
+
+		// The client falls so far behind that its baseline is gone.
+		for (int tick = 4; tick <= 8; tick++) {
+			sender.publish(new Snapshot(tick).put(1, tick));
+		}
+		packet = sender.packetFor(1);
+		assertEquals(SnapshotPacket.NO_BASELINE, packet.getBaseline());
+		assertEquals(8, receiver.receive(packet).get(1)[0]);
+	}
+
+	public void testReceiverLostBaseline() throws IOException {
+		SnapshotSender sender = new SnapshotSender(16);
+		SnapshotReceiver receiver = new SnapshotReceiver(2);
+		sender.publish(new Snapshot(0).put(1, 0));
+		receiver.receive(sender.packetFor(1));
+		sender.acknowledged(1, receiver.acknowledgement());
+		// Snapshots 2 and 3 reach the client in full, pushing 0 out of its history.
+		receiver.receive(new SnapshotPacket(2, SnapshotPacket.NO_BASELINE, SnapshotDeltas.encode(null, new Snapshot(2))));
+		receiver.receive(new SnapshotPacket(3, SnapshotPacket.NO_BASELINE, SnapshotDeltas.encode(null, new Snapshot(3))));
+		sender.publish(new Snapshot(4).put(1, 4));
+		assertNull(receiver.receive(sender.packetFor(1)));
+		assertEquals(SnapshotPacket.NO_BASELINE, receiver.acknowledgement().getTick());
+		sender.acknowledged(1, receiver.acknowledgement());
+		assertEquals(4, receiver.receive(sender.packetFor(1)).get(1)[0]);
+	}
+
+	public void testCorruptDelta() {
+		try {
+			new SnapshotReceiver(4).receive(new SnapshotPacket(0, SnapshotPacket.NO_BASELINE, new byte[] {0, 1, 2}));
+			fail("a truncated delta should be rejected");
+		} catch (IOException ex) {
+		}
+	}
+}
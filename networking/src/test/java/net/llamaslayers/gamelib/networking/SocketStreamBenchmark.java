@@ -0,0 +1,155 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Sends frames of several sizes over a loopback socket, once through streams
+ * that only pass single bytes to the socket (as NoCloseInputStream and
+ * NoCloseOutputStream used to) and once through the buffered streams used by
+ * {@link SocketTransport}. Reports socket calls per frame on each side, which
+ * is roughly the number of system calls, and throughput.
+ *
+ * Usage: SocketStreamBenchmark [megabytes per run]
+ */
+public final class SocketStreamBenchmark {
+	private static final int PORT = 4101;
+
+	private SocketStreamBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		System.out.printf("%8s %-14s %12s %12s %10s%n", "frame", "streams", "writes/frame", "reads/frame", "MB/s");
+		for (int size : new int[] {16, 128, 1024, 16384, 262144}) {
+			int frames = Math.max(1, Math.min(200000, (megabytes << 20) / size));
+			if (size <= 1024) { // Byte at a time is too slow for anything bigger.
+				run(size, Math.min(frames, 20000), false);
+			}
+			run(size, frames, true);
+		}
+	}
+
+	private static void run(int size, final int frames, final boolean buffered) throws Exception {
+		ServerSocket server = new ServerSocket(PORT);
+		final Socket sending = new Socket(InetAddress.getLocalHost(), PORT);
+		Socket receiving = server.accept();
+		server.close();
+
+		final CountingOutputStream socketOut = new CountingOutputStream(sending.getOutputStream());
+		CountingInputStream socketIn = new CountingInputStream(receiving.getInputStream());
+		final byte[] payload = new byte[size];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream raw = buffered
+							? new BufferedOutputStream(new NoCloseOutputStream(socketOut), SocketTransport.BUFFER_SIZE)
+							: new ByteAtATimeOutputStream(socketOut);
+					DataOutputStream out = new DataOutputStream(raw);
+					for (int i = 0; i < frames; i++) {
+						out.writeInt(payload.length);
+						out.write(payload);
+						out.flush();
+					}
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		};
+
+		long start = System.nanoTime();
+		writer.start();
+		InputStream raw = buffered
+				? new BufferedInputStream(new NoCloseInputStream(socketIn), SocketTransport.BUFFER_SIZE)
+				: new ByteAtATimeInputStream(socketIn);
+		DataInputStream in = new DataInputStream(raw);
+		for (int i = 0; i < frames; i++) {
+			in.readFully(new byte[in.readInt()]);
+		}
+		long elapsed = System.nanoTime() - start;
+		writer.join();
+		sending.close();
+		receiving.close();
+
+		System.out.printf("%8d %-14s %12.2f %12.2f %10.1f%n", size, buffered ? "buffered" : "byte at a time",
+				(double) socketOut.calls / frames, (double) socketIn.calls / frames,
+				(double) frames * (size + 4) / (1 << 20) / (elapsed / 1e9));
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long calls;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			calls++;
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			calls++;
+			out.write(b, off, len);
+		}
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		long calls;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			calls++;
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			calls++;
+			return in.read(b, off, len);
+		}
+	}
+
+	private static final class ByteAtATimeOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		ByteAtATimeOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+	}
+
+	private static final class ByteAtATimeInputStream extends InputStream {
+		private final InputStream in;
+
+		ByteAtATimeInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Compares bytes on the wire and encode/decode time per packet between a
+ * fresh serialization stream per packet (how every packet used to be sent),
+ * the per-connection stream used by {@link PacketWriter} and a registered
+ * {@link PacketCodec}.
+ *
+ * Usage: StreamModeBenchmark [packets]
+ */
+public final class StreamModeBenchmark {
+	private StreamModeBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Serializable position = new Position(7, 1.5f, -3.25f);
+		Chat chat = new Chat();
+		chat.lines.add("Hello");
+		chat.lines.add("world");
+
+		System.out.printf("%-10s %-22s %12s %14s %14s%n", "packet", "mode", "bytes/packet", "encode ns", "decode ns");
+		for (Serializable packet : new Serializable[] {position, chat}) {
+			for (int round = 0; round < 2; round++) { // The first round is warmup.
+				boolean print = round == 1;
+				perPacketStream(packet, packets, print);
+				connectionStream(packet, packets, 1, print);
+				connectionStream(packet, packets, 1000, print);
+				if (packet == position) {
+					registeredCodec(packet, packets, print);
+				}
+			}
+		}
+	}
+
+	private static void perPacketStream(Serializable packet, int packets, boolean print) throws IOException, ClassNotFoundException {
+		long bytes = 0;
+		long start = System.nanoTime();
+		byte[][] encoded = new byte[packets][];
+		for (int i = 0; i < packets; i++) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(buffer);
+			out.writeObject(packet);
+			out.close();
+			encoded[i] = buffer.toByteArray();
+			bytes += encoded[i].length;
+		}
+		long encodedAt = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			new ObjectInputStream(new ByteArrayInputStream(encoded[i])).readObject();
+		}
+		long decodedAt = System.nanoTime();
+		if (print) {
+			report(packet, "stream per packet", bytes, packets, encodedAt - start, decodedAt - encodedAt);
+		}
+	}
+
+	private static void connectionStream(Serializable packet, int packets, int resetInterval, boolean print) throws IOException, ClassNotFoundException {
+		encodeAndDecode(packet, packets, new PacketRegistry(), resetInterval, print ? "connection, reset " + resetInterval : null);
+	}
+
+	private static void registeredCodec(Serializable packet, int packets, boolean print) throws IOException, ClassNotFoundException {
+		PacketRegistry registry = new PacketRegistry().register(1, Position.class, new PositionCodec());
+		encodeAndDecode(packet, packets, registry, 1, print ? "registered codec" : null);
+	}
+
+	private static void encodeAndDecode(Serializable packet, int packets, PacketRegistry registry, int resetInterval, String mode) throws IOException, ClassNotFoundException {
+		PacketWriter writer = new PacketWriter(registry, resetInterval);
+		PacketReader reader = new PacketReader(registry);
+		long bytes = 0;
+		long start = System.nanoTime();
+		ByteBuffer[] encoded = new ByteBuffer[packets];
+		for (int i = 0; i < packets; i++) {
+			encoded[i] = writer.encode(packet);
+			bytes += encoded[i].remaining();
+			VarInts.get(encoded[i]);
+		}
+		long encodedAt = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			reader.decode(encoded[i]);
+		}
+		long decodedAt = System.nanoTime();
+		if (mode != null) {
+			report(packet, mode, bytes, packets, encodedAt - start, decodedAt - encodedAt);
+		}
+	}
+
+	private static void report(Serializable packet, String mode, long bytes, int packets, long encodeNanos, long decodeNanos) {
+		System.out.printf("%-10s %-22s %12.1f %14.0f %14.0f%n", packet.getClass().getSimpleName(), mode,
+				(double) bytes / packets, (double) encodeNanos / packets, (double) decodeNanos / packets);
+	}
+
+	private static final class Position implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int entity;
+		final float x, y;
+
+		Position(int entity, float x, float y) {
+			this.entity = entity;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private static final class PositionCodec implements PacketCodec<Position> {
+		@Override
+		public void encode(Position packet, ByteBuffer out) {
+			out.putInt(packet.entity).putFloat(packet.x).putFloat(packet.y);
+		}
+
+		@Override
+		public Position decode(ByteBuffer in) {
+			return new Position(in.getInt(), in.getFloat(), in.getFloat());
+		}
+	}
+
+	private static final class Chat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final ArrayList<String> lines = new ArrayList<String>();
+	}
+}
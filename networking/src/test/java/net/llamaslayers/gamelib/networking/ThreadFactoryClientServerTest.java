@@ -0,0 +1,22 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.util.concurrent.ThreadFactory;
+
+public class ThreadFactoryClientServerTest extends ClientServerTest {
+	public ThreadFactoryClientServerTest(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected NetworkOptions createOptions() {
+		if (ConnectionThreads.isVirtualAvailable()) {
+			return new NetworkOptions().setConnectionThreadFactory(ConnectionThreads.virtual());
+		}
+		return new NetworkOptions().setConnectionThreadFactory(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "Pooled connection");
+			}
+		});
+	}
+}
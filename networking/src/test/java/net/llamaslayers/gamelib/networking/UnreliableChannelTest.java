@@ -0,0 +1,143 @@
+package net.llamaslayers.gamelib.networking;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import junit.framework.TestCase;
+
+public class UnreliableChannelTest extends TestCase {
+	public UnreliableChannelTest(String testName) {
+		super(testName);
+	}
+	private static final int SERVER_PORT = 4010;
+	private PacketRegistry registry;
+	private NetworkOptions options;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		registry = new PacketRegistry().register(1, Position.class, new Position.Codec());
+		options = new NetworkOptions().setPacketRegistry(registry).setUnreliableChannel(true);
+	}
+
+	private static class Position implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int entity, x;
+
+		Position(int entity, int x) {
+			this.entity = entity;
+			this.x = x;
+		}
+
+		private static class Codec implements PacketCodec<Position> {
+			@Override
+			public void encode(Position packet, ByteBuffer out) {
+				out.putInt(packet.entity).putInt(packet.x);
+			}
+
+			@Override
+			public Position decode(ByteBuffer in) {
+				return new Position(in.getInt(), in.getInt());
+			}
+		}
+	}
+
+	private static class Chat implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+
+	public void testDropsStalePackets() throws IOException {
+		UnreliableChannel channel = new UnreliableChannel(new DatagramSocket(0), registry);
+		try {
+			ConnectionMetrics metrics = new ConnectionMetrics(null);
+			UnreliableEndpoint endpoint = new UnreliableEndpoint(channel, true, options, metrics);
+			endpoint.received(new Position(1, 10), 5, 8);
+			endpoint.received(new Position(1, 20), 3, 8);
+			endpoint.received(new Chat(), 4, 8);
+			endpoint.received(new Position(1, 30), 6, 8);
+			endpoint.received(new Position(1, 40), 6, 8);
+			assertEquals(2, metrics.getStaleDropped());
+			assertEquals(10, ((Position) endpoint.queue().poll()).x);
+			assertTrue(endpoint.queue().poll() instanceof Chat);
+			assertEquals(30, ((Position) endpoint.queue().poll()).x);
+			assertNull(endpoint.queue().poll());
+
+			endpoint.received(new Position(1, 50), Integer.MIN_VALUE, 8);
+			assertEquals("sequence numbers should wrap around", 50, ((Position) endpoint.queue().poll()).x);
+		} finally {
+			channel.close();
+		}
+	}
+
+	public void testLoopback() throws IOException, InterruptedException {
+		UnreliableChannel serverChannel = new UnreliableChannel(new DatagramSocket(0), registry);
+		UnreliableChannel clientChannel = new UnreliableChannel(new DatagramSocket(0), registry);
+		serverChannel.start();
+		clientChannel.start();
+		try {
+			UnreliableEndpoint server = new UnreliableEndpoint(serverChannel, true, options, new ConnectionMetrics(null));
+			UnreliableEndpoint client = new UnreliableEndpoint(clientChannel, false, options, new ConnectionMetrics(null));
+			assertFalse("the server does not know where to send yet", server.write(new Position(1, 1)));
+			long token = server.open();
+			client.open(token, new InetSocketAddress(InetAddress.getLocalHost(), serverChannel.getLocalPort()));
+			for (int i = 0; i < 100 && !server.write(new Position(2, 2)); i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, ((Position) client.queue().take(5000000000L)).x);
+
+			assertTrue(client.write(new Position(3, 3)));
+			assertEquals(3, ((Position) server.queue().take(5000000000L)).x);
+			assertTrue("packets without codecs should be serialized on their own", client.write(new Chat()));
+			assertTrue(server.queue().take(5000000000L) instanceof Chat);
+
+			server.close();
+			assertTrue(client.write(new Position(4, 4)));
+			Thread.sleep(100);
+			assertNull("a closed endpoint should not receive", server.queue().poll());
+		} finally {
+			serverChannel.close();
+			clientChannel.close();
+		}
+	}
+
+	public void testClientServer() throws IOException, InterruptedException {
+		AbstractServer server = new AbstractServer(SERVER_PORT, options) {
+			@Override
+			public void handleNewConnection(final ServerClient client) {
+				new Thread() {
+					@Override
+					public void run() {
+						while (!client.finished()) {
+							try {
+								client.writeUnreliable(client.waitForPacket(1000));
+							} catch (InterruptedException ex) {
+								break;
+							} catch (NoSuchElementException ex) {
+							}
+						}
+					}
+				}.start();
+			}
+		};
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		AbstractClient client = new AbstractClient(InetAddress.getLocalHost(), SERVER_PORT, options) {
+		};
+		client.start();
+		try {
+			for (int i = 0; i < 20; i++) {
+				client.writeUnreliable(new Position(i, i));
+				assertEquals(i, ((Position) client.waitForPacket(5000)).x);
+			}
+		} finally {
+			client.write(DisconnectPacket.DISCONNECT);
+			client.join();
+			server.stop();
+			serverThread.join();
+		}
+	}
+}